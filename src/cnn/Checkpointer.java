@@ -0,0 +1,90 @@
+package cnn;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import cnn.components.Tensor;
+
+/**
+ * Writes training checkpoints of a network on a background thread.
+ *
+ * Taking a checkpoint only copies the weights into one of two snapshot buffers, which costs
+ * about as much as one weight update. The writer thread serializes the snapshot to a temporary
+ * file and renames it over the checkpoint, so the checkpoint on disk is always complete. While
+ * one snapshot is being written the other can be filled; if both are still busy, the
+ * checkpoint is skipped rather than making training wait.
+ */
+final class Checkpointer implements AutoCloseable {
+	private final File file;
+	private final byte[] header;
+	private final List<Tensor> weights;
+	private final BlockingQueue<List<Tensor>> freeSnapshots = new ArrayBlockingQueue<>(2);
+	private final ExecutorService writer = Executors.newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "checkpoint-writer");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	Checkpointer(ConvolutionalNeuralNetwork network, File file) throws IOException {
+		this.file = file;
+		this.header = ModelFile.header(network);
+		this.weights = ModelFile.weightTensors(network);
+		for (int i = 0; i < 2; i++) {
+			List<Tensor> snapshot = new ArrayList<>(weights.size());
+			for (Tensor tensor : weights) {
+				snapshot.add(new Tensor(
+						tensor.getPrecision(),
+						tensor.getBatchSize(),
+						tensor.getNumChannels(),
+						tensor.getHeight(),
+						tensor.getWidth()));
+			}
+			freeSnapshots.add(snapshot);
+		}
+	}
+
+	/**
+	 * Snapshots the weights and queues them to be written with the given state. Must not be
+	 * called while the weights are being updated. Returns false if the checkpoint was skipped
+	 * because the previous ones are still being written.
+	 */
+	boolean checkpoint(TrainingState state) {
+		List<Tensor> snapshot = freeSnapshots.poll();
+		if (snapshot == null) {
+			return false;
+		}
+		for (int i = 0; i < weights.size(); i++) {
+			ModelFile.copyValues(weights.get(i), snapshot.get(i));
+		}
+		writer.execute(() -> write(snapshot, state));
+		return true;
+	}
+
+	/** Waits for the queued checkpoints to be written. */
+	@Override
+	public void close() {
+		writer.shutdown();
+		try {
+			writer.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void write(List<Tensor> snapshot, TrainingState state) {
+		try {
+			ModelFile.write(file, header, snapshot, state);
+		} catch (IOException | RuntimeException e) {
+			System.err.println("Warning: cannot write the checkpoint " + file + ": " + e.getMessage());
+		} finally {
+			freeSnapshots.add(snapshot);
+		}
+	}
+}
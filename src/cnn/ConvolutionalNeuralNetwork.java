@@ -3,38 +3,73 @@ package cnn;
 import static cnn.tools.Util.checkNotEmpty;
 import static cnn.tools.Util.checkNotNull;
 import static cnn.tools.Util.checkPositive;
-import static cnn.tools.Util.tensorSubtract;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.SplittableRandom;
+import java.util.WeakHashMap;
+import java.util.function.DoubleSupplier;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 import cnn.components.ConvolutionLayer;
+import cnn.components.ConvolutionPoolingLayer;
 import cnn.components.FullyConnectedLayer;
-import cnn.components.Plate;
 import cnn.components.PlateLayer;
 import cnn.components.PoolingLayer;
+import cnn.components.Precision;
+import cnn.components.Tensor;
 import cnn.driver.Dataset;
 import cnn.driver.Instance;
+import cnn.driver.Labels;
+import cnn.driver.BatchSource;
+import cnn.driver.BatchStream;
 import cnn.tools.ActivationFunction;
+import cnn.tools.Kernels;
+import cnn.tools.RandomStreams;
 
 /**
  * A convolutional neural network that supports arbitrary convolutional and pooling layers,
  * followed by arbitrarily many fully-connected layers.
  */
 public class ConvolutionalNeuralNetwork {
+	// How many images each parallel task propagates at once when classifying in bulk.
+	private static final int INFERENCE_BATCH_SIZE = 32;
+	// How many batches of a streaming dataset are decoded ahead of training.
+	private static final int PREFETCH_BATCHES = 4;
+	
 	private final int inputHeight;
 	private final int inputWidth;
 	private final List<PlateLayer> plateLayers;
 	private final List<FullyConnectedLayer> fullyConnectedLayers;
 	private final List<String> classes;
+	private final int[] classIds;
 	private final int minEpochs;
 	private final int maxEpochs;
 	private final double learningRate;
+	private final int batchSize;
+	private final int numThreads;
 	private final boolean useRGB;
+	private final Precision precision;
+	private final File checkpointFile;
+	private final int checkpointEpochs;
+	private final int checkpointSeconds;
+	private final NetworkReplica model;
+	// Where the next call to train starts, if it resumes a checkpointed run.
+	private TrainingState trainingState = null;
+	// Sessions not in use by classify or predictProbabilities. Holding them here rather than in
+	// a ThreadLocal lets them be collected with the network.
+	private final Queue<InferenceSession> idleSessions = new ConcurrentLinkedQueue<>();
+	// Normalized inputs of the datasets this network has seen. Guarded by itself.
+	private final Map<Dataset, InputCache> inputCaches = new WeakHashMap<>();
 
-	private ConvolutionalNeuralNetwork(
+	ConvolutionalNeuralNetwork(
 			int inputHeight,
 			int inputWidth,
 			List<PlateLayer> plateLayers,
@@ -43,73 +78,270 @@ public class ConvolutionalNeuralNetwork {
 			int minEpochs,
 			int maxEpochs,
 			double learningRate,
-			boolean useRGB) {
+			int batchSize,
+			int numThreads,
+			boolean useRGB,
+			Precision precision,
+			File checkpointFile,
+			int checkpointEpochs,
+			int checkpointSeconds) {
 		this.inputHeight = inputHeight;
 		this.inputWidth = inputWidth;
 		this.plateLayers = plateLayers;
 		this.fullyConnectedLayers = fullyConnectedLayers;
 		this.classes = classes;
+		this.classIds = new int[classes.size()];
+		for (int i = 0; i < classes.size(); i++) {
+			classIds[i] = Labels.idOf(classes.get(i));
+		}
 		this.minEpochs = minEpochs;
 		this.maxEpochs = maxEpochs;
 		this.learningRate = learningRate;
+		this.batchSize = batchSize;
+		this.numThreads = numThreads;
 		this.useRGB = useRGB;
+		this.precision = precision;
+		this.checkpointFile = checkpointFile;
+		this.checkpointEpochs = checkpointEpochs;
+		this.checkpointSeconds = checkpointSeconds;
+		// Convolutions followed by max pooling run as one fused layer; the layers above are
+		// kept as configured, for saving and printing.
+		this.model = new NetworkReplica(ConvolutionPoolingLayer.fuse(plateLayers), fullyConnectedLayers);
 	}
 	
-	/** Trains the CNN with the given training data and tuning data. */
+	/**
+	 * Trains the CNN with the given training data and tuning data.
+	 * 
+	 * If more than one thread is configured, each mini-batch is split into one contiguous
+	 * chunk per thread, and each chunk is propagated by its own replica of the layers. The
+	 * replicas' gradients are summed in chunk order, so results are reproducible for a given
+	 * seed and thread count.
+	 *
+	 * The images are visited in a new random order every epoch. The order is a shuffled
+	 * permutation of indices into the dataset, so the dataset itself is left as it is.
+	 *
+	 * If a checkpoint file is set, the weights and the progress of training are saved to it
+	 * in the background as configured. After {@link #resume(File)}, training continues from
+	 * the checkpoint instead of starting over.
+	 */
 	public void train(Dataset trainSet, Dataset tuneSet, boolean verbose) {
-		Collections.shuffle(trainSet.getImages());
-		double prevAccuracy = 0.0;
-		double currAccuracy = 0.0;
-		for (int epoch = 1; epoch <= maxEpochs; epoch++) {
-			trainSingleEpoch(trainSet);
-			currAccuracy = test(tuneSet, false);
-			
-			if (verbose) {
-				System.out.printf(
-						"Epoch %d completed with train accuracy of %.9f and tune accuracy of %.9f\n",
-						epoch,
-						test(trainSet, false),
-						currAccuracy);
+		int[] order = new int[trainSet.getImages().size()];
+		train(
+				(shuffler, pool, workers) -> trainSingleEpoch(trainSet, order, shuffler, pool, workers),
+				trainSet,
+				() -> test(tuneSet, false),
+				verbose);
+	}
+
+	/**
+	 * Trains the CNN on data streamed from disk, one pass per epoch in the order the source
+	 * gives (a {@link cnn.driver.RecordDataset#shuffled()} source reorders every pass). The next
+	 * batches are read in the background while the current one trains. Otherwise the same as
+	 * {@link #train(Dataset, Dataset, boolean)}, except that the verbose output leaves out the
+	 * train accuracy, which would take another pass.
+	 */
+	public void train(BatchSource trainSet, Dataset tuneSet, boolean verbose) {
+		train(
+				(shuffler, pool, workers) -> trainSingleEpoch(trainSet, pool, workers),
+				null,
+				() -> test(tuneSet, false),
+				verbose);
+	}
+
+	/** Like {@link #train(BatchSource, Dataset, boolean)}, with the tune set streamed as well. */
+	public void train(BatchSource trainSet, BatchSource tuneSet, boolean verbose) {
+		train(
+				(shuffler, pool, workers) -> trainSingleEpoch(trainSet, pool, workers),
+				null,
+				() -> test(tuneSet, false),
+				verbose);
+	}
+
+	/**
+	 * Restores the weights and the progress of training from a checkpoint written while
+	 * training this network, or one built with the same classes and layers. The next call to
+	 * train continues the checkpointed run: it starts with the epoch after the last one saved,
+	 * shuffles the images as that run would have, and stops early by the same rule. Runs on
+	 * streamed data read the passes in whatever order the source gives.
+	 */
+	public void resume(File checkpoint) throws IOException {
+		checkNotNull(checkpoint, "Checkpoint file");
+		ConvolutionalNeuralNetwork saved = ModelFile.read(checkpoint);
+		ModelFile.copyWeights(saved, this);
+		trainingState = saved.trainingState;
+	}
+
+	/** Sets where the next call to train starts. Null starts from the first epoch. */
+	void setTrainingState(TrainingState trainingState) {
+		this.trainingState = trainingState;
+	}
+
+	/**
+	 * Trains one epoch and returns the number of images it trained on. Shuffles with the given
+	 * stream, which is derived from the run's shuffle seed and the epoch.
+	 */
+	private interface EpochTrainer {
+		int trainEpoch(SplittableRandom shuffler, ForkJoinPool pool, List<NetworkReplica> workers);
+	}
+
+	/** Runs epochs until the tune accuracy drops. trainSet may be null if it cannot be tested. */
+	private void train(EpochTrainer trainer, Dataset trainSet, DoubleSupplier tuneAccuracy, boolean verbose) {
+		TrainingState start = trainingState;
+		trainingState = null;
+		long shuffleSeed = start != null ? start.shuffleSeed : RandomStreams.next("shuffle").nextLong();
+		Checkpointer checkpointer = null;
+		if (checkpointFile != null) {
+			try {
+				checkpointer = new Checkpointer(this, checkpointFile);
+			} catch (IOException e) {
+				throw new IllegalStateException("Cannot checkpoint this network.", e);
 			}
+		}
 
-			if (currAccuracy < prevAccuracy && epoch >= minEpochs) {
-				break;
+		ForkJoinPool pool = null;
+		List<NetworkReplica> workers = new ArrayList<>(numThreads);
+		if (numThreads > 1) {
+			pool = new ForkJoinPool(numThreads);
+			for (int i = 0; i < numThreads; i++) {
+				workers.add(model.replicate());
 			}
-			
-			prevAccuracy = currAccuracy;
 		}
-	}
+		
+		try {
+			double prevAccuracy = start != null ? start.prevAccuracy : 0.0;
+			double currAccuracy = 0.0;
+			int epochsSinceCheckpoint = 0;
+			long lastCheckpoint = System.nanoTime();
+			for (int epoch = start != null ? start.epoch + 1 : 1; epoch <= maxEpochs; epoch++) {
+				long epochStart = System.nanoTime();
+				int numImages = trainer.trainEpoch(RandomStreams.forSeed(shuffleSeed, epoch), pool, workers);
+				double imagesPerSecond = numImages / ((System.nanoTime() - epochStart) / 1e9);
+				currAccuracy = tuneAccuracy.getAsDouble();
+				
+				if (verbose && trainSet != null) {
+					System.out.printf(
+							"Epoch %d completed with train accuracy of %.9f and tune accuracy of %.9f"
+									+ " (trained at %.1f images/sec)\n",
+							epoch,
+							test(trainSet, false),
+							currAccuracy,
+							imagesPerSecond);
+				} else if (verbose) {
+					System.out.printf(
+							"Epoch %d completed with tune accuracy of %.9f (trained at %.1f images/sec)\n",
+							epoch,
+							currAccuracy,
+							imagesPerSecond);
+				}
+	
+				if (currAccuracy < prevAccuracy && epoch >= minEpochs) {
+					break;
+				}
+				
+				prevAccuracy = currAccuracy;
 
-	/** Passes all images in the dataset through the network and backpropagates the errors. */
-	private void trainSingleEpoch(Dataset trainSet) {
-		for (Instance img : trainSet.getImages()) {
-			// First, forward propagate.
-			double[] output = computeOutput(img);
-			double[] correctOutput = labelToOneOfN(img.getLabel());
-			
-			// Compute initial deltas.
-			double[] fcError = tensorSubtract(output, correctOutput, false);
-			for (int i = 0; i < fcError.length; i++) {
-				fcError[i] *= ActivationFunction.SIGMOID.applyDerivative(output[i]);
+				epochsSinceCheckpoint++;
+				if (checkpointer != null
+						&& isCheckpointDue(epochsSinceCheckpoint, System.nanoTime() - lastCheckpoint)
+						&& checkpointer.checkpoint(new TrainingState(epoch, prevAccuracy, shuffleSeed))) {
+					epochsSinceCheckpoint = 0;
+					lastCheckpoint = System.nanoTime();
+				}
 			}
-			
-			// Then, propagate error through fully connected layers.
-			for (int i = fullyConnectedLayers.size() - 1; i >= 0; i--) {
-				fcError = fullyConnectedLayers.get(i).propagateError(fcError, learningRate);
+		} finally {
+			if (pool != null) {
+				pool.shutdown();
+			}
+			if (checkpointer != null) {
+				checkpointer.close();
+			}
+		}
+	}
+
+	/** Returns true if a checkpoint should be taken, given the time since the last one. */
+	private boolean isCheckpointDue(int epochsSinceCheckpoint, long nanosSinceCheckpoint) {
+		if (checkpointEpochs == 0 && checkpointSeconds == 0) {
+			return true;
+		}
+		return (checkpointEpochs > 0 && epochsSinceCheckpoint >= checkpointEpochs)
+				|| (checkpointSeconds > 0 && nanosSinceCheckpoint >= checkpointSeconds * 1_000_000_000L);
+	}
+
+	/**
+	 * Shuffles the images into the order, then passes them through the network in that order
+	 * and backpropagates the errors, updating the weights once per mini-batch.
+	 */
+	private int trainSingleEpoch(
+			Dataset trainSet,
+			int[] order,
+			SplittableRandom shuffler,
+			ForkJoinPool pool,
+			List<NetworkReplica> workers) {
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		RandomStreams.shuffle(order, shuffler);
+		InputCache inputs = inputsFor(trainSet);
+		List<Instance> images = trainSet.getImages();
+		List<Instance> batch = new ArrayList<>(batchSize);
+		for (int start = 0; start < order.length; start += batchSize) {
+			batch.clear();
+			for (int i = start; i < Math.min(start + batchSize, order.length); i++) {
+				batch.add(images.get(order[i]));
 			}
+			trainSingleBatch(batch, inputs, pool, workers);
+		}
+		return order.length;
+	}
 
-			// Finally, propagate error through plate layers.
-			if (plateLayers.size() > 0) {
-				ConvolutionLayer lastPlate = (ConvolutionLayer) plateLayers.get(plateLayers.size() - 1);
-				List<Plate> plateErrors = unpackPlates(
-						fcError,
-						lastPlate.getConvolutions().get(0).get(0).getHeight(),
-						lastPlate.getConvolutions().get(0).get(0).getWidth());
-				for (int i = plateLayers.size() - 1; i >= 0; i--) {
-                    plateErrors = plateLayers.get(i).propagateError(plateErrors, learningRate);
-                }
+	/** Streams one pass over the dataset, training on each batch as it arrives. */
+	private int trainSingleEpoch(BatchSource trainSet, ForkJoinPool pool, List<NetworkReplica> workers) {
+		int numImages = 0;
+		try (BatchStream batches = trainSet.openBatches(batchSize, PREFETCH_BATCHES)) {
+			while (batches.hasNext()) {
+				List<Instance> batch = batches.next();
+				trainSingleBatch(batch, null, pool, workers);
+				numImages += batch.size();
 			}
 		}
+		return numImages;
+	}
+
+	/** Backpropagates the batch and applies the average gradient over it. */
+	private void trainSingleBatch(
+			List<Instance> batch, InputCache inputs, ForkJoinPool pool, List<NetworkReplica> workers) {
+		if (pool == null) {
+			model.trainStep(
+					instancesToTensor(batch, inputs, model),
+					labelsToIndices(batch),
+					learningRate / batch.size());
+		} else {
+			trainSingleBatchInParallel(batch, inputs, pool, workers);
+			model.updateWeights(learningRate / batch.size());
+		}
+	}
+	
+	/**
+	 * Splits the batch into one chunk per worker, backpropagates the chunks concurrently, and
+	 * then sums the workers' gradients into the model in worker order.
+	 */
+	private void trainSingleBatchInParallel(
+			List<Instance> batch, InputCache inputs, ForkJoinPool pool, List<NetworkReplica> workers) {
+		int numChunks = Math.min(workers.size(), batch.size());
+		List<ForkJoinTask<?>> tasks = new ArrayList<>(numChunks);
+		for (int i = 0; i < numChunks; i++) {
+			NetworkReplica worker = workers.get(i);
+			List<Instance> chunk = batch.subList(
+					i * batch.size() / numChunks, (i + 1) * batch.size() / numChunks);
+			tasks.add(pool.submit(
+					() -> worker.backpropagate(instancesToTensor(chunk, inputs, worker), labelsToIndices(chunk))));
+		}
+		for (int i = 0; i < numChunks; i++) {
+			tasks.get(i).join();
+		}
+		for (int i = 0; i < numChunks; i++) {
+			model.addGradients(workers.get(i));
+		}
 	}
 	
 	/**
@@ -119,9 +351,11 @@ public class ConvolutionalNeuralNetwork {
 	 */
 	public double test(Dataset testSet, boolean verbose) {
 		int errCount = 0;
-		for (Instance img : testSet.getImages()) {
-			String predicted = classify(img);
-			if (!predicted.equals(img.getLabel())) {
+		int[] predictions = classifyBatch(testSet.getImages(), inputsFor(testSet));
+		for (int i = 0; i < predictions.length; i++) {
+			Instance img = testSet.getImages().get(i);
+			String predicted = classes.get(predictions[i]);
+			if (classIds[predictions[i]] != img.getClassId()) {
 				errCount++;
 			}
 			
@@ -137,38 +371,181 @@ public class ConvolutionalNeuralNetwork {
 		return accuracy;
 	}
 	
-	/** Returns the predicted label for the image. */
+	/**
+	 * Returns the prediction accuracy of this classifier on data streamed from disk, in one
+	 * pass. See {@link #test(Dataset, boolean)}.
+	 */
+	public double test(BatchSource testSet, boolean verbose) {
+		int errCount = 0;
+		int numImages = 0;
+		try (BatchStream batches = testSet.openBatches(INFERENCE_BATCH_SIZE, PREFETCH_BATCHES)) {
+			while (batches.hasNext()) {
+				List<Instance> batch = batches.next();
+				int[] predictions = classifyBatch(batch);
+				for (int i = 0; i < predictions.length; i++) {
+					if (classIds[predictions[i]] != batch.get(i).getClassId()) {
+						errCount++;
+					}
+					if (verbose) {
+						System.out.printf(
+								"Predicted: %s\t\tActual:%s\n", classes.get(predictions[i]), batch.get(i).getLabel());
+					}
+				}
+				numImages += batch.size();
+			}
+		}
+
+		double accuracy = ((double) (numImages - errCount)) / numImages;
+		if (verbose) {
+			System.out.printf("Final accuracy was %.9f\n", accuracy);
+		}
+		return accuracy;
+	}
+
+	/**
+	 * Returns the predicted label for the image.
+	 * 
+	 * Safe to call from many threads at once: each call borrows an idle
+	 * {@link InferenceSession}, or creates one if none is idle, and returns it when done.
+	 */
 	public String classify(Instance img) {
-		double[] probs = computeOutput(img);
-		double maxProb = -1;
+		InferenceSession session = takeSession();
+		try {
+			return session.classify(img);
+		} finally {
+			idleSessions.add(session);
+		}
+	}
+	
+	/**
+	 * Returns the index (into {@link #getClasses()}) of the predicted class of each instance.
+	 * 
+	 * The instances are split into batches that are classified in parallel on the common
+	 * fork/join pool.
+	 */
+	public int[] classifyBatch(List<Instance> instances) {
+		return classifyBatch(instances, null);
+	}
+
+	private int[] classifyBatch(List<Instance> instances, InputCache inputs) {
+		double[][] probs = predictProbabilities(instances, inputs);
+		int[] predictions = new int[probs.length];
+		for (int n = 0; n < probs.length; n++) {
+			predictions[n] = argMax(probs[n]);
+		}
+		return predictions;
+	}
+	
+	/**
+	 * Returns the output of the network for each instance: one row per instance, one column
+	 * per class (in the order of {@link #getClasses()}).
+	 * 
+	 * The instances are split into batches that are classified in parallel on the common
+	 * fork/join pool.
+	 */
+	public double[][] predictProbabilities(List<Instance> instances) {
+		return predictProbabilities(instances, null);
+	}
+
+	private double[][] predictProbabilities(List<Instance> instances, InputCache inputs) {
+		checkNotNull(instances, "Instances");
+		double[][] probs = new double[instances.size()][];
+		List<ForkJoinTask<?>> tasks = new ArrayList<>();
+		for (int start = 0; start < instances.size(); start += INFERENCE_BATCH_SIZE) {
+			int batchStart = start;
+			List<Instance> batch = instances.subList(
+					start, Math.min(start + INFERENCE_BATCH_SIZE, instances.size()));
+			tasks.add(ForkJoinPool.commonPool().submit(() -> {
+				InferenceSession session = takeSession();
+				try {
+					Tensor output = session.computeOutput(batch, inputs);
+					for (int n = 0; n < batch.size(); n++) {
+						probs[batchStart + n] = output.example(n).as1DArray();
+					}
+				} finally {
+					idleSessions.add(session);
+				}
+			}));
+		}
+		for (ForkJoinTask<?> task : tasks) {
+			task.join();
+		}
+		return probs;
+	}
+	
+	/** Returns an idle session, which the caller must give back to idleSessions when done. */
+	private InferenceSession takeSession() {
+		InferenceSession session = idleSessions.poll();
+		return session != null ? session : newInferenceSession();
+	}
+
+	/** Returns the index of the largest value. */
+	static int argMax(double[] values) {
+		double max = -1;
 		int bestIndex = -1;
-		for (int i = 0; i < probs.length; i++) {
-			if (probs[i] > maxProb) {
-				maxProb = probs[i];
+		for (int i = 0; i < values.length; i++) {
+			if (values[i] > max) {
+				max = values[i];
 				bestIndex = i;
 			}
 		}
-		return classes.get(bestIndex);
+		return bestIndex;
 	}
 	
 	/**
-	 * Propagates the image through the network and returns the last
-	 * (fully-connected) layer's output.
+	 * Returns a new session for classifying images from a single thread. Sessions share this
+	 * network's weights, so they see the effect of any later training.
 	 */
-	private double[] computeOutput(Instance img) {
-		// Pass the input through the plate layers first.
-		List<Plate> plates = Arrays.asList(instanceToPlate(img));
-		for (PlateLayer layer : plateLayers) {
-			plates = layer.computeOutput(plates);
-		}
-		
-		// Then pass the output through the fully connected layers.
-		double[] vec = packPlates(plates);
-		for (FullyConnectedLayer fcLayer : fullyConnectedLayers) {
-			vec = fcLayer.computeOutput(vec);
-		}
-		return vec;
+	public InferenceSession newInferenceSession() {
+		return new InferenceSession(this, model.replicate());
+	}
+	
+	/** Returns the classes this network predicts, in output order. */
+	public List<String> getClasses() {
+		return Collections.unmodifiableList(classes);
+	}
+
+	/**
+	 * Saves the settings, the weights and the classes of this network to the file, replacing
+	 * it atomically. Use {@link #load(File)} to read it back.
+	 */
+	public void save(File file) throws IOException {
+		checkNotNull(file, "Model file");
+		ModelFile.write(this, file);
+	}
+
+	/**
+	 * Loads a network saved with {@link #save(File)}. It classifies exactly as the saved
+	 * network did, and can be trained further. A checkpoint can be loaded too; see
+	 * {@link #resume(File)} for what training it then does. The loaded network does not
+	 * write checkpoints.
+	 */
+	public static ConvolutionalNeuralNetwork load(File file) throws IOException {
+		checkNotNull(file, "Model file");
+		return ModelFile.read(file);
 	}
+
+	int getInputHeight() { return inputHeight; }
+
+	int getInputWidth() { return inputWidth; }
+
+	List<PlateLayer> getPlateLayers() { return plateLayers; }
+
+	List<FullyConnectedLayer> getFullyConnectedLayers() { return fullyConnectedLayers; }
+
+	int getMinEpochs() { return minEpochs; }
+
+	int getMaxEpochs() { return maxEpochs; }
+
+	double getLearningRate() { return learningRate; }
+
+	int getBatchSize() { return batchSize; }
+
+	int getNumThreads() { return numThreads; }
+
+	boolean usesRGB() { return useRGB; }
+
+	Precision getPrecision() { return precision; }
 	
 	@Override
 	public String toString() {
@@ -183,7 +560,11 @@ public class ConvolutionalNeuralNetwork {
 						fullyConnectedLayers.size() - 1));
 		builder.append(
 				String.format("Predicts these classes: %s\n", classes));
+		builder.append(String.format("Batch size: %d\n", batchSize));
+		builder.append(String.format("Training threads: %d\n", numThreads));
 		builder.append(String.format("Using RGB: %b\n", useRGB));
+		builder.append(String.format("Precision: %s\n", precision));
+		builder.append(String.format("Kernels: %s\n", Kernels.get().getName()));
 		builder.append("\n//////\tNETWORK STRUCTURE\t//////\n");
 		if (plateLayers.isEmpty()) {
 			builder.append("\n------\tNo plate layers!\t------\n");
@@ -198,78 +579,88 @@ public class ConvolutionalNeuralNetwork {
 		return builder.toString();
 	}
 	
-	private double[] labelToOneOfN(String label) {
-		double[] correctOutput = new double[classes.size()];
-		correctOutput[classes.indexOf(label)] = 1;
-		return correctOutput;
+	/** Returns the index of each instance's label in the class list. */
+	private int[] labelsToIndices(List<Instance> instances) {
+		int[] indices = new int[instances.size()];
+		for (int n = 0; n < instances.size(); n++) {
+			indices[n] = indexOfClass(instances.get(n).getClassId());
+		}
+		return indices;
 	}
-	
-	private Plate[] instanceToPlate(Instance instance) {
-		if (useRGB) {
-			return new Plate[] {
-					new Plate(intImgToDoubleImg(instance.getRedChannel())),
-					new Plate(intImgToDoubleImg(instance.getBlueChannel())),
-					new Plate(intImgToDoubleImg(instance.getGreenChannel())),
-					new Plate(intImgToDoubleImg(instance.getGrayImage())),
-			};
-		} else {
-			return new Plate[] {new Plate(intImgToDoubleImg(instance.getGrayImage()))};
+
+	private int indexOfClass(int classId) {
+		for (int i = 0; i < classIds.length; i++) {
+			if (classIds[i] == classId) {
+				return i;
+			}
 		}
+		return -1;
 	}
-	
-	private static double[][] intImgToDoubleImg(int[][] intImg) {
-		double[][] dblImg = new double[intImg.length][intImg[0].length];
-		for (int i = 0; i < dblImg.length; i++) {
-			for (int j = 0; j < dblImg[i].length; j++) {
-				dblImg[i][j] = ((double) 255 - intImg[i][j]) / 255;
+
+	/**
+	 * Returns the normalized inputs of the dataset, building them on first use and again
+	 * whenever the dataset has changed size.
+	 */
+	private InputCache inputsFor(Dataset dataset) {
+		synchronized (inputCaches) {
+			InputCache inputs = inputCaches.get(dataset);
+			if (inputs == null || inputs.size() != dataset.getSize()) {
+				inputs = new InputCache(
+						dataset.getImages(), precision, useRGB ? 4 : 1, inputHeight, inputWidth, useRGB);
+				inputCaches.put(dataset, inputs);
 			}
+			return inputs;
 		}
-		return dblImg;
 	}
 	
-	/** 
-	 * Pack the plates into a single, 1D double array. Used to connect the plate layers
-	 * with the fully connected layers.
+	/**
+	 * Converts the instances to an NxCxHxW tensor, with one channel per color if RGB is used.
+	 * The tensor lives in the replica's input buffer. Instances found in the cache, which may
+	 * be null, are copied from it rather than normalized again.
 	 */
-	private static double[] packPlates(List<Plate> plates) {
-		checkNotEmpty(plates, "Plates to pack", false);
-		int flattenedPlateSize = plates.get(0).getTotalNumValues();
-		double[] result = new double[flattenedPlateSize * plates.size()];
-		for (int i = 0; i < plates.size(); i++) {
-			System.arraycopy(
-					plates.get(i).as1DArray(),
-					0 /* Copy the whole flattened plate! */,
-					result,
-					i * flattenedPlateSize,
-					flattenedPlateSize);
-		}
-		return result;
+	Tensor instancesToTensor(List<Instance> instances, InputCache inputs, NetworkReplica replica) {
+		Tensor tensor = replica.getInputBuffer().getZeroed(
+				precision, instances.size(), useRGB ? 4 : 1, inputHeight, inputWidth);
+		for (int n = 0; n < instances.size(); n++) {
+			if (inputs == null || !inputs.copyTo(instances.get(n), tensor, n)) {
+				writeInput(instances.get(n), tensor, n, useRGB);
+			}
+		}
+		return tensor;
 	}
-	
-	/** Unpack the 1D double array into a list of plates (3D double tensors). */
-	private static List<Plate> unpackPlates(double[] packedPlates, int plateHeight, int plateWidth) {
-		// TODO: Implement this method.
-        List<Plate> plates = new ArrayList<>();
-        int k = 0;
-        while (k < packedPlates.length) {
-      	  double[][] unpackedPlate = new double[plateHeight][plateWidth];
-      	  for (int i = 0; i < plateHeight; i++) {
-      		  for (int j = 0; j < plateWidth; j++) {
-      			  if (k < packedPlates.length) {
-      				  unpackedPlate[i][j] = packedPlates[k++];
-      			  } else {
-      				  throw new RuntimeException(
-      						  String.format(
-      								  "Dimensions error. %d values in packedPlates, specified plate dimensions were %dx%d",
-      								  packedPlates.length,
-      								  plateHeight,
-      								  plateWidth));
-      			  }
-      		  }
-      	  }
-      	  plates.add(new Plate(unpackedPlate));
-        }
-        return plates;
+
+	/**
+	 * Writes the normalized pixels of the instance into the given example of an all-zero
+	 * tensor: red, blue, green and gray channels if RGB is used, or gray alone.
+	 */
+	static void writeInput(Instance instance, Tensor tensor, int example, boolean useRGB) {
+		if (useRGB) {
+			writeChannel(instance, Instance.RED, tensor, example, 0);
+			writeChannel(instance, Instance.BLUE, tensor, example, 1);
+			writeChannel(instance, Instance.GREEN, tensor, example, 2);
+			writeGray(instance, tensor, example, 3);
+		} else {
+			writeGray(instance, tensor, example, 0);
+		}
+	}
+
+	private static void writeChannel(Instance instance, int color, Tensor tensor, int example, int channel) {
+		for (int i = 0; i < instance.getHeight(); i++) {
+			int start = tensor.indexOf(example, channel, i, 0) - tensor.getOffset();
+			for (int j = 0; j < instance.getWidth(); j++) {
+				tensor.set(start + j, ((double) 255 - instance.getValue(color, i, j)) / 255);
+			}
+		}
+	}
+
+	/** The gray image is blank (see {@link Instance#getGrayImage()}), which normalizes to 1. */
+	private static void writeGray(Instance instance, Tensor tensor, int example, int channel) {
+		for (int i = 0; i < instance.getHeight(); i++) {
+			int start = tensor.indexOf(example, channel, i, 0) - tensor.getOffset();
+			for (int j = 0; j < instance.getWidth(); j++) {
+				tensor.set(start + j, 1.0);
+			}
+		}
 	}
 	
 	/** Returns a new builder. */
@@ -287,7 +678,13 @@ public class ConvolutionalNeuralNetwork {
 		private int minEpochs = 0;
 		private int maxEpochs = 0;
 		private double learningRate = 0;
+		private int batchSize = 1;
+		private int numThreads = 1;
 		private boolean useRGB = true;
+		private Precision precision = Precision.DOUBLE;
+		private File checkpointFile = null;
+		private int checkpointEpochs = 0;
+		private int checkpointSeconds = 0;
 		
 		private Builder() {}
 		
@@ -360,11 +757,65 @@ public class ConvolutionalNeuralNetwork {
 			return this;
 		}
 		
+		/** Sets how many images are propagated together before each weight update. Defaults to 1. */
+		public Builder setBatchSize(int batchSize) {
+			checkPositive(batchSize, "Batch size", false);
+			this.batchSize = batchSize;
+			return this;
+		}
+		
+		/**
+		 * Sets how many threads split each mini-batch during training. Defaults to 1. Has
+		 * no effect unless the batch size is larger than 1.
+		 */
+		public Builder setNumThreads(int numThreads) {
+			checkPositive(numThreads, "Number of threads", false);
+			this.numThreads = numThreads;
+			return this;
+		}
+		
 		public Builder setUseRGB(boolean useRGB) {
 			this.useRGB = useRGB;
 			return this;
 		}
 		
+		/**
+		 * Sets the precision of all weights, activations and deltas. Defaults to double. Plate
+		 * layers built with another precision are converted.
+		 */
+		public Builder setPrecision(Precision precision) {
+			checkNotNull(precision, "Precision");
+			this.precision = precision;
+			return this;
+		}
+		
+		/**
+		 * Sets the file that training checkpoints are written to. Defaults to none. Unless an
+		 * interval is set, a checkpoint is written after every epoch.
+		 */
+		public Builder setCheckpointFile(File checkpointFile) {
+			checkNotNull(checkpointFile, "Checkpoint file");
+			this.checkpointFile = checkpointFile;
+			return this;
+		}
+		
+		/** Writes a checkpoint once this many epochs have passed since the last one. */
+		public Builder setCheckpointEveryEpochs(int epochs) {
+			checkPositive(epochs, "Checkpoint epochs", false);
+			this.checkpointEpochs = epochs;
+			return this;
+		}
+		
+		/**
+		 * Writes a checkpoint at the end of the first epoch that finishes this many seconds after
+		 * the last one. If an epoch interval is set too, whichever comes first applies.
+		 */
+		public Builder setCheckpointEverySeconds(int seconds) {
+			checkPositive(seconds, "Checkpoint seconds", false);
+			this.checkpointSeconds = seconds;
+			return this;
+		}
+		
 		public ConvolutionalNeuralNetwork build() {
 			// No check for nonemptyness of plate layers - if none provided, use fully connected.
 			checkNotNull(classes, "Classes");
@@ -378,6 +829,11 @@ public class ConvolutionalNeuralNetwork {
 			checkPositive(learningRate, "Learning rate", true);
 			// No check for useRGB. Just default to true.
 
+			List<PlateLayer> plateLayers = new ArrayList<>(this.plateLayers.size());
+			for (PlateLayer plateLayer : this.plateLayers) {
+				plateLayers.add(plateLayer.withPrecision(precision));
+			}
+
 			// Given input dimensions, determine how many plates will be output by
 			// the last plate layer, and the dimensions of those plates.
 			// Note that if there are no plate layers, then this result defaults to
@@ -396,11 +852,18 @@ public class ConvolutionalNeuralNetwork {
 			// Always have at least one hidden layer - add it first.
 			// TODO: Make the fully-connected activation function a parameter.
 			int numInputs = outputWidth * outputHeight * numOutputs;
-			numInputs = (plateLayers.size() > 0) ? numInputs * ((ConvolutionLayer) plateLayers.get(plateLayers.size() - 1)).getConvolutions().size(): numInputs;
+			// Pooling keeps the number of plates, so the last convolution layer decides it.
+			for (int i = plateLayers.size() - 1; i >= 0; i--) {
+				if (plateLayers.get(i) instanceof ConvolutionLayer) {
+					numInputs *= ((ConvolutionLayer) plateLayers.get(i)).getConvolutions().size();
+					break;
+				}
+			}
 			fullyConnectedLayers.add(FullyConnectedLayer.newBuilder()
 					.setActivationFunction(fcActivation)
 					.setNumInputs(numInputs)
 					.setNumNodes(fullyConnectedWidth)
+					.setPrecision(precision)
 					.build());
 			
 			// Add the other hidden layers.
@@ -409,6 +872,7 @@ public class ConvolutionalNeuralNetwork {
 						.setActivationFunction(fcActivation)
 						.setNumInputs(fullyConnectedWidth)
 						.setNumNodes(fullyConnectedWidth)
+						.setPrecision(precision)
 						.build());
 			}
 
@@ -417,6 +881,7 @@ public class ConvolutionalNeuralNetwork {
 					.setActivationFunction(ActivationFunction.SIGMOID)
 					.setNumInputs(fullyConnectedWidth)
 					.setNumNodes(classes.size())
+					.setPrecision(precision)
 					.build());
 			
 			return new ConvolutionalNeuralNetwork(
@@ -428,7 +893,13 @@ public class ConvolutionalNeuralNetwork {
 					minEpochs,
 					maxEpochs,
 					learningRate,
-					useRGB);
+					batchSize,
+					numThreads,
+					useRGB,
+					precision,
+					checkpointFile,
+					checkpointEpochs,
+					checkpointSeconds);
 		}
 	}
 }
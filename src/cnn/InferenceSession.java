@@ -0,0 +1,49 @@
+package cnn;
+
+import java.util.Collections;
+import java.util.List;
+
+import cnn.components.Tensor;
+import cnn.driver.Instance;
+
+/**
+ * Classifies images with a network from a single thread.
+ *
+ * A session shares the network's weights but owns every buffer written during the forward
+ * pass, so any number of sessions can classify at the same time without locking. A session
+ * itself is not thread-safe; give each thread its own (see
+ * {@link ConvolutionalNeuralNetwork#newInferenceSession()}).
+ */
+public final class InferenceSession {
+	private final ConvolutionalNeuralNetwork network;
+	private final NetworkReplica replica;
+
+	InferenceSession(ConvolutionalNeuralNetwork network, NetworkReplica replica) {
+		this.network = network;
+		this.replica = replica;
+	}
+
+	/** Returns the predicted label for the image. */
+	public String classify(Instance img) {
+		return network.getClasses().get(ConvolutionalNeuralNetwork.argMax(predictProbabilities(img)));
+	}
+
+	/** Returns the network's output for the image, one value per class. */
+	public double[] predictProbabilities(Instance img) {
+		return computeOutput(Collections.singletonList(img)).as1DArray();
+	}
+
+	/**
+	 * Propagates the images through the network as one batch and returns the last
+	 * (fully-connected) layer's output, one row per image. The output is only valid until
+	 * the next call.
+	 */
+	Tensor computeOutput(List<Instance> images) {
+		return computeOutput(images, null);
+	}
+
+	/** Like {@link #computeOutput(List)}, taking the inputs from the cache where it can. */
+	Tensor computeOutput(List<Instance> images, InputCache inputs) {
+		return replica.computeOutput(network.instancesToTensor(images, inputs, replica));
+	}
+}
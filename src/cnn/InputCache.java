@@ -0,0 +1,55 @@
+package cnn;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import cnn.components.Precision;
+import cnn.components.Tensor;
+import cnn.driver.Instance;
+
+/**
+ * The normalized network input of every instance in a dataset, computed once. Batches are
+ * filled by copying an instance's row out of the cache instead of normalizing its pixels
+ * again on every pass.
+ *
+ * Immutable once built, so any number of threads may copy from it at once.
+ */
+final class InputCache {
+	private final Map<Instance, Integer> rows = new IdentityHashMap<>();
+	private final Tensor inputs;
+
+	InputCache(List<Instance> instances, Precision precision, int numChannels, int height, int width, boolean useRGB) {
+		inputs = new Tensor(precision, instances.size(), numChannels, height, width);
+		for (int n = 0; n < instances.size(); n++) {
+			rows.put(instances.get(n), n);
+			ConvolutionalNeuralNetwork.writeInput(instances.get(n), inputs, n, useRGB);
+		}
+	}
+
+	/** Returns the number of instances this cache was built from. */
+	int size() {
+		return inputs.getBatchSize();
+	}
+
+	/**
+	 * Copies the cached input of the instance into the given example of the tensor, which must
+	 * have the cache's precision and example shape. Returns false, copying nothing, if the
+	 * instance is not in the cache.
+	 */
+	boolean copyTo(Instance instance, Tensor tensor, int example) {
+		Integer row = rows.get(instance);
+		if (row == null) {
+			return false;
+		}
+		int exampleSize = inputs.getExampleSize();
+		int from = inputs.indexOf(row, 0, 0, 0);
+		int to = tensor.indexOf(example, 0, 0, 0);
+		if (inputs.getPrecision() == Precision.FLOAT) {
+			System.arraycopy(inputs.getFloatValues(), from, tensor.getFloatValues(), to, exampleSize);
+		} else {
+			System.arraycopy(inputs.getValues(), from, tensor.getValues(), to, exampleSize);
+		}
+		return true;
+	}
+}
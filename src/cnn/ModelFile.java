@@ -0,0 +1,400 @@
+package cnn;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import cnn.components.ConvolutionAlgorithm;
+import cnn.components.ConvolutionLayer;
+import cnn.components.FullyConnectedLayer;
+import cnn.components.PlateLayer;
+import cnn.components.PoolingLayer;
+import cnn.components.PoolingType;
+import cnn.components.Precision;
+import cnn.components.Tensor;
+import cnn.tools.ActivationFunction;
+
+/**
+ * The binary file a {@link ConvolutionalNeuralNetwork} is saved to.
+ *
+ * Everything is little-endian. The file starts with a header: the magic number "CNNM", the
+ * format version, the builder settings (precision, input size, RGB, epochs, learning rate,
+ * batch size, threads), the class names, and the shape of every layer. Strings are stored as
+ * an int length followed by UTF-8 bytes. The header is padded to a multiple of 8 bytes, and
+ * the weights follow as raw doubles or floats, in layer order: each convolution layer's
+ * kernels, then each fully connected layer's weights and offsets. Last comes an int that is 1
+ * if the file is a training checkpoint, followed by the {@link TrainingState}: the epochs
+ * completed (int), the last tune accuracy (double) and the shuffle seed (long). Version 1
+ * files end with the weights. Before version 3, a pooling layer's shape is just its window
+ * size: all pooling was max pooling with the stride equal to the window.
+ *
+ * Loading memory-maps the file and copies each weight tensor out in one bulk transfer, so
+ * there is nothing to parse beyond the header.
+ */
+final class ModelFile {
+	private static final int MAGIC = 0x4d4e4e43; // "CNNM" in little-endian order.
+	private static final int VERSION = 3;
+	private static final int CONVOLUTION_LAYER = 1;
+	private static final int POOLING_LAYER = 2;
+
+	private ModelFile() {}
+
+	/** Writes the network to a temporary file, then moves it into place. */
+	static void write(ConvolutionalNeuralNetwork network, File file) throws IOException {
+		write(file, header(network), weightTensors(network), null);
+	}
+
+	/**
+	 * Writes a file with the given header (see {@link #header}) and weights (in the order of
+	 * {@link #weightTensors}) to a temporary file, then moves it into place. The state is null
+	 * unless the file is a checkpoint.
+	 */
+	static void write(File file, byte[] header, List<Tensor> tensors, TrainingState state)
+			throws IOException {
+		long size = header.length + Integer.BYTES;
+		for (Tensor tensor : tensors) {
+			size += (long) tensor.getTotalNumValues() * bytesPerValue(tensor.getPrecision());
+		}
+		if (state != null) {
+			size += Integer.BYTES + Double.BYTES + Long.BYTES;
+		}
+		if (size > Integer.MAX_VALUE) {
+			throw new IOException("Cannot save a network of more than 2GB.");
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.put(header);
+		for (Tensor tensor : tensors) {
+			putValues(buffer, tensor);
+		}
+		buffer.putInt(state != null ? 1 : 0);
+		if (state != null) {
+			buffer.putInt(state.epoch);
+			buffer.putDouble(state.prevAccuracy);
+			buffer.putLong(state.shuffleSeed);
+		}
+
+		File dir = file.getAbsoluteFile().getParentFile();
+		File temp = File.createTempFile("." + file.getName(), ".tmp", dir);
+		try {
+			Files.write(temp.toPath(), buffer.array());
+			Files.move(
+					temp.toPath(),
+					file.toPath(),
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temp.toPath());
+		}
+	}
+
+	/**
+	 * Reads a network written by {@link #write}. A checkpoint's training state is handed to the
+	 * network, so that training it continues the checkpointed run.
+	 */
+	static ConvolutionalNeuralNetwork read(File file) throws IOException {
+		MappedByteBuffer buffer;
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+				FileChannel channel = raf.getChannel()) {
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		try {
+			return read(buffer);
+		} catch (RuntimeException e) {
+			// A truncated or corrupt file.
+			throw new IOException("Cannot read the model file " + file + ": " + e, e);
+		}
+	}
+
+	private static ConvolutionalNeuralNetwork read(ByteBuffer buffer) throws IOException {
+		if (buffer.getInt() != MAGIC) {
+			throw new IOException("Not a model file.");
+		}
+		int version = buffer.getInt();
+		if (version < 1 || version > VERSION) {
+			throw new IOException("Unsupported model file version " + version + ".");
+		}
+		Precision precision = Precision.valueOf(getString(buffer));
+		int inputHeight = buffer.getInt();
+		int inputWidth = buffer.getInt();
+		boolean useRGB = buffer.getInt() != 0;
+		int minEpochs = buffer.getInt();
+		int maxEpochs = buffer.getInt();
+		double learningRate = buffer.getDouble();
+		int batchSize = buffer.getInt();
+		int numThreads = buffer.getInt();
+		List<String> classes = new ArrayList<>();
+		for (int i = buffer.getInt(); i > 0; i--) {
+			classes.add(getString(buffer));
+		}
+
+		// The shapes come first and the weights after, so build each layer's tensors now and
+		// fill them once the header is read.
+		List<Tensor> tensors = new ArrayList<>();
+		List<PlateLayer> plateLayers = new ArrayList<>();
+		for (int i = buffer.getInt(); i > 0; i--) {
+			int type = buffer.getInt();
+			if (type == CONVOLUTION_LAYER) {
+				ConvolutionAlgorithm algorithm = ConvolutionAlgorithm.valueOf(getString(buffer));
+				Tensor kernels = new Tensor(
+						precision, buffer.getInt(), buffer.getInt(), buffer.getInt(), buffer.getInt());
+				tensors.add(kernels);
+				plateLayers.add(ConvolutionLayer.newBuilder()
+						.setKernels(kernels)
+						.setConvolutionAlgorithm(algorithm)
+						.build());
+			} else if (type == POOLING_LAYER) {
+				plateLayers.add(version >= 3 ? getPoolingLayer(buffer) : PoolingLayer.newBuilder()
+						.setWindowSize(buffer.getInt(), buffer.getInt())
+						.build());
+			} else {
+				throw new IOException("Unknown plate layer type " + type + ".");
+			}
+		}
+		List<FullyConnectedLayer> fullyConnectedLayers = new ArrayList<>();
+		for (int i = buffer.getInt(); i > 0; i--) {
+			ActivationFunction activation = ActivationFunction.valueOf(getString(buffer));
+			int numInputs = buffer.getInt();
+			int numNodes = buffer.getInt();
+			Tensor weights = new Tensor(precision, 1, 1, numNodes, numInputs);
+			Tensor offsets = new Tensor(precision, 1, 1, 1, numNodes);
+			tensors.add(weights);
+			tensors.add(offsets);
+			fullyConnectedLayers.add(FullyConnectedLayer.newBuilder()
+					.setActivationFunction(activation)
+					.setWeights(weights, offsets)
+					.build());
+		}
+
+		buffer.position(align(buffer.position()));
+		for (Tensor tensor : tensors) {
+			getValues(buffer, tensor);
+		}
+		TrainingState state = null;
+		if (version >= 2 && buffer.getInt() != 0) {
+			state = new TrainingState(buffer.getInt(), buffer.getDouble(), buffer.getLong());
+		}
+		if (buffer.hasRemaining()) {
+			throw new IOException("The model file has " + buffer.remaining() + " extra bytes.");
+		}
+
+		ConvolutionalNeuralNetwork network = new ConvolutionalNeuralNetwork(
+				inputHeight,
+				inputWidth,
+				plateLayers,
+				fullyConnectedLayers,
+				Collections.unmodifiableList(classes),
+				minEpochs,
+				maxEpochs,
+				learningRate,
+				batchSize,
+				numThreads,
+				useRGB,
+				precision,
+				null /* checkpointFile */,
+				0 /* checkpointEpochs */,
+				0 /* checkpointSeconds */);
+		network.setTrainingState(state);
+		return network;
+	}
+
+	/**
+	 * Copies the weights of one network into another with the same classes and weight shapes,
+	 * or throws if they differ. Other settings, such as the number of epochs, may differ.
+	 */
+	static void copyWeights(ConvolutionalNeuralNetwork from, ConvolutionalNeuralNetwork to)
+			throws IOException {
+		List<Tensor> sources = weightTensors(from);
+		List<Tensor> destinations = weightTensors(to);
+		boolean matches = from.getClasses().equals(to.getClasses())
+				&& sources.size() == destinations.size();
+		for (int i = 0; matches && i < sources.size(); i++) {
+			matches = sources.get(i).hasSameShape(destinations.get(i))
+					&& sources.get(i).getPrecision() == destinations.get(i).getPrecision();
+		}
+		if (!matches) {
+			throw new IOException("The saved network does not have the same classes and layers.");
+		}
+		for (int i = 0; i < sources.size(); i++) {
+			copyValues(sources.get(i), destinations.get(i));
+		}
+		for (PlateLayer layer : to.getPlateLayers()) {
+			if (layer instanceof ConvolutionLayer) {
+				((ConvolutionLayer) layer).kernelsChanged();
+			}
+		}
+	}
+
+	/** Copies the values of a tensor into another of the same size and precision. */
+	static void copyValues(Tensor from, Tensor to) {
+		if (from.getPrecision() == Precision.DOUBLE) {
+			System.arraycopy(
+					from.getValues(), from.getOffset(), to.getValues(), to.getOffset(), from.getTotalNumValues());
+		} else {
+			System.arraycopy(
+					from.getFloatValues(),
+					from.getOffset(),
+					to.getFloatValues(),
+					to.getOffset(),
+					from.getTotalNumValues());
+		}
+	}
+
+	/** Returns the header, padded to a multiple of 8 bytes. */
+	static byte[] header(ConvolutionalNeuralNetwork network) throws IOException {
+		List<byte[]> strings = new ArrayList<>();
+		strings.add(bytes(network.getPrecision().name()));
+		for (String name : network.getClasses()) {
+			strings.add(bytes(name));
+		}
+		int size = 12 * Integer.BYTES + Double.BYTES;
+		for (PlateLayer layer : network.getPlateLayers()) {
+			if (layer instanceof ConvolutionLayer) {
+				strings.add(bytes(((ConvolutionLayer) layer).getConvolutionAlgorithm().name()));
+				size += 5 * Integer.BYTES;
+			} else if (layer instanceof PoolingLayer) {
+				strings.add(bytes(((PoolingLayer) layer).getPoolingType().name()));
+				size += 6 * Integer.BYTES;
+			} else {
+				throw new IOException("Cannot save a " + layer.getClass().getSimpleName() + ".");
+			}
+		}
+		for (FullyConnectedLayer layer : network.getFullyConnectedLayers()) {
+			strings.add(bytes(layer.getActivationFunction().name()));
+			size += 2 * Integer.BYTES;
+		}
+		for (byte[] string : strings) {
+			size += Integer.BYTES + string.length;
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(align(size)).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.putInt(MAGIC);
+		buffer.putInt(VERSION);
+		putString(buffer, network.getPrecision().name());
+		buffer.putInt(network.getInputHeight());
+		buffer.putInt(network.getInputWidth());
+		buffer.putInt(network.usesRGB() ? 1 : 0);
+		buffer.putInt(network.getMinEpochs());
+		buffer.putInt(network.getMaxEpochs());
+		buffer.putDouble(network.getLearningRate());
+		buffer.putInt(network.getBatchSize());
+		buffer.putInt(network.getNumThreads());
+		buffer.putInt(network.getClasses().size());
+		for (String name : network.getClasses()) {
+			putString(buffer, name);
+		}
+		buffer.putInt(network.getPlateLayers().size());
+		for (PlateLayer layer : network.getPlateLayers()) {
+			if (layer instanceof ConvolutionLayer) {
+				ConvolutionLayer convolution = (ConvolutionLayer) layer;
+				buffer.putInt(CONVOLUTION_LAYER);
+				putString(buffer, convolution.getConvolutionAlgorithm().name());
+				buffer.putInt(convolution.numConvolutions());
+				buffer.putInt(convolution.getConvolutionDepth());
+				buffer.putInt(convolution.getConvolutionHeight());
+				buffer.putInt(convolution.getConvolutionWidth());
+			} else {
+				PoolingLayer pooling = (PoolingLayer) layer;
+				buffer.putInt(POOLING_LAYER);
+				putString(buffer, pooling.getPoolingType().name());
+				buffer.putInt(pooling.isGlobal() ? 1 : 0);
+				buffer.putInt(pooling.getWindowHeight());
+				buffer.putInt(pooling.getWindowWidth());
+				buffer.putInt(pooling.getStrideHeight());
+				buffer.putInt(pooling.getStrideWidth());
+			}
+		}
+		buffer.putInt(network.getFullyConnectedLayers().size());
+		for (FullyConnectedLayer layer : network.getFullyConnectedLayers()) {
+			putString(buffer, layer.getActivationFunction().name());
+			buffer.putInt(layer.getNumInputs());
+			buffer.putInt(layer.getNumNodes());
+		}
+		return buffer.array();
+	}
+
+	/** Returns the tensors whose values follow the header, in file order. */
+	static List<Tensor> weightTensors(ConvolutionalNeuralNetwork network) {
+		List<Tensor> tensors = new ArrayList<>();
+		for (PlateLayer layer : network.getPlateLayers()) {
+			if (layer instanceof ConvolutionLayer) {
+				tensors.add(((ConvolutionLayer) layer).getKernels());
+			}
+		}
+		for (FullyConnectedLayer layer : network.getFullyConnectedLayers()) {
+			tensors.add(layer.getWeights());
+			tensors.add(layer.getOffsets());
+		}
+		return tensors;
+	}
+
+	/** Reads a pooling layer's type, global flag, window size and stride. */
+	private static PoolingLayer getPoolingLayer(ByteBuffer buffer) {
+		PoolingLayer.Builder builder = PoolingLayer.newBuilder()
+				.setPoolingType(PoolingType.valueOf(getString(buffer)))
+				.setGlobal(buffer.getInt() != 0);
+		int windowHeight = buffer.getInt();
+		int windowWidth = buffer.getInt();
+		int strideHeight = buffer.getInt();
+		int strideWidth = buffer.getInt();
+		if (windowHeight > 0) {
+			builder.setWindowSize(windowHeight, windowWidth).setStride(strideHeight, strideWidth);
+		}
+		return builder.build();
+	}
+
+	private static void putValues(ByteBuffer buffer, Tensor tensor) {
+		int length = tensor.getTotalNumValues();
+		if (tensor.getPrecision() == Precision.DOUBLE) {
+			buffer.asDoubleBuffer().put(tensor.getValues(), tensor.getOffset(), length);
+		} else {
+			buffer.asFloatBuffer().put(tensor.getFloatValues(), tensor.getOffset(), length);
+		}
+		buffer.position(buffer.position() + length * bytesPerValue(tensor.getPrecision()));
+	}
+
+	private static void getValues(ByteBuffer buffer, Tensor tensor) {
+		int length = tensor.getTotalNumValues();
+		if (tensor.getPrecision() == Precision.DOUBLE) {
+			buffer.asDoubleBuffer().get(tensor.getValues(), tensor.getOffset(), length);
+		} else {
+			buffer.asFloatBuffer().get(tensor.getFloatValues(), tensor.getOffset(), length);
+		}
+		buffer.position(buffer.position() + length * bytesPerValue(tensor.getPrecision()));
+	}
+
+	private static int bytesPerValue(Precision precision) {
+		return precision == Precision.DOUBLE ? Double.BYTES : Float.BYTES;
+	}
+
+	/** Rounds up to a multiple of 8, so that the weights are aligned for bulk reads. */
+	private static int align(int position) {
+		return (position + 7) & ~7;
+	}
+
+	private static byte[] bytes(String string) {
+		return string.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static void putString(ByteBuffer buffer, String string) {
+		byte[] bytes = bytes(string);
+		buffer.putInt(bytes.length).put(bytes);
+	}
+
+	private static String getString(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.getInt()];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
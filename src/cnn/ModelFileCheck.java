@@ -0,0 +1,140 @@
+package cnn;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+
+import cnn.components.ConvolutionAlgorithm;
+import cnn.components.ConvolutionLayer;
+import cnn.components.PoolingLayer;
+import cnn.components.Precision;
+import cnn.driver.Instance;
+import cnn.tools.ActivationFunction;
+
+/**
+ * Checks that a network survives {@link ConvolutionalNeuralNetwork#save} and
+ * {@link ConvolutionalNeuralNetwork#load} unchanged, in both precisions: the loaded network's
+ * {@link ConvolutionalNeuralNetwork#predictProbabilities} must be bit-identical to the
+ * original's, and saving it again must write the same bytes. Also checks that loading a
+ * truncated file, or one with the wrong magic number, throws an {@link IOException}.
+ *
+ * Run as a program; exits with status 1 if any check fails:
+ * java cnn.ModelFileCheck
+ */
+public final class ModelFileCheck {
+	private static final int IMAGE_SIZE = 16;
+	private static final int NUM_IMAGES = 20;
+	private static final List<String> CLASSES = Arrays.asList("first", "second", "third");
+
+	private ModelFileCheck() {}
+
+	public static void main(String[] args) throws IOException {
+		List<Instance> images = randomImages(new SplittableRandom(1));
+		boolean passed = true;
+		for (Precision precision : Precision.values()) {
+			passed &= check(precision, images);
+		}
+		if (!passed) {
+			System.exit(1);
+		}
+	}
+
+	private static boolean check(Precision precision, List<Instance> images) throws IOException {
+		ConvolutionalNeuralNetwork network = ConvolutionalNeuralNetwork.newBuilder()
+				.setInputHeight(IMAGE_SIZE)
+				.setInputWidth(IMAGE_SIZE)
+				.appendConvolutionLayer(ConvolutionLayer.newBuilder()
+						.setConvolutionSize(4, 5, 5)
+						.setNumConvolutions(6)
+						.setConvolutionAlgorithm(ConvolutionAlgorithm.FFT)
+						.build())
+				.appendPoolingLayer(PoolingLayer.newBuilder().setWindowSize(2, 2).build())
+				.appendConvolutionLayer(ConvolutionLayer.newBuilder()
+						.setConvolutionSize(1, 3, 3)
+						.setNumConvolutions(8)
+						.build())
+				.setFullyConnectedDepth(2)
+				.setFullyConnectedWidth(20)
+				.setFullyConnectedActivationFunction(ActivationFunction.RELU)
+				.setClasses(CLASSES)
+				.setMinEpochs(1)
+				.setMaxEpochs(1)
+				.setLearningRate(0.01)
+				.setBatchSize(4)
+				.setPrecision(precision)
+				.build();
+
+		File file = File.createTempFile("model-file-check", ".cnn");
+		File resaved = File.createTempFile("model-file-check", ".cnn");
+		File corrupt = File.createTempFile("model-file-check", ".cnn");
+		try {
+			network.save(file);
+			ConvolutionalNeuralNetwork loaded = ConvolutionalNeuralNetwork.load(file);
+			boolean samePredictions = Arrays.deepEquals(
+					network.predictProbabilities(images), loaded.predictProbabilities(images));
+			loaded.save(resaved);
+			byte[] bytes = Files.readAllBytes(file.toPath());
+			boolean sameBytes = Arrays.equals(bytes, Files.readAllBytes(resaved.toPath()));
+
+			// Cut inside the header, and inside the weights.
+			Files.write(corrupt.toPath(), Arrays.copyOf(bytes, 10));
+			boolean rejectsTruncatedHeader = throwsIOException(corrupt);
+			Files.write(corrupt.toPath(), Arrays.copyOf(bytes, bytes.length - 3));
+			boolean rejectsTruncatedWeights = throwsIOException(corrupt);
+			byte[] badMagic = bytes.clone();
+			badMagic[0] ^= 1;
+			Files.write(corrupt.toPath(), badMagic);
+			boolean rejectsBadMagic = throwsIOException(corrupt);
+
+			boolean passed = samePredictions
+					&& sameBytes
+					&& rejectsTruncatedHeader
+					&& rejectsTruncatedWeights
+					&& rejectsBadMagic;
+			System.out.printf(
+					"%s: same predictions %b, same bytes when saved again %b, rejects truncated"
+							+ " header %b, truncated weights %b, bad magic number %b%s%n",
+					precision,
+					samePredictions,
+					sameBytes,
+					rejectsTruncatedHeader,
+					rejectsTruncatedWeights,
+					rejectsBadMagic,
+					passed ? "" : "  FAILED");
+			return passed;
+		} finally {
+			file.delete();
+			resaved.delete();
+			corrupt.delete();
+		}
+	}
+
+	private static boolean throwsIOException(File file) {
+		try {
+			ConvolutionalNeuralNetwork.load(file);
+			return false;
+		} catch (IOException e) {
+			return true;
+		}
+	}
+
+	private static List<Instance> randomImages(SplittableRandom random) {
+		List<Instance> images = new ArrayList<>();
+		for (int n = 0; n < NUM_IMAGES; n++) {
+			int[][][] image = new int[3][IMAGE_SIZE][IMAGE_SIZE];
+			for (int[][] channel : image) {
+				for (int[] row : channel) {
+					for (int j = 0; j < row.length; j++) {
+						row[j] = random.nextInt(256);
+					}
+				}
+			}
+			images.add(new Instance(image, CLASSES.get(n % CLASSES.size())));
+		}
+		return images;
+	}
+}
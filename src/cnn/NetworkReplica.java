@@ -0,0 +1,156 @@
+package cnn;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import cnn.components.FullyConnectedLayer;
+import cnn.components.PlateLayer;
+import cnn.components.Tensor;
+import cnn.components.TensorBuffer;
+import cnn.tools.ActivationFunction;
+
+/**
+ * The network's layers, as seen by a single thread.
+ *
+ * Replicas made with {@link #replicate()} share the original layers' weights but own their
+ * forward state and gradient buffers, so several threads can propagate different examples
+ * at the same time. Their gradients are then summed back into the original.
+ */
+final class NetworkReplica {
+	private final List<PlateLayer> plateLayers;
+	private final List<FullyConnectedLayer> fullyConnectedLayers;
+	private final TensorBuffer inputBuffer = new TensorBuffer();
+	private final TensorBuffer errorBuffer = new TensorBuffer();
+
+	NetworkReplica(List<PlateLayer> plateLayers, List<FullyConnectedLayer> fullyConnectedLayers) {
+		this.plateLayers = plateLayers;
+		this.fullyConnectedLayers = fullyConnectedLayers;
+	}
+
+	/** Returns a replica that shares this one's weights. */
+	NetworkReplica replicate() {
+		List<PlateLayer> plateReplicas = new ArrayList<>(plateLayers.size());
+		for (PlateLayer layer : plateLayers) {
+			plateReplicas.add(layer.replicate());
+		}
+		List<FullyConnectedLayer> fcReplicas = new ArrayList<>(fullyConnectedLayers.size());
+		for (FullyConnectedLayer layer : fullyConnectedLayers) {
+			fcReplicas.add(layer.replicate());
+		}
+		return new NetworkReplica(plateReplicas, fcReplicas);
+	}
+
+	/** Returns the buffer that batches are converted into before they enter this replica. */
+	TensorBuffer getInputBuffer() {
+		return inputBuffer;
+	}
+
+	/**
+	 * Propagates the input through the network and returns the last layer's output. Each
+	 * layer reuses its output buffer, so the output is only valid until the next call.
+	 */
+	Tensor computeOutput(Tensor input) {
+		return computeFullyConnectedOutput(computePlateOutput(input));
+	}
+
+	/** Passes the input through the plate layers. */
+	Tensor computePlateOutput(Tensor input) {
+		Tensor plates = input;
+		for (PlateLayer layer : plateLayers) {
+			plates = layer.computeOutput(plates);
+		}
+		return plates;
+	}
+
+	/**
+	 * Passes the plate layers' output through the fully connected layers. Flattening the
+	 * plates is only a view, so this does not copy anything.
+	 */
+	Tensor computeFullyConnectedOutput(Tensor plates) {
+		Tensor vec = plates.flatten();
+		for (FullyConnectedLayer fcLayer : fullyConnectedLayers) {
+			vec = fcLayer.computeOutput(vec);
+		}
+		return vec;
+	}
+
+	/**
+	 * Propagates the input forward, then backpropagates the errors against the correct class
+	 * indices, accumulating gradients in every layer.
+	 */
+	void backpropagate(Tensor input, int[] correctIndices) {
+		// First, forward propagate.
+		Tensor plates = computePlateOutput(input);
+		Tensor fcError = computeOutputError(computeFullyConnectedOutput(plates), correctIndices);
+
+		// Then, propagate error through fully connected layers.
+		for (int i = fullyConnectedLayers.size() - 1; i >= 0; i--) {
+			fcError = fullyConnectedLayers.get(i).propagateError(fcError);
+		}
+
+		// Finally, propagate error through plate layers. The fully connected deltas are
+		// just a flattened view of the last plate layer's output, so unflatten them.
+		Tensor plateErrors = fcError.reshapeAs(plates);
+		for (int i = plateLayers.size() - 1; i >= 0; i--) {
+			plateErrors = plateLayers.get(i).propagateError(plateErrors);
+		}
+	}
+
+	/**
+	 * Does the work of {@link #backpropagate} followed by {@link #updateWeights}, but the fully
+	 * connected layers update their weights while propagating their errors, without gradient
+	 * buffers. Only for a replica that no other replica adds its gradients to.
+	 */
+	void trainStep(Tensor input, int[] correctIndices, double learningRate) {
+		Tensor plates = computePlateOutput(input);
+		Tensor fcError = computeOutputError(computeFullyConnectedOutput(plates), correctIndices);
+		for (int i = fullyConnectedLayers.size() - 1; i >= 0; i--) {
+			fcError = fullyConnectedLayers.get(i).propagateErrorAndUpdate(fcError, learningRate);
+		}
+		Tensor plateErrors = fcError.reshapeAs(plates);
+		for (int i = plateLayers.size() - 1; i >= 0; i--) {
+			plateErrors = plateLayers.get(i).propagateError(plateErrors);
+		}
+		for (PlateLayer plateLayer : plateLayers) {
+			plateLayer.updateWeights(learningRate);
+		}
+	}
+
+	/** Returns the deltas of the output layer, given its output and the correct classes. */
+	private Tensor computeOutputError(Tensor output, int[] correctIndices) {
+		int numClasses = output.getExampleSize();
+		// Every value is written below, so the buffer need not be cleared.
+		Tensor fcError = errorBuffer.get(output.getPrecision(), output.getBatchSize(), 1, 1, numClasses);
+		for (int n = 0; n < correctIndices.length; n++) {
+			for (int i = 0; i < numClasses; i++) {
+				int index = n * numClasses + i;
+				double correctOutput = (i == correctIndices[n]) ? 1 : 0;
+				fcError.set(
+						index,
+						(output.get(index) - correctOutput)
+								* ActivationFunction.SIGMOID.applyDerivative(output.get(index)));
+			}
+		}
+		return fcError;
+	}
+
+	/** Adds the replica's accumulated gradients to this one's, and clears the replica's. */
+	void addGradients(NetworkReplica replica) {
+		for (int i = 0; i < plateLayers.size(); i++) {
+			plateLayers.get(i).addGradients(replica.plateLayers.get(i));
+		}
+		for (int i = 0; i < fullyConnectedLayers.size(); i++) {
+			fullyConnectedLayers.get(i).addGradients(replica.fullyConnectedLayers.get(i));
+		}
+	}
+
+	/** Applies and then clears the accumulated gradients in every layer. */
+	void updateWeights(double learningRate) {
+		for (FullyConnectedLayer fcLayer : fullyConnectedLayers) {
+			fcLayer.updateWeights(learningRate);
+		}
+		for (PlateLayer plateLayer : plateLayers) {
+			plateLayer.updateWeights(learningRate);
+		}
+	}
+}
@@ -0,0 +1,17 @@
+package cnn;
+
+/** How far a training run got: what a checkpoint needs besides the weights to resume it. */
+final class TrainingState {
+	/** The number of epochs completed. */
+	final int epoch;
+	/** The tune accuracy after the last completed epoch, which the next one must not fall below. */
+	final double prevAccuracy;
+	/** The seed every epoch's shuffle order is derived from. */
+	final long shuffleSeed;
+
+	TrainingState(int epoch, double prevAccuracy, long shuffleSeed) {
+		this.epoch = epoch;
+		this.prevAccuracy = prevAccuracy;
+		this.shuffleSeed = shuffleSeed;
+	}
+}
@@ -0,0 +1,31 @@
+package cnn.components;
+
+/** The ways a {@link ConvolutionLayer} can compute its forward pass. */
+public enum ConvolutionAlgorithm {
+	/** Slides each kernel over each input plate. */
+	DIRECT,
+
+	/**
+	 * Lowers each example to an im2col matrix and computes every output plate with a single
+	 * blocked matrix multiply. Agrees with DIRECT up to floating point rounding.
+	 */
+	IM2COL,
+
+	/**
+	 * Computes 2x2 output tiles from 4x4 input tiles with Winograd's minimal filtering
+	 * algorithm F(2x2, 3x3), which needs 16 multiplies per tile and channel instead of 36.
+	 * Only for 3x3 kernels. Also used for the input deltas. Agrees with DIRECT up to floating
+	 * point rounding.
+	 */
+	WINOGRAD,
+
+	/**
+	 * Multiplies Fourier transforms of the plates, zero-padded to powers of two. The cost per
+	 * output barely grows with the kernel size, so it suits large kernels on large inputs; on
+	 * small ones the padding and transforms cost more than they save.
+	 * Each kernel's transform is kept until the kernels change, and each input plate is
+	 * transformed once for all kernels. Also used for backpropagation. Agrees with DIRECT up
+	 * to floating point rounding, computed in double precision.
+	 */
+	FFT;
+}
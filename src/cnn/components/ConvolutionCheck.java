@@ -0,0 +1,199 @@
+package cnn.components;
+
+import java.util.SplittableRandom;
+
+import cnn.tools.ActivationFunction;
+
+/**
+ * Checks every {@link ConvolutionAlgorithm} in both precisions against plain reference
+ * loops, on shapes chosen to hit odd sizes, partial tiles and extra input channels:
+ * the forward pass against {@link Plate#convolve} followed by ReLU, and the input deltas and
+ * kernel gradients of the backward pass against direct sums. The kernel gradients are read
+ * back through {@link ConvolutionLayer#updateWeights}, which also checks that cached kernel
+ * transforms follow the update.
+ *
+ * Run as a program; exits with status 1 if any difference is larger than the tolerance:
+ * java cnn.components.ConvolutionCheck
+ */
+public final class ConvolutionCheck {
+	// Batch size, input channels, kernel depth, kernels, input height and width, kernel size.
+	private static final int[][] SHAPES = {
+		{1, 1, 1, 1, 3, 3, 3},
+		{2, 3, 2, 4, 8, 7, 3},
+		{3, 4, 4, 5, 7, 6, 3},
+		{1, 2, 2, 3, 13, 9, 3},
+		{2, 4, 3, 3, 13, 9, 5},
+		{1, 2, 2, 4, 33, 17, 7},
+	};
+	// The largest difference allowed, relative to the largest reference value.
+	private static final double DOUBLE_TOLERANCE = 1e-12;
+	private static final double FLOAT_TOLERANCE = 1e-5;
+
+	private ConvolutionCheck() {}
+
+	public static void main(String[] args) {
+		boolean passed = true;
+		for (Precision precision : Precision.values()) {
+			for (ConvolutionAlgorithm algorithm : ConvolutionAlgorithm.values()) {
+				for (int[] shape : SHAPES) {
+					if (algorithm == ConvolutionAlgorithm.WINOGRAD && !Winograd.supports(shape[6], shape[6])) {
+						continue;
+					}
+					passed &= check(precision, algorithm, shape);
+				}
+			}
+		}
+		if (!passed) {
+			System.exit(1);
+		}
+	}
+
+	private static boolean check(Precision precision, ConvolutionAlgorithm algorithm, int[] shape) {
+		int batchSize = shape[0];
+		int numChannels = shape[1];
+		int depth = shape[2];
+		int numConvolutions = shape[3];
+		int height = shape[4];
+		int width = shape[5];
+		int kernelSize = shape[6];
+		int outputHeight = height - kernelSize + 1;
+		int outputWidth = width - kernelSize + 1;
+		SplittableRandom random = new SplittableRandom(numConvolutions * 1000 + height);
+		Tensor input = randomTensor(precision, random, batchSize, numChannels, height, width);
+		Tensor kernels = randomTensor(precision, random, numConvolutions, depth, kernelSize, kernelSize);
+		Tensor errors = randomTensor(precision, random, batchSize, numConvolutions, outputHeight, outputWidth);
+		// Keep some inputs below the ReLU floor, so the derivative is 0 at some of them.
+		for (int i = 0; i < input.getTotalNumValues(); i += 7) {
+			input.set(i, 0);
+		}
+		double[] originalKernels = kernels.as1DArray();
+		ConvolutionLayer layer = ConvolutionLayer.newBuilder()
+				.setKernels(kernels)
+				.setConvolutionAlgorithm(algorithm)
+				.build();
+
+		// The layer's tensors are reused buffers, so keep copies of their values.
+		double[] output = layer.computeOutput(input).as1DArray();
+		double[] expectedOutput = expectedOutput(input, kernels);
+
+		// Backward: each error spreads back over the input values its output was summed from.
+		double[] inputDeltas = layer.propagateError(errors).as1DArray();
+		double[] expectedInputDeltas = new double[input.getTotalNumValues()];
+		double[] expectedGradients = new double[kernels.getTotalNumValues()];
+		for (int n = 0; n < batchSize; n++) {
+			for (int k = 0; k < numConvolutions; k++) {
+				for (int y = 0; y < outputHeight; y++) {
+					for (int x = 0; x < outputWidth; x++) {
+						double error = errors.valueAt(n, k, y, x);
+						for (int c = 0; c < depth; c++) {
+							for (int i = 0; i < kernelSize; i++) {
+								for (int j = 0; j < kernelSize; j++) {
+									expectedInputDeltas[input.indexOf(n, c, y + i, x + j)] +=
+											error * originalKernels[kernels.indexOf(k, c, i, j)];
+									expectedGradients[kernels.indexOf(k, c, i, j)] +=
+											error * input.valueAt(n, c, y + i, x + j);
+								}
+							}
+						}
+					}
+				}
+			}
+		}
+		for (int i = 0; i < expectedInputDeltas.length; i++) {
+			expectedInputDeltas[i] *= ActivationFunction.RELU.applyDerivative(input.get(i));
+		}
+
+		// A learning rate of 1 subtracts the gradients from the kernels.
+		layer.updateWeights(1);
+		double[] gradients = new double[kernels.getTotalNumValues()];
+		for (int i = 0; i < gradients.length; i++) {
+			gradients[i] = originalKernels[i] - kernels.get(i);
+		}
+		// Anything cached from the old kernels must have been redone.
+		double[] updatedOutput = layer.computeOutput(input).as1DArray();
+		double[] expectedUpdatedOutput = expectedOutput(input, kernels);
+
+		double tolerance = precision == Precision.DOUBLE ? DOUBLE_TOLERANCE : FLOAT_TOLERANCE;
+		double outputError = relativeError(output, expectedOutput);
+		double deltaError = relativeError(inputDeltas, expectedInputDeltas);
+		double gradientError = relativeError(gradients, expectedGradients);
+		double updatedError = relativeError(updatedOutput, expectedUpdatedOutput);
+		// Gradients are read back as differences of kernels, so they lose the kernels' rounding.
+		double gradientTolerance = tolerance * (1 + maxAbs(originalKernels) / maxAbs(expectedGradients));
+		boolean passed = outputError <= tolerance
+				&& deltaError <= tolerance
+				&& gradientError <= gradientTolerance
+				&& updatedError <= tolerance;
+		System.out.printf(
+				"%s %-8s %dx%dx%dx%d, %d %dx%d kernels: output %.1e, input deltas %.1e, kernel gradients %.1e,"
+						+ " after update %.1e%s%n",
+				precision,
+				algorithm,
+				batchSize,
+				numChannels,
+				height,
+				width,
+				numConvolutions,
+				kernelSize,
+				kernelSize,
+				outputError,
+				deltaError,
+				gradientError,
+				updatedError,
+				passed ? "" : "  FAILED");
+		return passed;
+	}
+
+	/**
+	 * Returns the activated sum over the kernel's channels of each input plate convolved
+	 * with its kernel, laid out like the layer's output.
+	 */
+	private static double[] expectedOutput(Tensor input, Tensor kernels) {
+		int outputHeight = input.getHeight() - kernels.getHeight() + 1;
+		int outputWidth = input.getWidth() - kernels.getWidth() + 1;
+		Tensor expected = new Tensor(
+				input.getBatchSize(), kernels.getBatchSize(), outputHeight, outputWidth);
+		for (int n = 0; n < input.getBatchSize(); n++) {
+			for (int k = 0; k < kernels.getBatchSize(); k++) {
+				for (int c = 0; c < kernels.getNumChannels(); c++) {
+					Plate convolved = input.plateAt(n, c).convolve(kernels.plateAt(k, c));
+					for (int y = 0; y < outputHeight; y++) {
+						for (int x = 0; x < outputWidth; x++) {
+							int index = expected.indexOf(n, k, y, x);
+							expected.set(index, expected.get(index) + convolved.valueAt(y, x));
+						}
+					}
+				}
+			}
+		}
+		double[] values = expected.getValues();
+		ActivationFunction.RELU.applyInPlace(values, 0, values.length);
+		return values;
+	}
+
+	private static Tensor randomTensor(
+			Precision precision, SplittableRandom random, int batchSize, int numChannels, int height, int width) {
+		Tensor tensor = new Tensor(precision, batchSize, numChannels, height, width);
+		for (int i = 0; i < tensor.getTotalNumValues(); i++) {
+			tensor.set(i, random.nextDouble() - 0.25);
+		}
+		return tensor;
+	}
+
+	/** Returns the largest difference between the values, over the largest expected value. */
+	private static double relativeError(double[] actual, double[] expected) {
+		double error = 0;
+		for (int i = 0; i < expected.length; i++) {
+			error = Math.max(error, Math.abs(actual[i] - expected[i]));
+		}
+		return error / Math.max(maxAbs(expected), Double.MIN_VALUE);
+	}
+
+	private static double maxAbs(double[] values) {
+		double max = 0;
+		for (double value : values) {
+			max = Math.max(max, Math.abs(value));
+		}
+		return max;
+	}
+}
@@ -1,25 +1,69 @@
 package cnn.components;
 
-import static cnn.tools.Util.checkNotEmpty;
 import static cnn.tools.Util.checkNotNull;
 import static cnn.tools.Util.checkPositive;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.SplittableRandom;
 
 import cnn.tools.ActivationFunction;
-import cnn.tools.Util;
+import cnn.tools.RandomStreams;
 
 /** A layer that performs n convolutions. Uses ReLU for activation. */
 public class ConvolutionLayer implements PlateLayer {
-     // Convolutions are laid out RGBG RGBG RGBG ... if numChannels = 4
-     // or X X X ... if numChannels = 1
+     // Kernels are laid out (convolution, channel, row, column), with channels RGBG if
+     // numChannels = 4 or X if numChannels = 1. The plates below are views into this tensor.
+    private final Tensor kernels;
     private final List<List<Plate>> convolutions;
-    private List<Plate> previousInput;
-    private List<Plate> previousOutput;
+    private final ConvolutionAlgorithm algorithm;
+    // The kernels transformed for the WINOGRAD algorithm, shared with replicas; otherwise null.
+    private final Winograd.TransformedKernels transformedKernels;
+    // The kernels' Fourier transforms for the FFT algorithm, shared with replicas; otherwise null.
+    private final Fft.KernelTransforms kernelTransforms;
+    private Tensor previousInput;
+    private Tensor previousOutput;
 
-    private ConvolutionLayer(List<List<Plate>> convolutions) {
-        this.convolutions = convolutions;
+    // Gradients accumulated by propagateError since the last weight update. Only allocated
+    // once the layer is trained, so replicas used for inference stay small.
+    private Tensor kernelGradients;
+
+    // Reused from batch to batch. Each replica has its own.
+    private final TensorBuffer outputBuffer = new TensorBuffer();
+    private final TensorBuffer deltaBuffer = new TensorBuffer();
+    // Scratch space for the im2col and Winograd algorithms.
+    private double[] columns;
+    private float[] floatColumns;
+    // Transforms and scratch space for the FFT algorithm, for the last input size.
+    private Fft fft;
+
+    private ConvolutionLayer(Tensor kernels, ConvolutionAlgorithm algorithm) {
+        this(
+                kernels,
+                algorithm,
+                algorithm == ConvolutionAlgorithm.WINOGRAD ? new Winograd.TransformedKernels(kernels) : null,
+                algorithm == ConvolutionAlgorithm.FFT ? new Fft.KernelTransforms(kernels) : null);
+    }
+
+    private ConvolutionLayer(
+            Tensor kernels,
+            ConvolutionAlgorithm algorithm,
+            Winograd.TransformedKernels transformedKernels,
+            Fft.KernelTransforms kernelTransforms) {
+        this.kernels = kernels;
+        this.algorithm = algorithm;
+        this.transformedKernels = transformedKernels;
+        this.kernelTransforms = kernelTransforms;
+        List<List<Plate>> convolutions = new ArrayList<>(kernels.getBatchSize());
+        for (int i = 0; i < kernels.getBatchSize(); i++) {
+            List<Plate> channelConvolutions = new ArrayList<>(kernels.getNumChannels());
+            for (int j = 0; j < kernels.getNumChannels(); j++) {
+                channelConvolutions.add(kernels.plateAt(i, j));
+            }
+            convolutions.add(Collections.unmodifiableList(channelConvolutions));
+        }
+        this.convolutions = Collections.unmodifiableList(convolutions);
     }
 
     /** Returns the number of different convolutions in this layer. */
@@ -31,12 +75,30 @@ public class ConvolutionLayer implements PlateLayer {
     public List<List<Plate>> getConvolutions() {
         return convolutions;
     }
+
+    /**
+     * Returns all kernels as one (convolution, channel, row, column) tensor. Call
+     * {@link #kernelsChanged} after writing to it.
+     */
+    public Tensor getKernels() {
+        return kernels;
+    }
     
     /** Returns the number of channels in each convolution. */
     public int getConvolutionDepth() {
     	return convolutions.get(0).size();
     }
     
+    /** Returns the algorithm used for the forward pass. */
+    public ConvolutionAlgorithm getConvolutionAlgorithm() {
+        return algorithm;
+    }
+
+    /** Returns the precision of the kernels, and so of this layer's inputs and outputs. */
+    public Precision getPrecision() {
+        return kernels.getPrecision();
+    }
+
     /** Returns the convolution height. */
     public int getConvolutionHeight() {
     	return convolutions.get(0).get(0).getHeight();
@@ -63,65 +125,263 @@ public class ConvolutionLayer implements PlateLayer {
     }
 
     @Override
-    public List<Plate> computeOutput(List<Plate> input) {
-        checkNotNull(input, "Convolution layer input");
-        checkNotEmpty(input, "Convolution layer input", false);
+    public Tensor computeOutput(Tensor input) {
+        checkInput(input);
         previousInput = input;
-        // Convolve each input with each mask.
-        List<Plate> output = new ArrayList<>();
-        for (int i = 0; i < convolutions.size(); i ++) {
-            double[][] values = new double[input.get(0).getHeight() - getConvolutionHeight() + 1]
-                                          [input.get(0).getWidth() - getConvolutionWidth() + 1];
-            // convolve each input image, sum the output, add the new plate
-            for (int j = 0; j < getConvolutionDepth(); j++) {
-                Plate convolution = convolutions.get(i).get(j);
-                Util.tensorAdd(values, input.get(j).convolve(convolution).getValues(), true);
-                input.get(j);
-            }
-            output.add((new Plate(values).applyActivation(ActivationFunction.RELU)));
+        // Convolve each input with each mask, summing over the channels of each mask.
+        Tensor output = outputBuffer.getZeroed(
+                getPrecision(),
+                input.getBatchSize(),
+                convolutions.size(),
+                calculateOutputHeight(input.getHeight()),
+                calculateOutputWidth(input.getWidth()));
+        convolve(input, output);
+        if (getPrecision() == Precision.DOUBLE) {
+            ActivationFunction.RELU.applyInPlace(output.getValues(), 0, output.getTotalNumValues());
+        } else {
+            ActivationFunction.RELU.applyInPlace(output.getFloatValues(), 0, output.getTotalNumValues());
         }
         previousOutput = output;
         return output;
     }
 
+    /** Throws if this layer cannot convolve the given input. */
+    void checkInput(Tensor input) {
+        checkNotNull(input, "Convolution layer input");
+        if (input.getNumChannels() < getConvolutionDepth()) {
+            throw new IllegalArgumentException(
+                    String.format(
+                            "Convolution layer input had %d channels, needs at least %d.",
+                            input.getNumChannels(),
+                            getConvolutionDepth()));
+        }
+        if (input.getPrecision() != getPrecision()) {
+            throw new IllegalArgumentException(
+                    String.format(
+                            "Convolution layer has %s precision, got %s input.",
+                            getPrecision(),
+                            input.getPrecision()));
+        }
+    }
+
+    /**
+     * Adds the convolution of the input with the kernels to the output, before activation.
+     * Does not remember the input for backpropagation.
+     */
+    void convolve(Tensor input, Tensor output) {
+        switch (algorithm) {
+            case IM2COL:
+                convolveIm2col(input, output);
+                break;
+            case WINOGRAD:
+                convolveWinograd(input, output);
+                break;
+            case FFT:
+                fft(input).convolve(input, kernels, kernelTransforms, output);
+                break;
+            default:
+                convolveDirect(input, output);
+                break;
+        }
+    }
+
+    private void convolveDirect(Tensor input, Tensor output) {
+        for (int n = 0; n < input.getBatchSize(); n++) {
+            for (int i = 0; i < convolutions.size(); i++) {
+                Plate values = output.plateAt(n, i);
+                for (int j = 0; j < getConvolutionDepth(); j++) {
+                    input.plateAt(n, j).accumulateConvolution(convolutions.get(i).get(j), values);
+                }
+            }
+        }
+    }
+
+    private void convolveIm2col(Tensor input, Tensor output) {
+        int columnsSize = Im2col.columnsSize(kernels, output.getHeight(), output.getWidth());
+        if (getPrecision() == Precision.FLOAT) {
+            Im2col.convolve(input, kernels, output, floatColumns(columnsSize));
+        } else {
+            Im2col.convolve(input, kernels, output, columns(columnsSize));
+        }
+    }
+
+    private void convolveWinograd(Tensor input, Tensor output) {
+        int scratchSize = Winograd.scratchSize(
+                getConvolutionDepth(), numConvolutions(), output.getHeight(), output.getWidth());
+        if (getPrecision() == Precision.FLOAT) {
+            Winograd.convolve(
+                    input, kernels, transformedKernels.floatForward(), output, floatColumns(scratchSize));
+        } else {
+            Winograd.convolve(input, kernels, transformedKernels.forward(), output, columns(scratchSize));
+        }
+    }
+
+    /** Returns the FFT instance for the size of the given input, making a new one if needed. */
+    private Fft fft(Tensor input) {
+        if (fft == null || !fft.isForInputSize(input.getHeight(), input.getWidth())) {
+            fft = Fft.forInputSize(input.getHeight(), input.getWidth());
+        }
+        return fft;
+    }
+
+    /** Returns the scratch array, grown to at least the given size. */
+    private double[] columns(int size) {
+        if (columns == null || columns.length < size) {
+            columns = new double[size];
+        }
+        return columns;
+    }
+
+    /** Single precision version of {@link #columns(int)}. */
+    private float[] floatColumns(int size) {
+        if (floatColumns == null || floatColumns.length < size) {
+            floatColumns = new float[size];
+        }
+        return floatColumns;
+    }
+
+    /**
+     * Given the deltas of this layer's output, accumulates the kernel gradients and returns
+     * the deltas of its input, which has the input's shape. Both are computed with the im2col
+     * lowering and blocked matrix multiplies (see {@link Im2col}), except that the WINOGRAD
+     * algorithm computes the input deltas too (see {@link Winograd}), and the FFT algorithm
+     * computes both in the frequency domain (see {@link Fft}).
+     */
     @Override
-    public List<Plate> propagateError(List<Plate> errors, double learningRate) {
-        if (errors.size() != previousOutput.size() || previousInput.isEmpty()) {
+    public Tensor propagateError(Tensor errors) {
+        checkNotNull(previousOutput, "Previous convolution layer output");
+        if (!errors.hasSameShape(previousOutput) || errors.getPrecision() != getPrecision()) {
             throw new IllegalArgumentException("Bad propagation state.");
         }
-        // Stores the delta values for all the plates in current layer
-        List<Plate> deltaOutput = new ArrayList<>(errors.size());
-        
-        // Total error
-        double[][][] error = new double[errors.size()][][];
-        double[][][] delta = new double[error.length][][];
-
-        for (int i = 0; i < errors.size(); i++) {
-            error[i] = new double[previousInput.get(0).getHeight()][previousInput.get(0).getWidth()];
-            delta[i] = new double[error[i].length][error[i][0].length];
-            for (int kernel = 0; kernel < getConvolutionDepth(); kernel++) {
-	            for (int row = 0; row < error[i].length - getConvolutionHeight(); row++) {
-	                for (int col = 0; col < error[i][row].length - getConvolutionWidth(); col++) {
-	                    for (int kernelRow = 0; kernelRow < getConvolutionHeight(); kernelRow++) {
-	                        for (int kernelCol = 0; kernelCol < getConvolutionWidth(); kernelCol++) {
-	                            error[i][row + kernelRow][col + kernelCol] += errors.get(i).valueAt(row, col)
-	                                    * convolutions.get(i).get(kernel).valueAt(kernelRow, kernelCol);
-	                        }
-	                    }
-	                }
-	            }
-	            for (int row = 0; row < error[i].length; row++) {
-	                for (int col = 0; col < error[i][row].length; col++) {
-	                    delta[i][row][col] += error[i][row][col]
-	                            * ActivationFunction.RELU.applyDerivative(previousInput.get(kernel).valueAt(row, col));
-	                }
-	            }
-            }
-            deltaOutput.add(new Plate(delta[i]));
+        return propagateError(previousInput, errors);
+    }
+
+    /**
+     * Like {@link #propagateError(Tensor)}, for the given errors of the output of
+     * {@link #convolve} on the given input.
+     */
+    Tensor propagateError(Tensor input, Tensor errors) {
+        allocateGradients();
+        Tensor deltaOutput = deltaBuffer.getZeroed(
+                getPrecision(),
+                input.getBatchSize(),
+                input.getNumChannels(),
+                input.getHeight(),
+                input.getWidth());
+        if (algorithm == ConvolutionAlgorithm.FFT) {
+            fft(input).backpropagate(input, kernels, kernelTransforms, errors, kernelGradients, deltaOutput);
+        } else {
+            backpropagateIm2col(input, errors, deltaOutput);
+        }
+        if (getPrecision() == Precision.FLOAT) {
+            ActivationFunction.RELU.multiplyByDerivative(
+                    input.getFloatValues(),
+                    input.getOffset(),
+                    deltaOutput.getFloatValues(),
+                    0,
+                    deltaOutput.getTotalNumValues());
+        } else {
+            ActivationFunction.RELU.multiplyByDerivative(
+                    input.getValues(),
+                    input.getOffset(),
+                    deltaOutput.getValues(),
+                    0,
+                    deltaOutput.getTotalNumValues());
         }
         return deltaOutput;
     }
 
+    /**
+     * Accumulates the kernel gradients and adds the input deltas, before activation, to
+     * deltaOutput with im2col, or with Winograd for the WINOGRAD algorithm.
+     */
+    private void backpropagateIm2col(Tensor input, Tensor errors, Tensor deltaOutput) {
+        // With Winograd, im2col only computes the kernel gradients.
+        boolean winograd = algorithm == ConvolutionAlgorithm.WINOGRAD;
+        Tensor im2colDeltas = winograd ? null : deltaOutput;
+        int scratchSize = Im2col.columnsSize(kernels, errors.getHeight(), errors.getWidth());
+        if (winograd) {
+            int winogradSize = Winograd.scratchSize(
+                    numConvolutions(), getConvolutionDepth(), input.getHeight(), input.getWidth());
+            scratchSize = Math.max(scratchSize, winogradSize);
+        }
+        if (getPrecision() == Precision.FLOAT) {
+            float[] scratch = floatColumns(scratchSize);
+            Im2col.backpropagate(input, kernels, errors, kernelGradients, im2colDeltas, scratch);
+            if (winograd) {
+                Winograd.backpropagate(errors, kernels, transformedKernels.floatRotated(), deltaOutput, scratch);
+            }
+        } else {
+            double[] scratch = columns(scratchSize);
+            Im2col.backpropagate(input, kernels, errors, kernelGradients, im2colDeltas, scratch);
+            if (winograd) {
+                Winograd.backpropagate(errors, kernels, transformedKernels.rotated(), deltaOutput, scratch);
+            }
+        }
+    }
+
+    @Override
+    public void updateWeights(double learningRate) {
+        if (kernelGradients == null) {
+            return;
+        }
+        kernels.addScaled(kernelGradients, -learningRate);
+        kernelGradients.fill(0);
+        kernelsChanged();
+    }
+
+    /**
+     * Tells the layer and its replicas that the kernels were written, so that what they have
+     * computed from them is redone. {@link #updateWeights} calls this itself; anything else
+     * that writes the tensor from {@link #getKernels} must call it afterwards.
+     */
+    public void kernelsChanged() {
+        if (transformedKernels != null) {
+            transformedKernels.kernelsChanged();
+        }
+        if (kernelTransforms != null) {
+            kernelTransforms.kernelsChanged();
+        }
+    }
+
+    @Override
+    public ConvolutionLayer replicate() {
+        return new ConvolutionLayer(kernels, algorithm, transformedKernels, kernelTransforms);
+    }
+
+    @Override
+    public void addGradients(PlateLayer replica) {
+        if (!(replica instanceof ConvolutionLayer) || ((ConvolutionLayer) replica).kernels != kernels) {
+            throw new IllegalArgumentException("Can only add gradients from a replica of this layer.");
+        }
+        ConvolutionLayer convolutionReplica = (ConvolutionLayer) replica;
+        if (convolutionReplica.kernelGradients == null) {
+            return;
+        }
+        allocateGradients();
+        kernelGradients.addScaled(convolutionReplica.kernelGradients, 1);
+        convolutionReplica.kernelGradients.fill(0);
+    }
+
+    private void allocateGradients() {
+        if (kernelGradients == null) {
+            kernelGradients = new Tensor(
+                    getPrecision(),
+                    kernels.getBatchSize(),
+                    kernels.getNumChannels(),
+                    kernels.getHeight(),
+                    kernels.getWidth());
+        }
+    }
+
+    @Override
+    public ConvolutionLayer withPrecision(Precision precision) {
+        checkNotNull(precision, "Convolution precision");
+        return precision == getPrecision()
+                ? this
+                : new ConvolutionLayer(kernels.toPrecision(precision), algorithm);
+    }
+
     @Override
     public String toString() {
         StringBuilder builder = new StringBuilder();
@@ -132,6 +392,8 @@ public class ConvolutionLayer implements PlateLayer {
                 getConvolutionHeight(),
                 getConvolutionWidth()));
         builder.append(String.format("Number of convolutions: %d\n", convolutions.size()));
+        builder.append(String.format("Convolution algorithm: %s\n", algorithm));
+        builder.append(String.format("Precision: %s\n", getPrecision()));
         builder.append("Activation Function: RELU\n");
         builder.append("\n\t------------\t\n");
         return builder.toString();
@@ -148,6 +410,9 @@ public class ConvolutionLayer implements PlateLayer {
         private int convolutionHeight = 0;
         private int convolutionWidth = 0;
         private int numConvolutions = 0;
+        private ConvolutionAlgorithm algorithm = null;
+        private SplittableRandom random = null;
+        private Tensor kernels = null;
 
         private Builder() {}
 
@@ -167,33 +432,74 @@ public class ConvolutionLayer implements PlateLayer {
             return this;
         }
 
+        /**
+         * Sets the algorithm used for the forward pass. Defaults to WINOGRAD for 3x3 kernels and
+         * DIRECT for others.
+         */
+        public Builder setConvolutionAlgorithm(ConvolutionAlgorithm algorithm) {
+            checkNotNull(algorithm, "Convolution algorithm");
+            this.algorithm = algorithm;
+            return this;
+        }
+
+        /** Sets the stream the kernels are drawn from. Defaults to the next "convolution" stream. */
+        public Builder setRandom(SplittableRandom random) {
+            checkNotNull(random, "Convolution random stream");
+            this.random = random;
+            return this;
+        }
+
+        /**
+         * Makes the layer use the given (convolution, channel, row, column) kernels instead of
+         * random ones, for example ones that were saved. Sets the convolution size and the
+         * number of convolutions to match. The layer keeps the tensor itself, not a copy.
+         */
+        public Builder setKernels(Tensor kernels) {
+            checkNotNull(kernels, "Convolution kernels");
+            this.kernels = kernels;
+            this.numConvolutions = kernels.getBatchSize();
+            this.numChannels = kernels.getNumChannels();
+            this.convolutionHeight = kernels.getHeight();
+            this.convolutionWidth = kernels.getWidth();
+            return this;
+        }
+
         public ConvolutionLayer build() {
             checkPositive(numChannels, "Convolution channels", true);
             checkPositive(convolutionHeight, "Convolution height", true);
             checkPositive(convolutionWidth, "Convolution width", true);
             checkPositive(numConvolutions, "Number of convolutions", true);
-            List<List<Plate>> convolutions = new ArrayList<>();
-            for (int i = 0; i < numConvolutions; i++) {
-            	List<Plate> channelConvolutions = new ArrayList<>();
-                for (int j = 0; j < numChannels; j++) {
-                    channelConvolutions.add(
-                            new Plate(
-                                    createRandomConvolution(convolutionHeight, convolutionWidth)));
+            ConvolutionAlgorithm algorithm = this.algorithm;
+            if (algorithm == null) {
+                algorithm = Winograd.supports(convolutionHeight, convolutionWidth)
+                        ? ConvolutionAlgorithm.WINOGRAD
+                        : ConvolutionAlgorithm.DIRECT;
+            } else if (algorithm == ConvolutionAlgorithm.WINOGRAD
+                    && !Winograd.supports(convolutionHeight, convolutionWidth)) {
+                throw new IllegalStateException("Winograd convolution needs 3x3 kernels!");
+            }
+            if (kernels != null) {
+                if (kernels.getBatchSize() != numConvolutions
+                        || kernels.getNumChannels() != numChannels
+                        || kernels.getHeight() != convolutionHeight
+                        || kernels.getWidth() != convolutionWidth) {
+                    throw new IllegalStateException(
+                            "The convolution size was changed after the kernels were set!");
                 }
-                convolutions.add(channelConvolutions);
+                return new ConvolutionLayer(kernels, algorithm);
             }
-            return new ConvolutionLayer(convolutions);
+            Tensor kernels = new Tensor(numConvolutions, numChannels, convolutionHeight, convolutionWidth);
+            initializeRandomConvolutions(
+                    kernels, random != null ? random : RandomStreams.next("convolution"));
+            return new ConvolutionLayer(kernels, algorithm);
         }
 
         // TODO: We should probably use the initialization method suggested by Judy.
-        private static double[][] createRandomConvolution(int height, int width) {
-            double[][] plateValues = new double[height][width];
-            for (int i = 0; i < plateValues.length; i++) {
-                for (int j = 0; j < plateValues[i].length; j++) {
-                    plateValues[i][j] = Util.RNG.nextGaussian();
-                }
+        private static void initializeRandomConvolutions(Tensor kernels, SplittableRandom random) {
+            double[] kernelValues = kernels.getValues();
+            for (int i = 0; i < kernelValues.length; i++) {
+                kernelValues[i] = RandomStreams.nextGaussian(random);
             }
-            return plateValues;
         }
     }
 }
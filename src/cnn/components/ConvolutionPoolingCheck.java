@@ -0,0 +1,180 @@
+package cnn.components;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * Checks that {@link ConvolutionPoolingLayer} gives the same results as the
+ * {@link ConvolutionLayer} and max {@link PoolingLayer} it fuses, run one after the other:
+ * the output, the input deltas and the kernel gradients, for every
+ * {@link ConvolutionAlgorithm} in both precisions. The pooling layouts cover overlapping and
+ * skipping strides, windows cut off by the edge and global pooling. The first kernel of each
+ * layer is negative and the inputs are not, so every window of its plates is at the ReLU
+ * floor; the others are mixed, so some windows are partly at the floor.
+ *
+ * Run as a program; exits with status 1 if any difference is larger than the tolerance:
+ * java cnn.components.ConvolutionPoolingCheck
+ */
+public final class ConvolutionPoolingCheck {
+	// Batch size, input channels, kernels, input height and width, kernel size, pooling window
+	// height and width, stride height and width. A window of 0 x 0 means global pooling.
+	private static final int[][] LAYOUTS = {
+		{2, 2, 3, 10, 10, 3, 2, 2, 2, 2},
+		{3, 1, 4, 11, 9, 3, 2, 2, 2, 2},
+		{2, 3, 3, 12, 11, 3, 3, 3, 2, 2},
+		{2, 2, 2, 9, 10, 3, 2, 3, 1, 1},
+		{1, 2, 3, 13, 12, 3, 2, 2, 3, 4},
+		{2, 2, 3, 9, 9, 3, 0, 0, 0, 0},
+		{2, 2, 3, 14, 13, 5, 3, 2, 2, 3},
+		{1, 2, 2, 21, 19, 7, 2, 2, 2, 2},
+	};
+	// The largest difference allowed, relative to the largest unfused value.
+	private static final double DOUBLE_TOLERANCE = 1e-12;
+	private static final double FLOAT_TOLERANCE = 1e-5;
+
+	private ConvolutionPoolingCheck() {}
+
+	public static void main(String[] args) {
+		boolean passed = true;
+		for (Precision precision : Precision.values()) {
+			for (ConvolutionAlgorithm algorithm : ConvolutionAlgorithm.values()) {
+				for (int[] layout : LAYOUTS) {
+					if (algorithm == ConvolutionAlgorithm.WINOGRAD && !Winograd.supports(layout[5], layout[5])) {
+						continue;
+					}
+					passed &= check(precision, algorithm, layout);
+				}
+			}
+		}
+		if (!passed) {
+			System.exit(1);
+		}
+	}
+
+	private static boolean check(Precision precision, ConvolutionAlgorithm algorithm, int[] layout) {
+		int batchSize = layout[0];
+		int numChannels = layout[1];
+		int numConvolutions = layout[2];
+		int height = layout[3];
+		int width = layout[4];
+		int kernelSize = layout[5];
+		boolean global = layout[6] == 0;
+		SplittableRandom random = new SplittableRandom(height * 100 + width * 10 + layout[8]);
+		Tensor input = new Tensor(precision, batchSize, numChannels, height, width);
+		for (int i = 0; i < input.getTotalNumValues(); i++) {
+			input.set(i, random.nextDouble());
+		}
+		Tensor kernels = new Tensor(precision, numConvolutions, numChannels, kernelSize, kernelSize);
+		for (int i = 0; i < kernels.getTotalNumValues(); i++) {
+			kernels.set(i, i < kernels.getExampleSize() ? -random.nextDouble() : random.nextDouble() - 0.5);
+		}
+
+		// Each layer keeps its kernel tensor and updates it, so each gets its own copy.
+		ConvolutionLayer convolution = ConvolutionLayer.newBuilder()
+				.setKernels(kernels.toPrecision(precision))
+				.setConvolutionAlgorithm(algorithm)
+				.build();
+		PoolingLayer pooling = poolingLayer(layout);
+		PlateLayer fused = ConvolutionPoolingLayer.fuse(Arrays.asList(
+				ConvolutionLayer.newBuilder()
+						.setKernels(kernels.toPrecision(precision))
+						.setConvolutionAlgorithm(algorithm)
+						.build(),
+				poolingLayer(layout))).get(0);
+		if (!(fused instanceof ConvolutionPoolingLayer)) {
+			System.out.printf("%s %-8s: the layers were not fused  FAILED%n", precision, algorithm);
+			return false;
+		}
+
+		// The layers' tensors are reused buffers, so keep copies of their values.
+		Tensor pooled = pooling.computeOutput(convolution.computeOutput(input));
+		double[] expectedOutput = pooled.as1DArray();
+		Tensor output = fused.computeOutput(input);
+		boolean shapeMatches = output.hasSameShape(pooled);
+		double[] outputValues = output.as1DArray();
+
+		Tensor errors = new Tensor(
+				precision, batchSize, numConvolutions, pooled.getHeight(), pooled.getWidth());
+		for (int i = 0; i < errors.getTotalNumValues(); i++) {
+			errors.set(i, random.nextDouble() - 0.5);
+		}
+		double[] expectedInputDeltas =
+				convolution.propagateError(pooling.propagateError(errors)).as1DArray();
+		double[] inputDeltas = fused.propagateError(errors).as1DArray();
+
+		// A learning rate of 1 subtracts the gradients from the kernels.
+		convolution.updateWeights(1);
+		fused.updateWeights(1);
+		double[] expectedGradients = gradients(kernels, convolution.getKernels());
+		double[] gradients =
+				gradients(kernels, ((ConvolutionPoolingLayer) fused).getConvolutionLayer().getKernels());
+
+		double tolerance = precision == Precision.DOUBLE ? DOUBLE_TOLERANCE : FLOAT_TOLERANCE;
+		double outputError = shapeMatches ? relativeError(outputValues, expectedOutput) : Double.NaN;
+		double deltaError = relativeError(inputDeltas, expectedInputDeltas);
+		double gradientError = relativeError(gradients, expectedGradients);
+		// Gradients are read back as differences of kernels, so they lose the kernels' rounding.
+		double gradientTolerance =
+				tolerance * (1 + maxAbs(kernels.as1DArray()) / Math.max(maxAbs(expectedGradients), Double.MIN_VALUE));
+		boolean passed = shapeMatches
+				&& outputError <= tolerance
+				&& deltaError <= tolerance
+				&& gradientError <= gradientTolerance;
+		System.out.printf(
+				"%s %-8s %dx%dx%dx%d, %d %dx%d kernels, %s: output %.1e, input deltas %.1e,"
+						+ " kernel gradients %.1e%s%n",
+				precision,
+				algorithm,
+				batchSize,
+				numChannels,
+				height,
+				width,
+				numConvolutions,
+				kernelSize,
+				kernelSize,
+				global
+						? "global pooling"
+						: String.format("%dx%d pooling, stride %dx%d", layout[6], layout[7], layout[8], layout[9]),
+				outputError,
+				deltaError,
+				gradientError,
+				passed ? "" : "  FAILED");
+		return passed;
+	}
+
+	private static PoolingLayer poolingLayer(int[] layout) {
+		if (layout[6] == 0) {
+			return PoolingLayer.newBuilder().setGlobal(true).build();
+		}
+		return PoolingLayer.newBuilder()
+				.setWindowSize(layout[6], layout[7])
+				.setStride(layout[8], layout[9])
+				.build();
+	}
+
+	/** Returns the original kernels minus the updated ones. */
+	private static double[] gradients(Tensor original, Tensor updated) {
+		double[] gradients = new double[original.getTotalNumValues()];
+		for (int i = 0; i < gradients.length; i++) {
+			gradients[i] = original.get(i) - updated.get(i);
+		}
+		return gradients;
+	}
+
+	/** Returns the largest difference between the values, over the largest expected value. */
+	private static double relativeError(double[] actual, double[] expected) {
+		double error = 0;
+		for (int i = 0; i < expected.length; i++) {
+			error = Math.max(error, Math.abs(actual[i] - expected[i]));
+		}
+		return error / Math.max(maxAbs(expected), Double.MIN_VALUE);
+	}
+
+	private static double maxAbs(double[] values) {
+		double max = 0;
+		for (double value : values) {
+			max = Math.max(max, Math.abs(value));
+		}
+		return max;
+	}
+}
@@ -0,0 +1,224 @@
+package cnn.components;
+
+import static cnn.tools.Util.checkNotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import cnn.tools.ActivationFunction;
+
+/**
+ * A convolution layer and the max pooling layer after it, run as one layer.
+ *
+ * Run separately, the convolution writes its whole output for the batch, the activation
+ * reads and rewrites all of it, and the pooling reads it again. Fused, each example is
+ * convolved into a scratch tensor that is reused from example to example and so stays in
+ * cache. Pooling reads the convolution values directly; since ReLU never decreases, the
+ * maximum of the activated window is the activation of the window's maximum, so only that
+ * value is activated. Only the pooled output and the index of each maximum are written out.
+ * The result is the same as running the two layers one after the other.
+ *
+ * The fused layer shares the layers it was made from, so training it trains their kernels.
+ */
+public final class ConvolutionPoolingLayer implements PlateLayer {
+	private final ConvolutionLayer convolution;
+	private final PoolingLayer pooling;
+
+	// The index in the convolution output of the batch that each output value came from.
+	private int[] maxIndices;
+	private Tensor previousInput;
+	private final TensorBuffer outputBuffer = new TensorBuffer();
+	private final TensorBuffer convolutionBuffer = new TensorBuffer();
+	private final TensorBuffer convolutionErrorBuffer = new TensorBuffer();
+
+	private ConvolutionPoolingLayer(ConvolutionLayer convolution, PoolingLayer pooling) {
+		this.convolution = convolution;
+		this.pooling = pooling;
+	}
+
+	/**
+	 * Returns the plate layers with every convolution layer that is directly followed by a
+	 * max pooling layer replaced by a fused layer running both. Other layers are kept as they
+	 * are.
+	 */
+	public static List<PlateLayer> fuse(List<PlateLayer> layers) {
+		checkNotNull(layers, "Plate layers");
+		List<PlateLayer> fused = new ArrayList<>(layers.size());
+		for (int i = 0; i < layers.size(); i++) {
+			PlateLayer layer = layers.get(i);
+			PlateLayer next = i + 1 < layers.size() ? layers.get(i + 1) : null;
+			if (layer instanceof ConvolutionLayer
+					&& next instanceof PoolingLayer
+					&& ((PoolingLayer) next).getPoolingType() == PoolingType.MAX) {
+				fused.add(new ConvolutionPoolingLayer((ConvolutionLayer) layer, (PoolingLayer) next));
+				i++;
+			} else {
+				fused.add(layer);
+			}
+		}
+		return fused;
+	}
+
+	/** Returns the convolution layer that is run first. */
+	public ConvolutionLayer getConvolutionLayer() {
+		return convolution;
+	}
+
+	/** Returns the pooling layer that is run second. */
+	public PoolingLayer getPoolingLayer() {
+		return pooling;
+	}
+
+	@Override
+	public int calculateNumOutputs(int numInputs) {
+		return pooling.calculateNumOutputs(convolution.calculateNumOutputs(numInputs));
+	}
+
+	@Override
+	public int calculateOutputHeight(int inputHeight) {
+		return pooling.calculateOutputHeight(convolution.calculateOutputHeight(inputHeight));
+	}
+
+	@Override
+	public int calculateOutputWidth(int inputWidth) {
+		return pooling.calculateOutputWidth(convolution.calculateOutputWidth(inputWidth));
+	}
+
+	@Override
+	public Tensor computeOutput(Tensor input) {
+		convolution.checkInput(input);
+		previousInput = input;
+		int numConvolutions = convolution.numConvolutions();
+		int height = convolution.calculateOutputHeight(input.getHeight());
+		int width = convolution.calculateOutputWidth(input.getWidth());
+		int windowHeight = pooling.isGlobal() ? height : pooling.getWindowHeight();
+		int windowWidth = pooling.isGlobal() ? width : pooling.getWindowWidth();
+		int strideHeight = pooling.isGlobal() ? height : pooling.getStrideHeight();
+		int strideWidth = pooling.isGlobal() ? width : pooling.getStrideWidth();
+
+		// Every output value is written below, so the buffer need not be cleared.
+		Tensor output = outputBuffer.get(
+				input.getPrecision(),
+				input.getBatchSize(),
+				numConvolutions,
+				pooling.calculateOutputHeight(height),
+				pooling.calculateOutputWidth(width));
+		if (maxIndices == null || maxIndices.length < output.getTotalNumValues()) {
+			maxIndices = new int[output.getTotalNumValues()];
+		}
+
+		int exampleSize = numConvolutions * height * width;
+		int index = 0;
+		for (int n = 0; n < input.getBatchSize(); n++) {
+			Tensor plates = convolutionBuffer.getZeroed(input.getPrecision(), 1, numConvolutions, height, width);
+			convolution.convolve(input.example(n), plates);
+			for (int k = 0; k < numConvolutions; k++) {
+				int plateStart = k * height * width;
+				for (int i = 0; i < output.getHeight(); i++) {
+					int rowStart = i * strideHeight;
+					int rowEnd = Math.min(rowStart + windowHeight, height);
+					for (int j = 0; j < output.getWidth(); j++) {
+						int colStart = j * strideWidth;
+						int colEnd = Math.min(colStart + windowWidth, width);
+						int windowStart = plateStart + rowStart * width + colStart;
+						int maxIndex = plates.getPrecision() == Precision.DOUBLE
+								? indexOfMax(plates.getValues(), windowStart, rowEnd - rowStart, colEnd - colStart, width)
+								: indexOfMax(plates.getFloatValues(), windowStart, rowEnd - rowStart, colEnd - colStart, width);
+						double max = ActivationFunction.RELU.apply(plates.get(maxIndex));
+						if (ActivationFunction.RELU.applyDerivative(max) == 0) {
+							// Every value in the window activates to the same floor, and pooling
+							// the activated values would pick the first one.
+							maxIndex = windowStart;
+						}
+						output.set(index, max);
+						maxIndices[index] = n * exampleSize + maxIndex;
+						index++;
+					}
+				}
+			}
+		}
+		return output;
+	}
+
+	@Override
+	public Tensor propagateError(Tensor errors) {
+		checkNotNull(previousInput, "Previous convolution layer input");
+		int height = convolution.calculateOutputHeight(previousInput.getHeight());
+		int width = convolution.calculateOutputWidth(previousInput.getWidth());
+		if (errors.getBatchSize() != previousInput.getBatchSize()
+				|| errors.getNumChannels() != convolution.numConvolutions()
+				|| errors.getHeight() != pooling.calculateOutputHeight(height)
+				|| errors.getWidth() != pooling.calculateOutputWidth(width)
+				|| errors.getPrecision() != convolution.getPrecision()) {
+			throw new IllegalArgumentException("Bad propagation state.");
+		}
+
+		// Route each error to the convolution output its maximum came from, as the pooling
+		// layer would, then backpropagate through the convolution.
+		Tensor convolutionErrors = convolutionErrorBuffer.getZeroed(
+				errors.getPrecision(), errors.getBatchSize(), errors.getNumChannels(), height, width);
+		for (int index = 0; index < errors.getTotalNumValues(); index++) {
+			int maxIndex = maxIndices[index];
+			convolutionErrors.set(maxIndex, convolutionErrors.get(maxIndex) + errors.get(index));
+		}
+		return convolution.propagateError(previousInput, convolutionErrors);
+	}
+
+	@Override
+	public void updateWeights(double learningRate) {
+		convolution.updateWeights(learningRate);
+	}
+
+	@Override
+	public ConvolutionPoolingLayer replicate() {
+		return new ConvolutionPoolingLayer(convolution.replicate(), pooling.replicate());
+	}
+
+	@Override
+	public void addGradients(PlateLayer replica) {
+		if (!(replica instanceof ConvolutionPoolingLayer)) {
+			throw new IllegalArgumentException("Can only add gradients from a replica of this layer.");
+		}
+		convolution.addGradients(((ConvolutionPoolingLayer) replica).convolution);
+	}
+
+	@Override
+	public ConvolutionPoolingLayer withPrecision(Precision precision) {
+		ConvolutionLayer converted = convolution.withPrecision(precision);
+		return converted == convolution ? this : new ConvolutionPoolingLayer(converted, pooling);
+	}
+
+	/**
+	 * Returns the index of the first maximum of a window of the given number of rows and
+	 * columns, starting at the given index of plates of the given width.
+	 */
+	private static int indexOfMax(double[] values, int start, int numRows, int numCols, int width) {
+		int maxIndex = start;
+		for (int row = 0; row < numRows; row++) {
+			for (int index = start + row * width, end = index + numCols; index < end; index++) {
+				if (values[index] > values[maxIndex]) {
+					maxIndex = index;
+				}
+			}
+		}
+		return maxIndex;
+	}
+
+	/** Single precision version of {@link #indexOfMax(double[], int, int, int, int)}. */
+	private static int indexOfMax(float[] values, int start, int numRows, int numCols, int width) {
+		int maxIndex = start;
+		for (int row = 0; row < numRows; row++) {
+			for (int index = start + row * width, end = index + numCols; index < end; index++) {
+				if (values[index] > values[maxIndex]) {
+					maxIndex = index;
+				}
+			}
+		}
+		return maxIndex;
+	}
+
+	@Override
+	public String toString() {
+		return convolution.toString() + pooling.toString();
+	}
+}
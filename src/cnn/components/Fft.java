@@ -0,0 +1,400 @@
+package cnn.components;
+
+import java.util.Arrays;
+
+/**
+ * Convolution by fast Fourier transforms, for large kernels and inputs.
+ *
+ * Plates are zero-padded to rows x cols, the powers of two at least as large as the input,
+ * and transformed with a radix-2 FFT. Plates are real, so each row of a transform keeps only
+ * its cols / 2 + 1 non-negative frequencies; the others are their complex conjugates.
+ *
+ * Correlating a plate with a kernel multiplies the plate's transform by the conjugate of the
+ * kernel's. Each output plate of an example is the inverse transform of those products summed
+ * over the channels, so every input plate is transformed once and reused by all kernels, and
+ * every output plate is inverse transformed once. The padded plates are at least as large as
+ * the input, so the circular correlation never wraps around into the outputs that are kept.
+ * For H x W inputs, this costs O(HW log HW) per plate and O(HW) per kernel and channel, where
+ * a direct convolution costs O(HW k^2) per kernel and channel for k x k kernels.
+ *
+ * Backpropagation reuses the kernel transforms. The input deltas are the full convolution of
+ * the output deltas with the kernels, which multiplies by the kernel transforms themselves.
+ * The kernel gradients are the correlation of the input with the output deltas; it is summed
+ * over the batch in the frequency domain, then inverse transformed once per kernel and channel.
+ *
+ * Transforms are computed in double precision whatever the precision of the tensors. Each
+ * instance holds the scratch space for one size of input, so it must not be shared between
+ * threads.
+ */
+final class Fft {
+	private final int rows;
+	private final int cols;
+	// The number of frequencies kept in each row of a transform.
+	private final int halfCols;
+	// cos and sin of 2 pi i / n for i < n / 2, where n is the longer of rows and cols.
+	private final double[] cos;
+	private final double[] sin;
+	private final double[] lineRe;
+	private final double[] lineIm;
+
+	// Transforms of the input plates of an example, of the output deltas of an example, and
+	// of the kernel gradients of a batch, allocated as needed.
+	private double[] inputRe = new double[0];
+	private double[] inputIm = new double[0];
+	private double[] deltaRe = new double[0];
+	private double[] deltaIm = new double[0];
+	private double[] gradientRe = new double[0];
+	private double[] gradientIm = new double[0];
+	private final double[] sumRe;
+	private final double[] sumIm;
+
+	private Fft(int rows, int cols) {
+		this.rows = rows;
+		this.cols = cols;
+		this.halfCols = cols / 2 + 1;
+		int n = Math.max(rows, cols);
+		this.cos = new double[Math.max(n / 2, 1)];
+		this.sin = new double[cos.length];
+		for (int i = 0; i < cos.length; i++) {
+			cos[i] = Math.cos(2 * Math.PI * i / n);
+			sin[i] = Math.sin(2 * Math.PI * i / n);
+		}
+		this.lineRe = new double[n];
+		this.lineIm = new double[n];
+		this.sumRe = new double[spectrumSize()];
+		this.sumIm = new double[spectrumSize()];
+	}
+
+	/** Returns an instance for inputs of the given size. */
+	static Fft forInputSize(int height, int width) {
+		return new Fft(powerOfTwoAtLeast(height), powerOfTwoAtLeast(width));
+	}
+
+	/** Returns true if this instance is the one {@link #forInputSize} returns for the given size. */
+	boolean isForInputSize(int height, int width) {
+		return rows == powerOfTwoAtLeast(height) && cols == powerOfTwoAtLeast(width);
+	}
+
+	/**
+	 * Adds the convolution of each example in the input with the kernels, whose transforms
+	 * are given, to the output.
+	 */
+	void convolve(Tensor input, Tensor kernels, KernelTransforms transforms, Tensor output) {
+		int numConvolutions = kernels.getBatchSize();
+		int numChannels = kernels.getNumChannels();
+		int size = spectrumSize();
+		Transforms kernelTransforms = transforms.at(this);
+		double[] kernelRe = kernelTransforms.re;
+		double[] kernelIm = kernelTransforms.im;
+		inputRe = grow(inputRe, numChannels * size);
+		inputIm = grow(inputIm, numChannels * size);
+		for (int n = 0; n < input.getBatchSize(); n++) {
+			for (int c = 0; c < numChannels; c++) {
+				transform(input, n, c, input.getHeight(), input.getWidth(), inputRe, inputIm, c * size);
+			}
+			for (int k = 0; k < numConvolutions; k++) {
+				Arrays.fill(sumRe, 0);
+				Arrays.fill(sumIm, 0);
+				for (int c = 0; c < numChannels; c++) {
+					multiplyAdd(
+							inputRe, inputIm, c * size, kernelRe, kernelIm, (k * numChannels + c) * size, true);
+				}
+				inverseTransformAdd(output, n, k, output.getHeight(), output.getWidth());
+			}
+		}
+	}
+
+	/**
+	 * Backpropagates the deltas of the output of {@link #convolve}: adds the kernel gradients,
+	 * summed over the examples, to kernelGradients, and the deltas of each input value to
+	 * inputDeltas, which has the input's shape. Input channels the kernels do not cover get
+	 * nothing.
+	 */
+	void backpropagate(
+			Tensor input,
+			Tensor kernels,
+			KernelTransforms transforms,
+			Tensor deltas,
+			Tensor kernelGradients,
+			Tensor inputDeltas) {
+		int numConvolutions = kernels.getBatchSize();
+		int numChannels = kernels.getNumChannels();
+		int size = spectrumSize();
+		Transforms kernelTransforms = transforms.at(this);
+		double[] kernelRe = kernelTransforms.re;
+		double[] kernelIm = kernelTransforms.im;
+		inputRe = grow(inputRe, numChannels * size);
+		inputIm = grow(inputIm, numChannels * size);
+		deltaRe = grow(deltaRe, numConvolutions * size);
+		deltaIm = grow(deltaIm, numConvolutions * size);
+		gradientRe = grow(gradientRe, numConvolutions * numChannels * size);
+		gradientIm = grow(gradientIm, numConvolutions * numChannels * size);
+		Arrays.fill(gradientRe, 0, numConvolutions * numChannels * size, 0);
+		Arrays.fill(gradientIm, 0, numConvolutions * numChannels * size, 0);
+
+		for (int n = 0; n < input.getBatchSize(); n++) {
+			for (int c = 0; c < numChannels; c++) {
+				transform(input, n, c, input.getHeight(), input.getWidth(), inputRe, inputIm, c * size);
+			}
+			for (int k = 0; k < numConvolutions; k++) {
+				transform(deltas, n, k, deltas.getHeight(), deltas.getWidth(), deltaRe, deltaIm, k * size);
+			}
+			for (int c = 0; c < numChannels; c++) {
+				Arrays.fill(sumRe, 0);
+				Arrays.fill(sumIm, 0);
+				for (int k = 0; k < numConvolutions; k++) {
+					multiplyAdd(
+							deltaRe, deltaIm, k * size, kernelRe, kernelIm, (k * numChannels + c) * size, false);
+				}
+				inverseTransformAdd(inputDeltas, n, c, inputDeltas.getHeight(), inputDeltas.getWidth());
+			}
+			for (int k = 0; k < numConvolutions; k++) {
+				for (int c = 0; c < numChannels; c++) {
+					int gradientStart = (k * numChannels + c) * size;
+					for (int i = 0; i < size; i++) {
+						// input times the conjugate of the deltas
+						double aRe = inputRe[c * size + i];
+						double aIm = inputIm[c * size + i];
+						double bRe = deltaRe[k * size + i];
+						double bIm = deltaIm[k * size + i];
+						gradientRe[gradientStart + i] += aRe * bRe + aIm * bIm;
+						gradientIm[gradientStart + i] += aIm * bRe - aRe * bIm;
+					}
+				}
+			}
+		}
+
+		for (int k = 0; k < numConvolutions; k++) {
+			for (int c = 0; c < numChannels; c++) {
+				System.arraycopy(gradientRe, (k * numChannels + c) * size, sumRe, 0, size);
+				System.arraycopy(gradientIm, (k * numChannels + c) * size, sumIm, 0, size);
+				inverseTransformAdd(kernelGradients, k, c, kernels.getHeight(), kernels.getWidth());
+			}
+		}
+	}
+
+	private int spectrumSize() {
+		return rows * halfCols;
+	}
+
+	private static int powerOfTwoAtLeast(int n) {
+		return n <= 1 ? 1 : Integer.highestOneBit(n - 1) << 1;
+	}
+
+	private static double[] grow(double[] array, int size) {
+		return array.length >= size ? array : new double[size];
+	}
+
+	/** Adds a * b, or a * conj(b), to the sum, over one transform. */
+	private void multiplyAdd(
+			double[] aRe, double[] aIm, int aStart, double[] bRe, double[] bIm, int bStart, boolean conjugate) {
+		double sign = conjugate ? -1 : 1;
+		for (int i = 0; i < sumRe.length; i++) {
+			double ar = aRe[aStart + i];
+			double ai = aIm[aStart + i];
+			double br = bRe[bStart + i];
+			double bi = sign * bIm[bStart + i];
+			sumRe[i] += ar * br - ai * bi;
+			sumIm[i] += ar * bi + ai * br;
+		}
+	}
+
+	/**
+	 * Transforms the top-left height x width values of one plate of the tensor, zero-padded to
+	 * rows x cols, into re and im starting at the given index.
+	 */
+	private void transform(
+			Tensor plates, int example, int channel, int height, int width, double[] re, double[] im, int start) {
+		for (int y = 0; y < rows; y++) {
+			int rowStart = start + y * halfCols;
+			if (y >= height) {
+				Arrays.fill(re, rowStart, rowStart + halfCols, 0);
+				Arrays.fill(im, rowStart, rowStart + halfCols, 0);
+				continue;
+			}
+			int plateRow = plates.indexOf(example, channel, y, 0) - plates.getOffset();
+			for (int x = 0; x < cols; x++) {
+				lineRe[x] = x < width ? plates.get(plateRow + x) : 0;
+				lineIm[x] = 0;
+			}
+			transformLine(cols, false);
+			System.arraycopy(lineRe, 0, re, rowStart, halfCols);
+			System.arraycopy(lineIm, 0, im, rowStart, halfCols);
+		}
+		transformColumns(re, im, start, false);
+	}
+
+	/**
+	 * Inverse transforms the sum and adds its top-left height x width values to one plate of
+	 * the tensor. Overwrites the sum.
+	 */
+	private void inverseTransformAdd(Tensor plates, int example, int channel, int height, int width) {
+		transformColumns(sumRe, sumIm, 0, true);
+		double scale = 1.0 / (rows * cols);
+		for (int y = 0; y < height; y++) {
+			int rowStart = y * halfCols;
+			// Rebuild the negative frequencies from their conjugates.
+			for (int x = 0; x < cols; x++) {
+				if (x < halfCols) {
+					lineRe[x] = sumRe[rowStart + x];
+					lineIm[x] = sumIm[rowStart + x];
+				} else {
+					lineRe[x] = sumRe[rowStart + cols - x];
+					lineIm[x] = -sumIm[rowStart + cols - x];
+				}
+			}
+			transformLine(cols, true);
+			int plateRow = plates.indexOf(example, channel, y, 0) - plates.getOffset();
+			for (int x = 0; x < width; x++) {
+				plates.set(plateRow + x, plates.get(plateRow + x) + lineRe[x] * scale);
+			}
+		}
+	}
+
+	/** Transforms each of the halfCols columns of the transform starting at the given index. */
+	private void transformColumns(double[] re, double[] im, int start, boolean inverse) {
+		for (int x = 0; x < halfCols; x++) {
+			for (int y = 0; y < rows; y++) {
+				lineRe[y] = re[start + y * halfCols + x];
+				lineIm[y] = im[start + y * halfCols + x];
+			}
+			transformLine(rows, inverse);
+			for (int y = 0; y < rows; y++) {
+				re[start + y * halfCols + x] = lineRe[y];
+				im[start + y * halfCols + x] = lineIm[y];
+			}
+		}
+	}
+
+	/**
+	 * Transforms the first n values of the line in place, with an iterative radix-2 FFT. The
+	 * inverse transform is not scaled.
+	 */
+	private void transformLine(int n, boolean inverse) {
+		for (int i = 1, j = 0; i < n; i++) {
+			int bit = n >> 1;
+			for (; (j & bit) != 0; bit >>= 1) {
+				j ^= bit;
+			}
+			j ^= bit;
+			if (i < j) {
+				double re = lineRe[i];
+				double im = lineIm[i];
+				lineRe[i] = lineRe[j];
+				lineIm[i] = lineIm[j];
+				lineRe[j] = re;
+				lineIm[j] = im;
+			}
+		}
+		int tableSize = 2 * cos.length;
+		for (int length = 2; length <= n; length <<= 1) {
+			int half = length >> 1;
+			int step = tableSize / length;
+			for (int start = 0; start < n; start += length) {
+				for (int k = 0; k < half; k++) {
+					double wRe = cos[k * step];
+					double wIm = inverse ? sin[k * step] : -sin[k * step];
+					int a = start + k;
+					int b = a + half;
+					double tRe = lineRe[b] * wRe - lineIm[b] * wIm;
+					double tIm = lineRe[b] * wIm + lineIm[b] * wRe;
+					lineRe[b] = lineRe[a] - tRe;
+					lineIm[b] = lineIm[a] - tIm;
+					lineRe[a] += tRe;
+					lineIm[a] += tIm;
+				}
+			}
+		}
+	}
+
+	/**
+	 * The transforms of a layer's kernels, shared by the layer and its replicas, laid out
+	 * (convolution, channel).
+	 *
+	 * Like {@link Winograd.TransformedKernels}, the transforms are redone on first use after
+	 * {@link #kernelsChanged}, and checking costs one volatile read. They are also redone when
+	 * an input of another size needs transforms of another size. As there, two sets of arrays
+	 * take turns, so updating the kernels allocates nothing; new arrays are only allocated
+	 * for a new size.
+	 */
+	static final class KernelTransforms {
+		private final Tensor kernels;
+		private volatile int version;
+		private volatile Transforms transforms;
+		// The arrays the next version is transformed into.
+		private Transforms spare;
+
+		KernelTransforms(Tensor kernels) {
+			this.kernels = kernels;
+		}
+
+		/** Marks the transforms out of date, after the kernels were written. */
+		void kernelsChanged() {
+			synchronized (this) {
+				version++;
+			}
+		}
+
+		/** Returns the transforms of the current kernels at the size of the given instance. */
+		Transforms at(Fft fft) {
+			Transforms current = transforms;
+			if (current != null && current.isFor(fft, version)) {
+				return current;
+			}
+			synchronized (this) {
+				if (transforms == null || !transforms.isFor(fft, version)) {
+					Transforms next = spare != null && spare.hasSize(fft) ? spare : new Transforms(kernels, fft);
+					next.update(kernels, fft, version);
+					spare = transforms;
+					transforms = next;
+				}
+				return transforms;
+			}
+		}
+	}
+
+	/**
+	 * The transforms of one version of the kernels at one size. Written only under the lock of
+	 * the {@link KernelTransforms}, before being made current.
+	 */
+	static final class Transforms {
+		private int version;
+		private final int rows;
+		private final int cols;
+		final double[] re;
+		final double[] im;
+
+		private Transforms(Tensor kernels, Fft fft) {
+			this.rows = fft.rows;
+			this.cols = fft.cols;
+			int numTransforms = kernels.getBatchSize() * kernels.getNumChannels();
+			this.re = new double[numTransforms * fft.spectrumSize()];
+			this.im = new double[numTransforms * fft.spectrumSize()];
+		}
+
+		private void update(Tensor kernels, Fft fft, int version) {
+			for (int k = 0; k < kernels.getBatchSize(); k++) {
+				for (int c = 0; c < kernels.getNumChannels(); c++) {
+					fft.transform(
+							kernels,
+							k,
+							c,
+							kernels.getHeight(),
+							kernels.getWidth(),
+							re,
+							im,
+							(k * kernels.getNumChannels() + c) * fft.spectrumSize());
+				}
+			}
+			this.version = version;
+		}
+
+		private boolean hasSize(Fft fft) {
+			return rows == fft.rows && cols == fft.cols;
+		}
+
+		private boolean isFor(Fft fft, int version) {
+			return this.version == version && hasSize(fft);
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package cnn.components;
+
+import java.lang.management.ManagementFactory;
+import java.util.SplittableRandom;
+
+import cnn.tools.ActivationFunction;
+
+/**
+ * Checks that a training step through a fully connected layer allocates nothing once its
+ * buffers exist: {@link FullyConnectedLayer#computeOutput} followed by
+ * {@link FullyConnectedLayer#propagateErrorAndUpdate}, in both precisions, measured with the
+ * HotSpot per-thread allocation counter.
+ *
+ * Run as a program; exits with status 1 if any measured step allocates:
+ * java cnn.components.FullyConnectedAllocationCheck
+ */
+public final class FullyConnectedAllocationCheck {
+	private static final int NUM_INPUTS = 300;
+	private static final int NUM_NODES = 100;
+	private static final int BATCH_SIZE = 4;
+	private static final int WARM_UP_STEPS = 10000;
+	private static final int MEASURED_STEPS = 1000;
+
+	private FullyConnectedAllocationCheck() {}
+
+	public static void main(String[] args) {
+		com.sun.management.ThreadMXBean threads =
+				(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		if (!threads.isThreadAllocatedMemorySupported()) {
+			System.err.println("This JVM cannot count allocated bytes per thread.");
+			System.exit(1);
+		}
+		threads.setThreadAllocatedMemoryEnabled(true);
+		boolean passed = true;
+		for (Precision precision : Precision.values()) {
+			long bytes = allocatedBytes(threads, precision);
+			System.out.println(
+					precision + ": " + bytes + " bytes allocated over " + MEASURED_STEPS + " steps.");
+			passed &= bytes == 0;
+		}
+		if (!passed) {
+			System.exit(1);
+		}
+	}
+
+	/** Returns the bytes allocated by all the measured training steps, after warm-up. */
+	private static long allocatedBytes(com.sun.management.ThreadMXBean threads, Precision precision) {
+		FullyConnectedLayer layer = FullyConnectedLayer.newBuilder()
+				.setActivationFunction(ActivationFunction.RELU)
+				.setNumInputs(NUM_INPUTS)
+				.setNumNodes(NUM_NODES)
+				.setPrecision(precision)
+				.setRandom(new SplittableRandom(1))
+				.build();
+		SplittableRandom random = new SplittableRandom(2);
+		Tensor input = new Tensor(precision, BATCH_SIZE, 1, 1, NUM_INPUTS);
+		Tensor errors = new Tensor(precision, BATCH_SIZE, 1, 1, NUM_NODES);
+		for (int i = 0; i < input.getTotalNumValues(); i++) {
+			input.set(i, random.nextDouble());
+		}
+		for (int i = 0; i < errors.getTotalNumValues(); i++) {
+			errors.set(i, random.nextDouble() - 0.5);
+		}
+
+		// Warm up long enough for the JIT to compile the step, so that allocations it would
+		// remove are not counted.
+		for (int i = 0; i < WARM_UP_STEPS; i++) {
+			step(layer, input, errors);
+		}
+		long threadId = Thread.currentThread().getId();
+		long before = threads.getThreadAllocatedBytes(threadId);
+		for (int i = 0; i < MEASURED_STEPS; i++) {
+			step(layer, input, errors);
+		}
+		long after = threads.getThreadAllocatedBytes(threadId);
+		return after - before;
+	}
+
+	private static void step(FullyConnectedLayer layer, Tensor input, Tensor errors) {
+		layer.computeOutput(input);
+		layer.propagateErrorAndUpdate(errors, 1e-9);
+	}
+}
@@ -2,12 +2,13 @@ package cnn.components;
 
 import static cnn.tools.Util.checkNotNull;
 import static cnn.tools.Util.checkPositive;
-import static cnn.tools.Util.outerProduct;
-import static cnn.tools.Util.scalarMultiply;
-import static cnn.tools.Util.tensorSubtract;
 
-import cnn.driver.Main;
+import java.util.SplittableRandom;
+
 import cnn.tools.ActivationFunction;
+import cnn.tools.Gemm;
+import cnn.tools.Kernels;
+import cnn.tools.RandomStreams;
 
 /** 
  * Your standard fully-connected ANN.
@@ -17,82 +18,285 @@ import cnn.tools.ActivationFunction;
  * back-propagating errors.
  */
 public class FullyConnectedLayer {
-	private final double[][] weights;
-	private final double[] lastInput;
-	private final double[] lastOutput;
+	// A (node, input) matrix stored as a 1x1xnumNodesxnumInputs tensor, plus one offset
+	// weight per node. Both have the layer's precision.
+	private final Tensor weights;
+	private final Tensor offsets;
+	private final int numInputs;
+	private final int numNodes;
 	private final ActivationFunction activation;
+	
+	// Gradients accumulated by propagateError since the last weight update. Only allocated
+	// once the layer is trained, so replicas used for inference stay small.
+	private Tensor weightGradients;
+	private Tensor offsetGradients;
+	private Tensor lastInput;
+	
+	// Reused from batch to batch. Each replica has its own.
+	private final TensorBuffer outputBuffer = new TensorBuffer();
+	private final TensorBuffer deltaBuffer = new TensorBuffer();
 
-	private FullyConnectedLayer(double[][] weights, ActivationFunction activation) {
+	private FullyConnectedLayer(
+			Tensor weights, Tensor offsets, int numInputs, int numNodes, ActivationFunction activation) {
 		this.weights = weights;
-		this.lastInput = new double[weights[0].length];
-		this.lastOutput = new double[weights.length];
+		this.offsets = offsets;
+		this.numInputs = numInputs;
+		this.numNodes = numNodes;
 		this.activation = activation;
-		
-		// Set the last value to be the offset. This will never change.
-		this.lastInput[this.lastInput.length - 1] = -1;
 	}
 
-	/** Compute the output of the given input vector. */
-	public double[] computeOutput(double[] input) {
-		if (input.length != lastInput.length - 	1) {
+	/** Returns the number of inputs, not counting the offset. */
+	public int getNumInputs() {
+		return numInputs;
+	}
+
+	/** Returns the number of nodes. */
+	public int getNumNodes() {
+		return numNodes;
+	}
+
+	/** Returns the precision of the weights, and so of this layer's inputs and outputs. */
+	public Precision getPrecision() {
+		return weights.getPrecision();
+	}
+
+	/** Returns the activation function of the nodes. */
+	public ActivationFunction getActivationFunction() {
+		return activation;
+	}
+
+	/** Returns the weights as a 1x1xnumNodesxnumInputs tensor. Shared with every replica. */
+	public Tensor getWeights() {
+		return weights;
+	}
+
+	/** Returns the offset weights as a 1x1x1xnumNodes tensor. Shared with every replica. */
+	public Tensor getOffsets() {
+		return offsets;
+	}
+
+	/**
+	 * Compute the output of the given input. Each example in the tensor is treated as
+	 * one flat input vector; the output holds one vector of node values per example.
+	 */
+	public Tensor computeOutput(Tensor input) {
+		checkNotNull(input, "Fully connected layer input");
+		if (input.getExampleSize() != numInputs) {
 			throw new IllegalArgumentException(
 					String.format(
 							"Input length in fully connected layer was %d, should be %d.",
-							input.length,
-							lastInput.length));
+							input.getExampleSize(),
+							numInputs));
 		}
+		checkPrecision(input);
 		
-		System.arraycopy(input, 0, lastInput, 0, input.length);
-		for (int i = 0; i < lastOutput.length; i++) {
-			double sum = 0;
-			for (int j = 0; j < lastInput.length; j++) {
-				sum += weights[i][j] * lastInput[j];
+		// Every example at once: output = input * weights^T.
+		int batchSize = input.getBatchSize();
+		Tensor output = outputBuffer.getZeroed(getPrecision(), batchSize, 1, 1, numNodes);
+		Gemm.multiply(batchSize, numNodes, numInputs, input, false, weights, true, output);
+		if (getPrecision() == Precision.DOUBLE) {
+			double[] outputValues = output.getValues();
+			double[] offsetValues = offsets.getValues();
+			for (int n = 0; n < batchSize; n++) {
+				for (int i = 0; i < numNodes; i++) {
+					// The offset's input is always -1.
+					outputValues[n * numNodes + i] += offsetValues[i] * -1;
+				}
+			}
+			activation.applyInPlace(outputValues, 0, outputValues.length);
+		} else {
+			float[] outputValues = output.getFloatValues();
+			float[] offsetValues = offsets.getFloatValues();
+			for (int n = 0; n < batchSize; n++) {
+				for (int i = 0; i < numNodes; i++) {
+					outputValues[n * numNodes + i] += offsetValues[i] * -1;
+				}
 			}
-			lastOutput[i] = activation.apply(sum);
+			activation.applyInPlace(outputValues, 0, outputValues.length);
 		}
-		return lastOutput;
+		lastInput = input;
+		return output;
 	}
 
 	/** 
-	 * Given the error from the previous layer, update the weights and return the error
-	 * for this layer.
+	 * Given the error from the previous layer, accumulate the weight gradients and return the
+	 * error for this layer. The weights do not change until {@link #updateWeights} is called.
 	 */
-	public double[] propagateError(double[] proppedDelta, double learningRate) {
-		if (proppedDelta.length != weights.length) {
-			throw new IllegalArgumentException(
-					String.format(
-							"Got length %d delta, expected length %d!",
-							proppedDelta.length,
-							weights.length));
-		}
+	public Tensor propagateError(Tensor proppedDelta) {
+		checkPropagationState(proppedDelta);
 		
-		// Compute deltas for the next layer.
-		double[] delta = new double[weights[0].length - 1]; // Don't count the offset here.
-		for (int i = 0; i < delta.length; i++) {
-			for (int j = 0; j < weights.length; j++) {
-				delta[i] += proppedDelta[j] * weights[j][i] * activation.applyDerivative(lastInput[i]);
+		// Compute deltas for the next layer: delta = proppedDelta * weights, scaled by the
+		// derivative at each input. Don't count the offset here.
+		int batchSize = proppedDelta.getBatchSize();
+		Tensor delta = deltaBuffer.getZeroed(getPrecision(), batchSize, 1, 1, numInputs);
+		Gemm.multiply(batchSize, numInputs, numNodes, proppedDelta, false, weights, false, delta);
+		
+		// Accumulate the gradients: proppedDelta^T * input, summed over the batch.
+		allocateGradients();
+		Gemm.multiply(numNodes, numInputs, batchSize, proppedDelta, true, lastInput, false, weightGradients);
+		if (getPrecision() == Precision.DOUBLE) {
+			double[] deltaValues = delta.getValues();
+			activation.multiplyByDerivative(
+					lastInput.getValues(), lastInput.getOffset(), deltaValues, 0, deltaValues.length);
+			double[] proppedValues = proppedDelta.getValues();
+			double[] offsetGradientValues = offsetGradients.getValues();
+			for (int n = 0; n < batchSize; n++) {
+				for (int j = 0; j < numNodes; j++) {
+					offsetGradientValues[j] += proppedValues[proppedDelta.getOffset() + n * numNodes + j] * -1;
+				}
+			}
+		} else {
+			float[] deltaValues = delta.getFloatValues();
+			activation.multiplyByDerivative(
+					lastInput.getFloatValues(), lastInput.getOffset(), deltaValues, 0, deltaValues.length);
+			float[] proppedValues = proppedDelta.getFloatValues();
+			float[] offsetGradientValues = offsetGradients.getFloatValues();
+			for (int n = 0; n < batchSize; n++) {
+				for (int j = 0; j < numNodes; j++) {
+					offsetGradientValues[j] += proppedValues[proppedDelta.getOffset() + n * numNodes + j] * -1;
+				}
 			}
 		}
-		
-		// Update the weights using the propped delta.
-		tensorSubtract(
-				weights,
-				scalarMultiply(
-						learningRate,
-						outerProduct(proppedDelta, lastInput),
-						true /* inline */),
-				true /* inline */);
 		return delta;
 	}
 	
+	/**
+	 * Does the work of {@link #propagateError} followed by {@link #updateWeights}, but in a
+	 * single pass over the weights and without gradient buffers: each row of weights first
+	 * contributes to the returned deltas and is then updated in place, W -= lr * delta * x^T.
+	 * 
+	 * Nothing may have been accumulated by {@link #propagateError} since the last update.
+	 */
+	public Tensor propagateErrorAndUpdate(Tensor proppedDelta, double learningRate) {
+		checkPropagationState(proppedDelta);
+		int batchSize = proppedDelta.getBatchSize();
+		int proppedOffset = proppedDelta.getOffset();
+		int inputOffset = lastInput.getOffset();
+		Tensor delta = deltaBuffer.getZeroed(getPrecision(), batchSize, 1, 1, numInputs);
+		Kernels kernels = Kernels.get();
+		if (getPrecision() == Precision.DOUBLE) {
+			double[] weightValues = weights.getValues();
+			double[] offsetValues = offsets.getValues();
+			double[] proppedValues = proppedDelta.getValues();
+			double[] inputValues = lastInput.getValues();
+			double[] deltaValues = delta.getValues();
+			for (int j = 0; j < numNodes; j++) {
+				int row = j * numInputs;
+				for (int n = 0; n < batchSize; n++) {
+					double propped = proppedValues[proppedOffset + n * numNodes + j];
+					kernels.axpy(propped, weightValues, row, deltaValues, n * numInputs, numInputs);
+				}
+				// Only update the row once every example has used its old values.
+				for (int n = 0; n < batchSize; n++) {
+					double scaled = proppedValues[proppedOffset + n * numNodes + j] * -learningRate;
+					kernels.axpy(scaled, inputValues, inputOffset + n * numInputs, weightValues, row, numInputs);
+					// The offset's input is always -1.
+					offsetValues[j] -= scaled;
+				}
+			}
+			activation.multiplyByDerivative(inputValues, inputOffset, deltaValues, 0, deltaValues.length);
+		} else {
+			float[] weightValues = weights.getFloatValues();
+			float[] offsetValues = offsets.getFloatValues();
+			float[] proppedValues = proppedDelta.getFloatValues();
+			float[] inputValues = lastInput.getFloatValues();
+			float[] deltaValues = delta.getFloatValues();
+			float floatLearningRate = (float) learningRate;
+			for (int j = 0; j < numNodes; j++) {
+				int row = j * numInputs;
+				for (int n = 0; n < batchSize; n++) {
+					float propped = proppedValues[proppedOffset + n * numNodes + j];
+					kernels.axpy(propped, weightValues, row, deltaValues, n * numInputs, numInputs);
+				}
+				for (int n = 0; n < batchSize; n++) {
+					float scaled = proppedValues[proppedOffset + n * numNodes + j] * -floatLearningRate;
+					kernels.axpy(scaled, inputValues, inputOffset + n * numInputs, weightValues, row, numInputs);
+					offsetValues[j] -= scaled;
+				}
+			}
+			activation.multiplyByDerivative(inputValues, inputOffset, deltaValues, 0, deltaValues.length);
+		}
+		return delta;
+	}
+	
+	/** Applies and then clears the gradients accumulated since the last update. */
+	public void updateWeights(double learningRate) {
+		if (weightGradients == null) {
+			return;
+		}
+		weights.addScaled(weightGradients, -learningRate);
+		offsets.addScaled(offsetGradients, -learningRate);
+		weightGradients.fill(0);
+		offsetGradients.fill(0);
+	}
+	
+	/**
+	 * Returns a layer that shares this layer's weights but has its own forward state and
+	 * gradients, so that it can be used from another thread.
+	 */
+	public FullyConnectedLayer replicate() {
+		return new FullyConnectedLayer(weights, offsets, numInputs, numNodes, activation);
+	}
+	
+	/**
+	 * Adds the gradients accumulated by a replica of this layer to this layer's gradients,
+	 * and clears the replica's.
+	 */
+	public void addGradients(FullyConnectedLayer replica) {
+		if (replica.weights != weights) {
+			throw new IllegalArgumentException("Can only add gradients from a replica of this layer.");
+		}
+		if (replica.weightGradients == null) {
+			return;
+		}
+		allocateGradients();
+		weightGradients.addScaled(replica.weightGradients, 1);
+		offsetGradients.addScaled(replica.offsetGradients, 1);
+		replica.weightGradients.fill(0);
+		replica.offsetGradients.fill(0);
+	}
+	
+	private void allocateGradients() {
+		if (weightGradients == null) {
+			weightGradients = new Tensor(getPrecision(), 1, 1, numNodes, numInputs);
+			offsetGradients = new Tensor(getPrecision(), 1, 1, 1, numNodes);
+		}
+	}
+	
+	private void checkPropagationState(Tensor proppedDelta) {
+		checkNotNull(lastInput, "Last fully connected layer input");
+		if (proppedDelta.getExampleSize() != numNodes
+				|| proppedDelta.getBatchSize() != lastInput.getBatchSize()) {
+			throw new IllegalArgumentException(
+					String.format(
+							"Got %d deltas of length %d, expected %d of length %d!",
+							proppedDelta.getBatchSize(),
+							proppedDelta.getExampleSize(),
+							lastInput.getBatchSize(),
+							numNodes));
+		}
+		checkPrecision(proppedDelta);
+	}
+	
+	private void checkPrecision(Tensor input) {
+		if (input.getPrecision() != getPrecision()) {
+			throw new IllegalArgumentException(
+					String.format(
+							"Fully connected layer has %s precision, got %s input.",
+							getPrecision(),
+							input.getPrecision()));
+		}
+	}
+	
 	@Override
 	public String toString() {
 		StringBuilder builder = new StringBuilder();
 		builder.append("\n------\tFully Connected Layer\t------\n\n");
 		builder.append(
-				String.format("Number of inputs: %d (plus a bias)\n", weights[0].length - 1));
-		builder.append(String.format("Number of nodes: %d\n", weights.length));
+				String.format("Number of inputs: %d (plus a bias)\n", numInputs));
+		builder.append(String.format("Number of nodes: %d\n", numNodes));
 		builder.append(String.format("Activation function: %s\n", activation.toString()));
+		builder.append(String.format("Precision: %s\n", getPrecision()));
 		builder.append("\n\t------------\t\n");
 		return builder.toString();
 	}
@@ -105,6 +309,10 @@ public class FullyConnectedLayer {
 		private ActivationFunction func = null;
 		private int numInputs = 0;
 		private int numNodes = 0;
+		private Precision precision = Precision.DOUBLE;
+		private SplittableRandom random = null;
+		private Tensor weights = null;
+		private Tensor offsets = null;
 		
 		private Builder() {}
 
@@ -126,17 +334,86 @@ public class FullyConnectedLayer {
 			return this;
 		}
 		
+		/** Sets the precision of the weights. Defaults to double. */
+		public Builder setPrecision(Precision precision) {
+			checkNotNull(precision, "Fully connected precision");
+			this.precision = precision;
+			return this;
+		}
+		
+		/** Sets the stream the weights are drawn from. Defaults to the next "fully-connected" stream. */
+		public Builder setRandom(SplittableRandom random) {
+			checkNotNull(random, "Fully connected random stream");
+			this.random = random;
+			return this;
+		}
+		
+		/**
+		 * Makes the layer use the given weights (1x1xnumNodesxnumInputs) and offsets
+		 * (1x1x1xnumNodes) instead of random ones, for example ones that were saved. Sets the
+		 * number of inputs and nodes and the precision to match. The layer keeps the tensors
+		 * themselves, not copies.
+		 */
+		public Builder setWeights(Tensor weights, Tensor offsets) {
+			checkNotNull(weights, "Fully connected weights");
+			checkNotNull(offsets, "Fully connected offsets");
+			if (weights.getExampleSize() != weights.getTotalNumValues()
+					|| weights.getNumChannels() != 1
+					|| offsets.getTotalNumValues() != weights.getHeight()
+					|| offsets.getPrecision() != weights.getPrecision()) {
+				throw new IllegalArgumentException(
+						String.format(
+								"Got %s weights and %s offsets, expected 1x1xNxM %s weights and N offsets.",
+								shapeOf(weights),
+								shapeOf(offsets),
+								weights.getPrecision()));
+			}
+			this.weights = weights;
+			this.offsets = offsets;
+			this.numNodes = weights.getHeight();
+			this.numInputs = weights.getWidth();
+			this.precision = weights.getPrecision();
+			return this;
+		}
+		
 		public FullyConnectedLayer build() {
 			checkNotNull(func, "Fully connected activation function");
 			checkPositive(numInputs, "Number of fully connected inputs", true);
 			checkPositive(numNodes, "Number of fully connected nodes", true);
-			double[][] weights = new double[numNodes][numInputs + 1];
-			for (int i = 0; i < weights.length; i++) {
-				for (int j = 0; j < weights[i].length; j++) {
-					weights[i][j] = Main.getRandomWeight(numInputs, numNodes);
+			if (weights != null) {
+				if (weights.getHeight() != numNodes
+						|| weights.getWidth() != numInputs
+						|| weights.getPrecision() != precision) {
+					throw new IllegalStateException(
+							"The size or precision was changed after the weights were set!");
+				}
+				return new FullyConnectedLayer(weights, offsets, numInputs, numNodes, func);
+			}
+			Tensor weights = new Tensor(precision, 1, 1, numNodes, numInputs);
+			Tensor offsets = new Tensor(precision, 1, 1, 1, numNodes);
+			SplittableRandom random = this.random != null ? this.random : RandomStreams.next("fully-connected");
+			for (int i = 0; i < numNodes; i++) {
+				for (int j = 0; j < numInputs; j++) {
+					weights.set(i * numInputs + j, randomWeight(random));
 				}
+				offsets.set(i, randomWeight(random));
 			}
-			return new FullyConnectedLayer(weights, func);
+			return new FullyConnectedLayer(weights, offsets, numInputs, numNodes, func);
+		}
+		
+		private static String shapeOf(Tensor tensor) {
+			return String.format(
+					"%dx%dx%dx%d",
+					tensor.getBatchSize(),
+					tensor.getNumChannels(),
+					tensor.getHeight(),
+					tensor.getWidth());
+		}
+		
+		/** A uniform weight in +-4 / sqrt(6 * (fan-in + fan-out)), the same rule as Main.getRandomWeight. */
+		private double randomWeight(SplittableRandom random) {
+			double range = Math.max(Double.MIN_VALUE, 4.0 / Math.sqrt(6.0 * (numInputs + numNodes)));
+			return (2.0 * random.nextDouble() - 1.0) * range;
 		}
 	}
 }
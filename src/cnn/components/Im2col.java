@@ -0,0 +1,258 @@
+package cnn.components;
+
+import java.util.Arrays;
+
+import cnn.tools.Gemm;
+import cnn.tools.Kernels;
+
+/**
+ * Convolution by im2col lowering.
+ *
+ * Each example is unrolled into a (channels * kernelHeight * kernelWidth) x (outputHeight *
+ * outputWidth) matrix whose columns are the input patches under each kernel placement. The
+ * (convolution, channel, row, column) kernel tensor is already a row-major
+ * numConvolutions x (channels * kernelHeight * kernelWidth) matrix, so one matrix multiply
+ * produces all output plates of the example at once.
+ *
+ * Backpropagation uses the same lowering. With deltas D (numConvolutions x outputSize) for an
+ * example, the kernel gradients are D * columns^T, and K^T * D holds the input deltas of each
+ * patch. Adding the patches back into place (col2im) gives the full correlation of the deltas
+ * with the rotated kernels.
+ */
+final class Im2col {
+	private Im2col() {}
+
+	/** Returns the number of values needed to lower one example. */
+	static int columnsSize(Tensor kernels, int outputHeight, int outputWidth) {
+		return kernels.getExampleSize() * outputHeight * outputWidth;
+	}
+
+	/**
+	 * Adds the convolution of each example in the input with the kernels to the output.
+	 * The columns array must hold at least {@link #columnsSize} values.
+	 */
+	static void convolve(Tensor input, Tensor kernels, Tensor output, double[] columns) {
+		int numConvolutions = kernels.getBatchSize();
+		int patchSize = kernels.getExampleSize();
+		int outputSize = output.getPlateSize();
+		for (int n = 0; n < input.getBatchSize(); n++) {
+			lower(input.getValues(), input, n, kernels, output.getHeight(), output.getWidth(), columns);
+			Gemm.multiply(
+					numConvolutions,
+					outputSize,
+					patchSize,
+					kernels.getValues(),
+					kernels.getOffset(),
+					false /* transposeA */,
+					columns,
+					0 /* bOffset */,
+					false /* transposeB */,
+					output.getValues(),
+					output.indexOf(n, 0, 0, 0));
+		}
+	}
+
+	/** Like {@link #convolve(Tensor, Tensor, Tensor, double[])}, for single precision tensors. */
+	static void convolve(Tensor input, Tensor kernels, Tensor output, float[] columns) {
+		int numConvolutions = kernels.getBatchSize();
+		int patchSize = kernels.getExampleSize();
+		int outputSize = output.getPlateSize();
+		for (int n = 0; n < input.getBatchSize(); n++) {
+			lower(input.getFloatValues(), input, n, kernels, output.getHeight(), output.getWidth(), columns);
+			Gemm.multiply(
+					numConvolutions,
+					outputSize,
+					patchSize,
+					kernels.getFloatValues(),
+					kernels.getOffset(),
+					false /* transposeA */,
+					columns,
+					0 /* bOffset */,
+					false /* transposeB */,
+					output.getFloatValues(),
+					output.indexOf(n, 0, 0, 0));
+		}
+	}
+
+	/**
+	 * Backpropagates the deltas of the output of {@link #convolve}: adds the kernel gradients,
+	 * summed over the examples, to kernelGradients, and the deltas of each input value to
+	 * inputDeltas, which has the input's shape. Input channels the kernels do not cover get
+	 * nothing. If inputDeltas is null, only the kernel gradients are computed. The columns
+	 * array must hold at least {@link #columnsSize} values.
+	 */
+	static void backpropagate(
+			Tensor input,
+			Tensor kernels,
+			Tensor deltas,
+			Tensor kernelGradients,
+			Tensor inputDeltas,
+			double[] columns) {
+		int numConvolutions = kernels.getBatchSize();
+		int patchSize = kernels.getExampleSize();
+		int outputSize = deltas.getPlateSize();
+		for (int n = 0; n < input.getBatchSize(); n++) {
+			int deltaStart = deltas.indexOf(n, 0, 0, 0);
+			lower(input.getValues(), input, n, kernels, deltas.getHeight(), deltas.getWidth(), columns);
+			Gemm.multiply(
+					numConvolutions,
+					patchSize,
+					outputSize,
+					deltas.getValues(),
+					deltaStart,
+					false /* transposeA */,
+					columns,
+					0 /* bOffset */,
+					true /* transposeB */,
+					kernelGradients.getValues(),
+					kernelGradients.getOffset());
+			if (inputDeltas == null) {
+				continue;
+			}
+			Arrays.fill(columns, 0, patchSize * outputSize, 0);
+			Gemm.multiply(
+					patchSize,
+					outputSize,
+					numConvolutions,
+					kernels.getValues(),
+					kernels.getOffset(),
+					true /* transposeA */,
+					deltas.getValues(),
+					deltaStart,
+					false /* transposeB */,
+					columns,
+					0 /* cOffset */);
+			raise(columns, inputDeltas, n, kernels, deltas.getHeight(), deltas.getWidth());
+		}
+	}
+
+	/** Like {@link #backpropagate(Tensor, Tensor, Tensor, Tensor, Tensor, double[])}, for single precision tensors. */
+	static void backpropagate(
+			Tensor input,
+			Tensor kernels,
+			Tensor deltas,
+			Tensor kernelGradients,
+			Tensor inputDeltas,
+			float[] columns) {
+		int numConvolutions = kernels.getBatchSize();
+		int patchSize = kernels.getExampleSize();
+		int outputSize = deltas.getPlateSize();
+		for (int n = 0; n < input.getBatchSize(); n++) {
+			int deltaStart = deltas.indexOf(n, 0, 0, 0);
+			lower(input.getFloatValues(), input, n, kernels, deltas.getHeight(), deltas.getWidth(), columns);
+			Gemm.multiply(
+					numConvolutions,
+					patchSize,
+					outputSize,
+					deltas.getFloatValues(),
+					deltaStart,
+					false /* transposeA */,
+					columns,
+					0 /* bOffset */,
+					true /* transposeB */,
+					kernelGradients.getFloatValues(),
+					kernelGradients.getOffset());
+			if (inputDeltas == null) {
+				continue;
+			}
+			Arrays.fill(columns, 0, patchSize * outputSize, 0);
+			Gemm.multiply(
+					patchSize,
+					outputSize,
+					numConvolutions,
+					kernels.getFloatValues(),
+					kernels.getOffset(),
+					true /* transposeA */,
+					deltas.getFloatValues(),
+					deltaStart,
+					false /* transposeB */,
+					columns,
+					0 /* cOffset */);
+			raise(columns, inputDeltas, n, kernels, deltas.getHeight(), deltas.getWidth());
+		}
+	}
+
+	/** The inverse of {@link #lower}: adds each column of patch deltas back into the example. */
+	private static void raise(
+			double[] columns, Tensor inputDeltas, int example, Tensor kernels, int outputHeight, int outputWidth) {
+		Kernels vector = Kernels.get();
+		double[] values = inputDeltas.getValues();
+		int outputSize = outputHeight * outputWidth;
+		int row = 0;
+		for (int c = 0; c < kernels.getNumChannels(); c++) {
+			for (int kernelRow = 0; kernelRow < kernels.getHeight(); kernelRow++) {
+				for (int kernelCol = 0; kernelCol < kernels.getWidth(); kernelCol++) {
+					int source = row * outputSize;
+					for (int i = 0; i < outputHeight; i++) {
+						vector.axpy(
+								1,
+								columns,
+								source + i * outputWidth,
+								values,
+								inputDeltas.indexOf(example, c, i + kernelRow, kernelCol),
+								outputWidth);
+					}
+					row++;
+				}
+			}
+		}
+	}
+
+	/** Single precision version of {@link #raise(double[], Tensor, int, Tensor, int, int)}. */
+	private static void raise(
+			float[] columns, Tensor inputDeltas, int example, Tensor kernels, int outputHeight, int outputWidth) {
+		Kernels vector = Kernels.get();
+		float[] values = inputDeltas.getFloatValues();
+		int outputSize = outputHeight * outputWidth;
+		int row = 0;
+		for (int c = 0; c < kernels.getNumChannels(); c++) {
+			for (int kernelRow = 0; kernelRow < kernels.getHeight(); kernelRow++) {
+				for (int kernelCol = 0; kernelCol < kernels.getWidth(); kernelCol++) {
+					int source = row * outputSize;
+					for (int i = 0; i < outputHeight; i++) {
+						vector.axpy(
+								1f,
+								columns,
+								source + i * outputWidth,
+								values,
+								inputDeltas.indexOf(example, c, i + kernelRow, kernelCol),
+								outputWidth);
+					}
+					row++;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Unrolls the kernel-sized patches of one example into the columns matrix. The values and
+	 * columns are both double[] or both float[]; lowering only copies, so it works for either.
+	 */
+	private static void lower(
+			Object values,
+			Tensor input,
+			int example,
+			Tensor kernels,
+			int outputHeight,
+			int outputWidth,
+			Object columns) {
+		int outputSize = outputHeight * outputWidth;
+		int row = 0;
+		for (int c = 0; c < kernels.getNumChannels(); c++) {
+			for (int kernelRow = 0; kernelRow < kernels.getHeight(); kernelRow++) {
+				for (int kernelCol = 0; kernelCol < kernels.getWidth(); kernelCol++) {
+					int destination = row * outputSize;
+					for (int i = 0; i < outputHeight; i++) {
+						System.arraycopy(
+								values,
+								input.indexOf(example, c, i + kernelRow, kernelCol),
+								columns,
+								destination + i * outputWidth,
+								outputWidth);
+					}
+					row++;
+				}
+			}
+		}
+	}
+}
@@ -5,14 +5,25 @@ import static cnn.tools.Util.checkPositive;
 import static cnn.tools.Util.checkValueInRange;
 
 import cnn.tools.ActivationFunction;
+import cnn.tools.Kernels;
 
-/** Represents something image-like. */
+/**
+ * Represents something image-like.
+ *
+ * A plate is a (height, width) window onto a flat, row-major array, usually one channel
+ * of a {@link Tensor}. Writes through the plate are visible in the tensor. Like a tensor,
+ * a plate is backed by either a double[] or a float[].
+ */
 public class Plate {
-	private double[][] values;
-	
+	private final double[] values;
+	private final float[] floatValues;
+	private final int offset;
+	private final int height;
+	private final int width;
+
 	/**
-	 * Constructs a new plate for the given values. 
-	 * 
+	 * Constructs a new plate for the given values. The values are copied into contiguous storage.
+	 *
 	 * IMPORTANT: The values should be organized so that the dimensions follow the
 	 * pattern of (height, width).
 	 */
@@ -20,110 +31,188 @@ public class Plate {
 		checkNotNull(values, "Plate values");
 		checkPositive(values.length, "Plate height", false);
 		checkPositive(values[0].length, "Plate width", false);
+		this.height = values.length;
+		this.width = values[0].length;
+		this.offset = 0;
+		this.floatValues = null;
+		this.values = new double[height * width];
+		for (int row = 0; row < height; row++) {
+			System.arraycopy(values[row], 0 /* Copy the whole row! */, this.values, row * width, width);
+		}
+	}
+
+	/** Constructs a plate over the given range of a row-major array. Nothing is copied. */
+	public Plate(double[] values, int offset, int height, int width) {
+		checkNotNull(values, "Plate values");
+		checkPositive(height, "Plate height", false);
+		checkPositive(width, "Plate width", false);
+		checkValueInRange(offset + height * width - 1, offset, values.length, "Plate end index");
 		this.values = values;
+		this.floatValues = null;
+		this.offset = offset;
+		this.height = height;
+		this.width = width;
+	}
+
+	/** Like {@link #Plate(double[], int, int, int)}, for single precision values. */
+	public Plate(float[] values, int offset, int height, int width) {
+		checkNotNull(values, "Plate values");
+		checkPositive(height, "Plate height", false);
+		checkPositive(width, "Plate width", false);
+		checkValueInRange(offset + height * width - 1, offset, values.length, "Plate end index");
+		this.values = null;
+		this.floatValues = values;
+		this.offset = offset;
+		this.height = height;
+		this.width = width;
 	}
 
 	/** Returns the height of each channel. */
-	public int getHeight() { return values.length; }
-	
+	public int getHeight() { return height; }
+
 	/** Returns the width of each channel. */
-	public int getWidth() { return values[0].length; }
-	
+	public int getWidth() { return width; }
+
 	/** Returns the total number of values in the plate. */
-	public int getTotalNumValues() { return getHeight() * getWidth(); }
-	
-	public double[][] getValues() {
+	public int getTotalNumValues() { return height * width; }
+
+	/** Returns the precision of the backing array. */
+	public Precision getPrecision() {
+		return values != null ? Precision.DOUBLE : Precision.FLOAT;
+	}
+
+	/** Returns the backing array of a double precision plate. The plate starts at {@link #getOffset()}. */
+	public double[] getValues() {
+		if (values == null) {
+			throw new IllegalStateException("Plate has float precision; use getFloatValues().");
+		}
 		return values;
 	}
-	
-	public void setVals(double[][] newVals) {
-		this.values = newVals;
+
+	/** Returns the backing array of a single precision plate. See {@link #getValues()}. */
+	public float[] getFloatValues() {
+		if (floatValues == null) {
+			throw new IllegalStateException("Plate has double precision; use getValues().");
+		}
+		return floatValues;
 	}
-	
-	/** Returns the value at the given channel, row, and column. */
-	public double valueAt( int row, int col) {
+
+	/** Returns the index of the plate's first value in the backing array. */
+	public int getOffset() {
+		return offset;
+	}
+
+	/** Returns the value at the given row and column. */
+	public double valueAt(int row, int col) {
 		checkValueInRange(row, 0, getHeight(), "Row index");
 		checkValueInRange(col, 0, getWidth(), "Column index");
-		return values[row][col];
+		return get(row * width + col);
+	}
+
+	private double get(int i) {
+		return values != null ? values[offset + i] : floatValues[offset + i];
 	}
 
 	/**
 	 * Returns the result of convolving the given mask with this plate.
-	 * 
-	 * The returned plate has the same size as this one.
+	 *
+	 * The returned plate has size (height - maskHeight + 1) x (width - maskWidth + 1).
 	 */
 	public Plate convolve(Plate mask) {
 		checkValidMask(mask);
-		int maskHeight = mask.getHeight();
-		int maskWidth = mask.getWidth();
-		double[][] result = new double[getHeight() - maskHeight + 1][getWidth() - maskWidth + 1];
-		for (int i = 0; i < result.length; i++) {
-			for (int j = 0; j < result[i].length; j++) {
-				result[i][j] = convolvePixelIJ(mask, i + maskHeight / 2, j + maskWidth / 2);
-			}
-		}
-		return new Plate(result);
-	}
-	
-	private double convolvePixelIJ(Plate mask, int i, int j) {
-		double sum = 0.0;
-		for (int k = 0; k < mask.getHeight(); k++) {
-			for (int l = 0; l < mask.getWidth(); l++) {
-				int neighborX = i - (mask.getHeight() / 2) + k;
-				int neighborY = j - (mask.getWidth() / 2) + l;
-				if (neighborX < 0 || neighborX >= getHeight() 
-						|| neighborY < 0 || neighborY >= getWidth()) {
-					continue;
-				}
-				sum += mask.values[k][l] * values[neighborX][neighborY];
-			}
+		int resultHeight = height - mask.height + 1;
+		int resultWidth = width - mask.width + 1;
+		Plate result = values != null
+				? new Plate(new double[resultHeight * resultWidth], 0, resultHeight, resultWidth)
+				: new Plate(new float[resultHeight * resultWidth], 0, resultHeight, resultWidth);
+		accumulateConvolution(mask, result);
+		return result;
+	}
+
+	/**
+	 * Adds the result of convolving the given mask with this plate to the result plate,
+	 * which must be (height - maskHeight + 1) x (width - maskWidth + 1). All three plates must
+	 * have the same precision.
+	 */
+	void accumulateConvolution(Plate mask, Plate result) {
+		if (values == null) {
+			Kernels.get().correlate(
+					floatValues,
+					offset,
+					width,
+					mask.getFloatValues(),
+					mask.offset,
+					mask.height,
+					mask.width,
+					result.getFloatValues(),
+					result.offset,
+					result.height,
+					result.width);
+			return;
 		}
-		return sum;
+		Kernels.get().correlate(
+				values,
+				offset,
+				width,
+				mask.getValues(),
+				mask.offset,
+				mask.height,
+				mask.width,
+				result.getValues(),
+				result.offset,
+				result.height,
+				result.width);
 	}
-	
+
 	private void checkValidMask(Plate mask) {
 		if (getHeight() < mask.getHeight() || getWidth() < mask.getWidth()) {
 			throw new IllegalArgumentException("Mask must be smaller than plate.");
 		}
 	}
-	
+
 	/** Flips each channel by 180 degrees. */
 	public Plate rot180() {
-		double[][] result = new double[getHeight()][getWidth()];
-		for (int i = 0; i < getHeight(); i++) {
-			for (int j = 0; j < getWidth(); j++) {
-				result[i][j] = values[getHeight()-1-i][getWidth()-1-j];
+		if (values == null) {
+			float[] result = new float[getTotalNumValues()];
+			for (int i = 0; i < result.length; i++) {
+				result[i] = floatValues[offset + result.length - 1 - i];
 			}
+			return new Plate(result, 0, height, width);
+		}
+		double[] result = new double[getTotalNumValues()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = values[offset + result.length - 1 - i];
 		}
-		return new Plate(result);
+		return new Plate(result, 0, height, width);
 	}
-	
+
 	/** Applies the activation function to all values in the plate. */
 	public Plate applyActivation(ActivationFunction func) {
 		checkNotNull(func, "Activation function");
-		double[][] output = new double[getHeight()][getWidth()];
-		for (int i = 0; i < getHeight(); i++) {
-			for (int j = 0; j < getWidth(); j++) {
-				output[i][j] = func.apply(values[i][j]);
-			}
+		if (values == null) {
+			float[] output = new float[getTotalNumValues()];
+			System.arraycopy(floatValues, offset, output, 0, output.length);
+			func.applyInPlace(output, 0, output.length);
+			return new Plate(output, 0, height, width);
 		}
-		return new Plate(output);
+		double[] output = as1DArray();
+		func.applyInPlace(output, 0, output.length);
+		return new Plate(output, 0, height, width);
 	}
-	
+
 	/** Pack this plate into a 1D array, channel by channel, row by row. */
 	public double[] as1DArray() {
 		double[] result = new double[getTotalNumValues()];
-		for (int row = 0; row < getHeight(); row++) {
-			System.arraycopy(
-					values[row],
-					0 /* Copy the whole row! */,
-					result,
-					row * getWidth(),
-					getWidth());
+		if (values == null) {
+			for (int i = 0; i < result.length; i++) {
+				result[i] = floatValues[offset + i];
+			}
+			return result;
 		}
+		System.arraycopy(values, offset, result, 0, result.length);
 		return result;
 	}
-	
+
 	@Override
 	public String toString() {
 		StringBuilder builder = new StringBuilder();
@@ -134,7 +223,7 @@ public class Plate {
 						getWidth()));
 		for (int i = 0; i < getHeight(); i++) {
 			for (int j = 0; j < getWidth(); j++) {
-				builder.append(String.format("%f, ", values[i][j]));
+				builder.append(String.format("%f, ", get(i * width + j)));
 			}
 			builder.append("\n");
 		}
@@ -1,7 +1,5 @@
 package cnn.components;
 
-import java.util.List;
-
 /** Interface for passing plates between conv and pool layers. */
 public interface PlateLayer {
 	/** Given the number of inputs, return how many plates this layer will output. */
@@ -13,12 +11,33 @@ public interface PlateLayer {
 	/** Given the width of the input, return the width of the output. */
 	int calculateOutputWidth(int inputWidth);
 	
-	/** Pass the given plates through this layer. */
-	List<Plate> computeOutput(List<Plate> input);
+	/** Pass the given plates (one per channel of each example) through this layer. */
+	Tensor computeOutput(Tensor input);
 	
 	/** 
-	 * Propagate errors (deltas stored in plates) through this layer,
-	 * and return the deltas for the next layer.
+	 * Propagate errors (deltas stored in plates) through this layer, accumulating any
+	 * weight gradients, and return the deltas for the next layer.
+	 */
+	Tensor propagateError(Tensor errors);
+	
+	/** Applies and then clears the gradients accumulated since the last update. */
+	void updateWeights(double learningRate);
+	
+	/**
+	 * Returns a layer that shares this layer's weights but has its own forward state and
+	 * gradients, so that it can be used from another thread.
+	 */
+	PlateLayer replicate();
+	
+	/**
+	 * Adds the gradients accumulated by a replica of this layer to this layer's gradients,
+	 * and clears the replica's.
+	 */
+	void addGradients(PlateLayer replica);
+	
+	/**
+	 * Returns a layer that computes in the given precision: this layer if it already does,
+	 * otherwise a copy with its weights converted.
 	 */
-	List<Plate> propagateError(List<Plate> errors, double learningRate);
+	PlateLayer withPrecision(Precision precision);
 }
@@ -0,0 +1,190 @@
+package cnn.components;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * Checks {@link PoolingLayer} in both pooling types and both precisions against brute-force
+ * reference loops: the forward pass, and the errors its backward pass spreads over the input.
+ * The layouts cover the default non-overlapping windows, strides smaller than the window (so
+ * windows overlap and max windows can share a maximum), strides larger than the window (so
+ * values are skipped), windows cut off by the edge, and global pooling. Inputs are multiples
+ * of 1/4 so that windows often hold ties, which max pooling must break by taking the first.
+ *
+ * Run as a program; exits with status 1 if any difference is larger than the tolerance:
+ * java cnn.components.PoolingCheck
+ */
+public final class PoolingCheck {
+	// Batch size, channels, input height and width, window height and width, stride height and
+	// width. A window of 0 x 0 means global pooling; a stride of 0 x 0 means the default.
+	private static final int[][] LAYOUTS = {
+		{2, 3, 8, 8, 2, 2, 0, 0},
+		{2, 2, 7, 9, 2, 2, 0, 0},
+		{1, 3, 9, 8, 3, 3, 2, 2},
+		{2, 2, 6, 7, 2, 3, 1, 1},
+		{1, 2, 7, 10, 2, 2, 3, 4},
+		{2, 1, 6, 6, 2, 2, 3, 3},
+		{1, 2, 5, 8, 3, 2, 1, 3},
+		{1, 1, 4, 5, 6, 7, 0, 0},
+		{2, 3, 5, 7, 0, 0, 0, 0},
+	};
+	// The largest difference allowed, relative to the largest reference value.
+	private static final double DOUBLE_TOLERANCE = 1e-12;
+	private static final double FLOAT_TOLERANCE = 1e-6;
+
+	private PoolingCheck() {}
+
+	public static void main(String[] args) {
+		boolean passed = true;
+		for (Precision precision : Precision.values()) {
+			for (PoolingType type : PoolingType.values()) {
+				for (int[] layout : LAYOUTS) {
+					passed &= check(precision, type, layout);
+				}
+			}
+		}
+		if (!passed) {
+			System.exit(1);
+		}
+	}
+
+	private static boolean check(Precision precision, PoolingType type, int[] layout) {
+		int batchSize = layout[0];
+		int numChannels = layout[1];
+		int height = layout[2];
+		int width = layout[3];
+		boolean global = layout[4] == 0;
+		int windowHeight = global ? height : layout[4];
+		int windowWidth = global ? width : layout[5];
+		int strideHeight = global ? height : layout[6] > 0 ? layout[6] : windowHeight;
+		int strideWidth = global ? width : layout[7] > 0 ? layout[7] : windowWidth;
+
+		PoolingLayer.Builder builder = PoolingLayer.newBuilder().setPoolingType(type);
+		if (global) {
+			builder.setGlobal(true);
+		} else {
+			builder.setWindowSize(windowHeight, windowWidth);
+			if (layout[6] > 0) {
+				builder.setStride(strideHeight, strideWidth);
+			}
+		}
+		PoolingLayer layer = builder.build();
+
+		List<Integer> rowStarts = windowStarts(height, windowHeight, strideHeight);
+		List<Integer> colStarts = windowStarts(width, windowWidth, strideWidth);
+		SplittableRandom random = new SplittableRandom(height * 100 + width * 10 + strideWidth);
+		Tensor input = new Tensor(precision, batchSize, numChannels, height, width);
+		for (int i = 0; i < input.getTotalNumValues(); i++) {
+			input.set(i, (random.nextInt(8) - 2) / 4.0);
+		}
+		Tensor errors = new Tensor(precision, batchSize, numChannels, rowStarts.size(), colStarts.size());
+		for (int i = 0; i < errors.getTotalNumValues(); i++) {
+			errors.set(i, random.nextDouble() - 0.5);
+		}
+
+		// The layer's tensors are reused buffers, so keep copies of their values.
+		Tensor output = layer.computeOutput(input);
+		boolean shapeMatches = output.hasSameShape(errors);
+		double[] outputValues = output.as1DArray();
+		double[] inputDeltas = layer.propagateError(errors).as1DArray();
+
+		double[] expectedOutput = new double[errors.getTotalNumValues()];
+		double[] expectedInputDeltas = new double[input.getTotalNumValues()];
+		for (int n = 0; n < batchSize; n++) {
+			for (int c = 0; c < numChannels; c++) {
+				for (int i = 0; i < rowStarts.size(); i++) {
+					int rowStart = rowStarts.get(i);
+					int rowEnd = Math.min(rowStart + windowHeight, height);
+					for (int j = 0; j < colStarts.size(); j++) {
+						int colStart = colStarts.get(j);
+						int colEnd = Math.min(colStart + windowWidth, width);
+						int outputIndex = errors.indexOf(n, c, i, j);
+						double error = errors.get(outputIndex);
+						if (type == PoolingType.MAX) {
+							// The first maximum in row-major order gets the whole error.
+							int maxRow = rowStart;
+							int maxCol = colStart;
+							for (int y = rowStart; y < rowEnd; y++) {
+								for (int x = colStart; x < colEnd; x++) {
+									if (input.valueAt(n, c, y, x) > input.valueAt(n, c, maxRow, maxCol)) {
+										maxRow = y;
+										maxCol = x;
+									}
+								}
+							}
+							expectedOutput[outputIndex] = input.valueAt(n, c, maxRow, maxCol);
+							expectedInputDeltas[input.indexOf(n, c, maxRow, maxCol)] += error;
+						} else {
+							int count = (rowEnd - rowStart) * (colEnd - colStart);
+							double sum = 0;
+							for (int y = rowStart; y < rowEnd; y++) {
+								for (int x = colStart; x < colEnd; x++) {
+									sum += input.valueAt(n, c, y, x);
+									expectedInputDeltas[input.indexOf(n, c, y, x)] += error / count;
+								}
+							}
+							expectedOutput[outputIndex] = sum / count;
+						}
+					}
+				}
+			}
+		}
+
+		double tolerance = precision == Precision.DOUBLE ? DOUBLE_TOLERANCE : FLOAT_TOLERANCE;
+		double outputError = shapeMatches ? relativeError(outputValues, expectedOutput) : Double.NaN;
+		double deltaError = relativeError(inputDeltas, expectedInputDeltas);
+		boolean passed = shapeMatches && outputError <= tolerance && deltaError <= tolerance;
+		System.out.printf(
+				"%s %-7s %dx%dx%dx%d, %s: %s output %.1e, input deltas %.1e%s%n",
+				precision,
+				type,
+				batchSize,
+				numChannels,
+				height,
+				width,
+				global
+						? "global"
+						: String.format("%dx%d windows, stride %dx%d", windowHeight, windowWidth, strideHeight, strideWidth),
+				shapeMatches
+						? String.format("%dx%d", rowStarts.size(), colStarts.size())
+						: String.format("%dx%d instead of %dx%d",
+								output.getHeight(), output.getWidth(), rowStarts.size(), colStarts.size()),
+				outputError,
+				deltaError,
+				passed ? "" : "  FAILED");
+		return passed;
+	}
+
+	/**
+	 * Returns where the windows start along a side of the given size: the first at 0, then one
+	 * every stride, until a window reaches the far edge. No window starts past the edge.
+	 */
+	private static List<Integer> windowStarts(int size, int window, int stride) {
+		List<Integer> starts = new ArrayList<>();
+		for (int start = 0; start < size; start += stride) {
+			starts.add(start);
+			if (start + window >= size) {
+				break;
+			}
+		}
+		return starts;
+	}
+
+	/** Returns the largest difference between the values, over the largest expected value. */
+	private static double relativeError(double[] actual, double[] expected) {
+		double error = 0;
+		for (int i = 0; i < expected.length; i++) {
+			error = Math.max(error, Math.abs(actual[i] - expected[i]));
+		}
+		return error / Math.max(maxAbs(expected), Double.MIN_VALUE);
+	}
+
+	private static double maxAbs(double[] values) {
+		double max = 0;
+		for (double value : values) {
+			max = Math.max(max, Math.abs(value));
+		}
+		return max;
+	}
+}
@@ -1,27 +1,75 @@
 package cnn.components;
 
+import static cnn.tools.Util.checkNotNull;
 import static cnn.tools.Util.checkPositive;
-import static cnn.tools.Util.checkValueInRange;
-
-import java.util.ArrayList;
-import java.util.List;
 
 /**
- * A plate layer that performs max pooling on a specified window. There is no overlap between different placements of
- * the window.
- * 
- * TODO: This implementation does not let you vary stride. In the future, we may want to add that feature.
+ * A plate layer that reduces each window of each plate to one value, by taking either the
+ * maximum or the mean (see {@link PoolingType}). By default the window moves by its own size,
+ * so placements do not overlap; a smaller stride makes them overlap and a larger one skips
+ * values. Windows cut off by the bottom or right edge of the plate pool what is left of them.
+ * A global pooling layer pools each whole plate to a single value, whatever its size.
+ *
+ * Max pooling remembers the index of the maximum of every window, so propagating the error
+ * back only touches one input value per output value.
  */
 public class PoolingLayer implements PlateLayer {
+	private final PoolingType type;
 	private final int windowHeight;
 	private final int windowWidth;
+	private final int strideHeight;
+	private final int strideWidth;
+	private final boolean global;
 	
-	// Similar to a plate, except it uses booleans so it's more memory efficient.
-	private ArrayList<boolean[][]> maximumOfWindow;
+	// For max pooling, the index in the last input of the value each output value came from.
+	private int[] maxIndices;
+	private Tensor previousInput;
+	private final TensorBuffer outputBuffer = new TensorBuffer();
+	private final TensorBuffer upscaledBuffer = new TensorBuffer();
 
-	private PoolingLayer(int windowHeight, int windowWidth) {
+	private PoolingLayer(
+			PoolingType type,
+			int windowHeight,
+			int windowWidth,
+			int strideHeight,
+			int strideWidth,
+			boolean global) {
+		this.type = type;
 		this.windowHeight = windowHeight;
 		this.windowWidth = windowWidth;
+		this.strideHeight = strideHeight;
+		this.strideWidth = strideWidth;
+		this.global = global;
+	}
+
+	/** Returns how each window is reduced to one value. */
+	public PoolingType getPoolingType() {
+		return type;
+	}
+
+	/** Returns the height of the pooling window, or 0 if the layer is global. */
+	public int getWindowHeight() {
+		return windowHeight;
+	}
+
+	/** Returns the width of the pooling window, or 0 if the layer is global. */
+	public int getWindowWidth() {
+		return windowWidth;
+	}
+
+	/** Returns how many rows the window moves down by, or 0 if the layer is global. */
+	public int getStrideHeight() {
+		return strideHeight;
+	}
+
+	/** Returns how many columns the window moves right by, or 0 if the layer is global. */
+	public int getStrideWidth() {
+		return strideWidth;
+	}
+
+	/** Returns true if the layer pools each whole plate to a single value. */
+	public boolean isGlobal() {
+		return global;
 	}
 
 	@Override
@@ -31,115 +79,193 @@ public class PoolingLayer implements PlateLayer {
 
 	@Override
 	public int calculateOutputHeight(int inputHeight) {
-		int outputHeight = inputHeight / windowHeight;
-		if (inputHeight % windowHeight > 0) {
-			outputHeight++;
-		}
-		return outputHeight;
+		return global ? 1 : numWindows(inputHeight, windowHeight, strideHeight);
 	}
 
 	@Override
 	public int calculateOutputWidth(int inputWidth) {
-		int outputWidth = inputWidth / windowWidth;
-		if (inputWidth % windowWidth > 0) {
-			outputWidth++;
-		}
-		return outputWidth;
+		return global ? 1 : numWindows(inputWidth, windowWidth, strideWidth);
 	}
 
 	@Override
-	public List<Plate> computeOutput(List<Plate> input) {
-		// TODO: Reuse memory.
-		if (maximumOfWindow == null) {
-			maximumOfWindow = new ArrayList<>();
-			for (int j = 0; j < input.size(); j++) {
-				maximumOfWindow.add(new boolean[input.get(j).getHeight()][input.get(j).getWidth()]);
-			}
-		}
+	public Tensor computeOutput(Tensor input) {
+		checkNotNull(input, "Pooling layer input");
+		previousInput = input;
+		int height = input.getHeight();
+		int width = input.getWidth();
+		int windowHeight = global ? height : this.windowHeight;
+		int windowWidth = global ? width : this.windowWidth;
+		int strideHeight = global ? height : this.strideHeight;
+		int strideWidth = global ? width : this.strideWidth;
 		
-		List<Plate> output = new ArrayList<Plate>(input.size());
-		for (int i = 0; i < input.size(); i++) {
-			output.add(maxPool(input.get(i), maximumOfWindow.get(i), windowHeight, windowWidth));
+		// Every output value is written below, so the buffer need not be cleared.
+		Tensor output = outputBuffer.get(
+				input.getPrecision(),
+				input.getBatchSize(),
+				input.getNumChannels(),
+				calculateOutputHeight(height),
+				calculateOutputWidth(width));
+		if (type == PoolingType.MAX
+				&& (maxIndices == null || maxIndices.length < output.getTotalNumValues())) {
+			maxIndices = new int[output.getTotalNumValues()];
+		}
+
+		// Plates are contiguous in both tensors, so output values are visited in order.
+		int numPlates = input.getBatchSize() * input.getNumChannels();
+		int index = 0;
+		for (int plate = 0; plate < numPlates; plate++) {
+			int plateStart = plate * height * width;
+			for (int i = 0; i < output.getHeight(); i++) {
+				int rowStart = i * strideHeight;
+				int rowEnd = Math.min(rowStart + windowHeight, height);
+				for (int j = 0; j < output.getWidth(); j++) {
+					int colStart = j * strideWidth;
+					int colEnd = Math.min(colStart + windowWidth, width);
+					output.set(
+							index,
+							type == PoolingType.MAX
+									? maxOfWindow(input, index, plateStart, rowStart, rowEnd, colStart, colEnd)
+									: averageOfWindow(input, plateStart, rowStart, rowEnd, colStart, colEnd));
+					index++;
+				}
+			}
 		}
 		return output;
 	}
 
 	@Override
-	public List<Plate> propagateError(List<Plate> gradients, double learningRate) {
-		// TODO: Reuse memory.
-		List<Plate> output = new ArrayList<>(gradients.size());
-		for (int i = 0; i < gradients.size(); i++) {
-			Plate errorPlate = gradients.get(i);
-			double[][] upscaledValues = new double[maximumOfWindow.get(0).length][maximumOfWindow.get(0)[0].length];
-			boolean[][] maximumOfPlate = maximumOfWindow.get(i);
-			for (int j = 0; j < maximumOfPlate.length; j++) {
-				for (int k = 0; k < maximumOfPlate[j].length; k++) {
-					// gradient is either copied from upper layer or zero - Ran Manor's answer at
-					// https://www.quora.com/In-neural-networks-how-does-backpropagation-get-carried-through-maxpool-layers
-					upscaledValues[j][k] = maximumOfPlate[j][k]
-							? errorPlate.valueAt(j / windowHeight, k / windowWidth)
-							: 0;
+	public Tensor propagateError(Tensor gradients) {
+		checkNotNull(previousInput, "Previous pooling layer input");
+		int height = previousInput.getHeight();
+		int width = previousInput.getWidth();
+		if (gradients.getBatchSize() != previousInput.getBatchSize()
+				|| gradients.getNumChannels() != previousInput.getNumChannels()
+				|| gradients.getHeight() != calculateOutputHeight(height)
+				|| gradients.getWidth() != calculateOutputWidth(width)) {
+			throw new IllegalArgumentException("Pooling layer errors do not match its last output.");
+		}
+		Tensor output = upscaledBuffer.getZeroed(
+				gradients.getPrecision(), gradients.getBatchSize(), gradients.getNumChannels(), height, width);
+		int numValues = gradients.getTotalNumValues();
+		if (type == PoolingType.MAX) {
+			// Each error goes to the input value the maximum came from - Ran Manor's answer at
+			// https://www.quora.com/In-neural-networks-how-does-backpropagation-get-carried-through-maxpool-layers
+			// Overlapping windows can share a maximum, so the errors are summed.
+			for (int index = 0; index < numValues; index++) {
+				int maxIndex = maxIndices[index];
+				output.set(maxIndex, output.get(maxIndex) + gradients.get(index));
+			}
+			return output;
+		}
+
+		int windowHeight = global ? height : this.windowHeight;
+		int windowWidth = global ? width : this.windowWidth;
+		int strideHeight = global ? height : this.strideHeight;
+		int strideWidth = global ? width : this.strideWidth;
+		int numPlates = gradients.getBatchSize() * gradients.getNumChannels();
+		int index = 0;
+		for (int plate = 0; plate < numPlates; plate++) {
+			int plateStart = plate * height * width;
+			for (int i = 0; i < gradients.getHeight(); i++) {
+				int rowStart = i * strideHeight;
+				int rowEnd = Math.min(rowStart + windowHeight, height);
+				for (int j = 0; j < gradients.getWidth(); j++) {
+					int colStart = j * strideWidth;
+					int colEnd = Math.min(colStart + windowWidth, width);
+					double share = gradients.get(index) / ((rowEnd - rowStart) * (colEnd - colStart));
+					for (int row = rowStart; row < rowEnd; row++) {
+						for (int col = colStart; col < colEnd; col++) {
+							int inputIndex = plateStart + row * width + col;
+							output.set(inputIndex, output.get(inputIndex) + share);
+						}
+					}
+					index++;
 				}
 			}
-			output.add(new Plate(upscaledValues));
 		}
 		return output;
 	}
-	
-	/** Returns the max-pooled plate. No overlap between each pool. */
-	public Plate maxPool(Plate plate, boolean[][] maximumOfPlate, int windowHeight, int windowWidth) {
-		checkValueInRange(windowHeight, 0, plate.getHeight(), "Max pool window height");
-		checkValueInRange(windowWidth, 0, plate.getWidth(), "Max pool window width");
-		int resultHeight = plate.getHeight() / windowHeight;
-		int resultWidth = plate.getWidth() / windowWidth;
-		resultHeight += plate.getHeight() % windowHeight == 0 ? 0 : 1;
-		resultWidth += plate.getWidth() % windowWidth == 0 ? 0 : 1;
-		
-		double[][] result = new double[resultHeight][resultWidth];
-		for (int i = 0; i < result.length; i++) {
-			for (int j = 0; j < result[i].length; j++) {
-				int windowStartI = Math.min(i * windowHeight, plate.getHeight() - 1);
-				int windowStartJ = Math.min(j * windowWidth, plate.getWidth() - 1);
-				result[i][j] =
-						maxValInWindow(
-								plate,
-								maximumOfPlate,
-								windowStartI,
-								windowStartJ,
-								windowHeight,
-								windowWidth);
-			}
+
+	@Override
+	public void updateWeights(double learningRate) {
+		// Pooling has no weights.
+	}
+
+	@Override
+	public PoolingLayer replicate() {
+		return new PoolingLayer(type, windowHeight, windowWidth, strideHeight, strideWidth, global);
+	}
+
+	@Override
+	public void addGradients(PlateLayer replica) {
+		// Pooling has no weights.
+	}
+
+	@Override
+	public PoolingLayer withPrecision(Precision precision) {
+		// Pooling has no weights, and its output takes the precision of its input.
+		return this;
+	}
+
+	/** Returns how many placements of the window fit along a side of the given size. */
+	private static int numWindows(int size, int window, int stride) {
+		int count = (Math.max(size - window, 0) + stride - 1) / stride + 1;
+		// With a stride larger than the window, the last placement may start past the edge.
+		if ((count - 1) * stride >= size) {
+			count--;
 		}
-		return new Plate(result);
+		return count;
 	}
-	
-	private double maxValInWindow(
-			Plate plate, boolean[][] maximumOfPlate, int windowStartI, int windowStartJ, int windowHeight, int windowWidth) {
-		double max = Double.MIN_VALUE;
-		int windowEndI = Math.min(windowStartI + windowHeight - 1, plate.getHeight() - 1);
-		int windowEndJ = Math.min(windowStartJ + windowWidth - 1, plate.getWidth() - 1);
-		int maxI = -1;
-		int maxJ = -1;
-		for (int i = windowStartI; i <= windowEndI; i++) {
-			for (int j = windowStartJ; j <= windowEndJ; j++) {
-				double value = plate.getValues()[i][j];
+
+	/**
+	 * Returns the maximum of one window, given as half-open row and column ranges of the plate
+	 * starting at the given index, and remembers where it came from.
+	 */
+	private double maxOfWindow(
+			Tensor input, int outputIndex, int plateStart, int rowStart, int rowEnd, int colStart, int colEnd) {
+		int width = input.getWidth();
+		int maxIndex = plateStart + rowStart * width + colStart;
+		double max = input.get(maxIndex);
+		for (int row = rowStart; row < rowEnd; row++) {
+			for (int col = colStart; col < colEnd; col++) {
+				int index = plateStart + row * width + col;
+				double value = input.get(index);
 				if (value > max) {
 					max = value;
-					maxI = i;
-					maxJ = j;
+					maxIndex = index;
 				}
 			}
 		}
-		maximumOfPlate[maxI][maxJ] = true;
+		maxIndices[outputIndex] = maxIndex;
 		return max;
 	}
 
+	/** Returns the mean of one window, given as for {@link #maxOfWindow}. */
+	private static double averageOfWindow(
+			Tensor input, int plateStart, int rowStart, int rowEnd, int colStart, int colEnd) {
+		int width = input.getWidth();
+		double sum = 0;
+		for (int row = rowStart; row < rowEnd; row++) {
+			for (int col = colStart; col < colEnd; col++) {
+				sum += input.get(plateStart + row * width + col);
+			}
+		}
+		return sum / ((rowEnd - rowStart) * (colEnd - colStart));
+	}
+
 	@Override
 	public String toString() {
 		StringBuilder builder = new StringBuilder();
 		builder.append("\n------\tPooling Layer\t------\n\n");
-		builder.append(String.format("Window height: %d\n", windowHeight));
-		builder.append(String.format("Window width: %d\n", windowWidth));
+		builder.append(String.format("Type: %s\n", type));
+		if (global) {
+			builder.append("Global\n");
+		} else {
+			builder.append(String.format("Window height: %d\n", windowHeight));
+			builder.append(String.format("Window width: %d\n", windowWidth));
+			builder.append(String.format("Stride height: %d\n", strideHeight));
+			builder.append(String.format("Stride width: %d\n", strideWidth));
+		}
 		builder.append("\n\t------------\t\n");
 		return builder.toString();
 	}
@@ -149,13 +275,14 @@ public class PoolingLayer implements PlateLayer {
 		return new Builder();
 	}
 
-	/**
-	 * Simple builder pattern for creating PoolingLayers. (Not very helpful now, but later we may want to add other
-	 * parameters.)
-	 */
+	/** Simple builder pattern for creating PoolingLayers. */
 	public static class Builder {
+		private PoolingType type = PoolingType.MAX;
 		private int windowHeight = 0;
 		private int windowWidth = 0;
+		private int strideHeight = 0;
+		private int strideWidth = 0;
+		private boolean global = false;
 
 		private Builder() {
 		}
@@ -168,10 +295,47 @@ public class PoolingLayer implements PlateLayer {
 			return this;
 		}
 
+		/**
+		 * Sets how many rows and columns the window moves by between placements. Defaults to the
+		 * window size, so that placements do not overlap.
+		 */
+		public Builder setStride(int height, int width) {
+			checkPositive(height, "Stride height", false);
+			checkPositive(width, "Stride width", false);
+			this.strideHeight = height;
+			this.strideWidth = width;
+			return this;
+		}
+
+		/** Sets how each window is reduced to one value. Defaults to {@link PoolingType#MAX}. */
+		public Builder setPoolingType(PoolingType type) {
+			checkNotNull(type, "Pooling type");
+			this.type = type;
+			return this;
+		}
+
+		/**
+		 * Sets whether each whole plate is pooled to a single value, whatever its size. Defaults
+		 * to false. A global layer needs no window size or stride, and ignores them if set.
+		 */
+		public Builder setGlobal(boolean global) {
+			this.global = global;
+			return this;
+		}
+
 		public PoolingLayer build() {
+			if (global) {
+				return new PoolingLayer(type, 0, 0, 0, 0, true);
+			}
 			checkPositive(windowHeight, "Window height", true);
 			checkPositive(windowWidth, "Window width", true);
-			return new PoolingLayer(windowHeight, windowWidth);
+			return new PoolingLayer(
+					type,
+					windowHeight,
+					windowWidth,
+					strideHeight > 0 ? strideHeight : windowHeight,
+					strideWidth > 0 ? strideWidth : windowWidth,
+					false);
 		}
 	}
 }
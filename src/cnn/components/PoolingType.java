@@ -0,0 +1,13 @@
+package cnn.components;
+
+/** The ways a {@link PoolingLayer} can reduce each window to one value. */
+public enum PoolingType {
+	/** Takes the largest value in the window. The error flows back to that value alone. */
+	MAX,
+
+	/**
+	 * Takes the mean of the window. Windows cut off by the edge of the plate average only the
+	 * values inside it. The error is shared evenly among the values averaged.
+	 */
+	AVERAGE;
+}
@@ -0,0 +1,10 @@
+package cnn.components;
+
+/** The floating point type tensors store their values in. */
+public enum Precision {
+	/** 64-bit doubles. The default. */
+	DOUBLE,
+
+	/** 32-bit floats. Halves memory and bandwidth at the cost of accuracy. */
+	FLOAT;
+}
@@ -0,0 +1,323 @@
+package cnn.components;
+
+import static cnn.tools.Util.checkNotNull;
+import static cnn.tools.Util.checkPositive;
+import static cnn.tools.Util.checkValueInRange;
+
+import java.util.Arrays;
+
+import cnn.tools.Kernels;
+
+/**
+ * A contiguous block of values with a (batch, channel, height, width) layout.
+ *
+ * All values live in a single backing array, so the rows of a channel, the channels of
+ * an example and the examples of a batch are adjacent in memory. Reshapes and slices
+ * return views that share the backing array; nothing is ever copied.
+ *
+ * The backing array is a double[] or a float[], depending on the tensor's precision.
+ * Hot loops should fetch the matching array; {@link #get} and {@link #set} work for both.
+ */
+public class Tensor {
+	private final double[] values;
+	private final float[] floatValues;
+	private final int offset;
+	private final int batchSize;
+	private final int numChannels;
+	private final int height;
+	private final int width;
+
+	/** Constructs a new, zero-filled double precision tensor with the given dimensions. */
+	public Tensor(int batchSize, int numChannels, int height, int width) {
+		this(Precision.DOUBLE, batchSize, numChannels, height, width);
+	}
+
+	/** Constructs a new, zero-filled tensor with the given precision and dimensions. */
+	public Tensor(Precision precision, int batchSize, int numChannels, int height, int width) {
+		this(
+				precision == Precision.DOUBLE
+						? new double[checkedSize(batchSize, numChannels, height, width)]
+						: null,
+				precision == Precision.FLOAT
+						? new float[checkedSize(batchSize, numChannels, height, width)]
+						: null,
+				0 /* offset */,
+				batchSize,
+				numChannels,
+				height,
+				width);
+	}
+
+	private Tensor(
+			double[] values,
+			float[] floatValues,
+			int offset,
+			int batchSize,
+			int numChannels,
+			int height,
+			int width) {
+		this.values = values;
+		this.floatValues = floatValues;
+		this.offset = offset;
+		this.batchSize = batchSize;
+		this.numChannels = numChannels;
+		this.height = height;
+		this.width = width;
+	}
+
+	/**
+	 * Returns a tensor backed by the given array. Writes to the tensor are visible in the
+	 * array and vice versa.
+	 */
+	public static Tensor wrap(double[] values, int batchSize, int numChannels, int height, int width) {
+		checkNotNull(values, "Tensor values");
+		checkWrappedLength(values.length, batchSize, numChannels, height, width);
+		return new Tensor(values, null, 0 /* offset */, batchSize, numChannels, height, width);
+	}
+
+	/** Like {@link #wrap(double[], int, int, int, int)}, for single precision values. */
+	public static Tensor wrap(float[] values, int batchSize, int numChannels, int height, int width) {
+		checkNotNull(values, "Tensor values");
+		checkWrappedLength(values.length, batchSize, numChannels, height, width);
+		return new Tensor(null, values, 0 /* offset */, batchSize, numChannels, height, width);
+	}
+
+	/** Returns the precision of the backing array. */
+	public Precision getPrecision() {
+		return values != null ? Precision.DOUBLE : Precision.FLOAT;
+	}
+
+	/** Returns the number of examples in the tensor. */
+	public int getBatchSize() { return batchSize; }
+
+	/** Returns the number of channels per example. */
+	public int getNumChannels() { return numChannels; }
+
+	/** Returns the height of each channel. */
+	public int getHeight() { return height; }
+
+	/** Returns the width of each channel. */
+	public int getWidth() { return width; }
+
+	/** Returns the number of values in a single channel. */
+	public int getPlateSize() { return height * width; }
+
+	/** Returns the number of values in a single example. */
+	public int getExampleSize() { return numChannels * height * width; }
+
+	/** Returns the total number of values in the tensor. */
+	public int getTotalNumValues() { return batchSize * getExampleSize(); }
+
+	/**
+	 * Returns the backing array of a double precision tensor. Only the range starting at
+	 * {@link #getOffset()} and spanning {@link #getTotalNumValues()} values belongs to this tensor.
+	 */
+	public double[] getValues() {
+		if (values == null) {
+			throw new IllegalStateException("Tensor has float precision; use getFloatValues().");
+		}
+		return values;
+	}
+
+	/** Returns the backing array of a single precision tensor. See {@link #getValues()}. */
+	public float[] getFloatValues() {
+		if (floatValues == null) {
+			throw new IllegalStateException("Tensor has double precision; use getValues().");
+		}
+		return floatValues;
+	}
+
+	/** Returns the i-th value of the tensor, counting from its first value. */
+	public double get(int i) {
+		return values != null ? values[offset + i] : floatValues[offset + i];
+	}
+
+	/** Sets the i-th value of the tensor, counting from its first value. */
+	public void set(int i, double value) {
+		if (values != null) {
+			values[offset + i] = value;
+		} else {
+			floatValues[offset + i] = (float) value;
+		}
+	}
+
+	/** Returns the index of this tensor's first value in the backing array. */
+	public int getOffset() { return offset; }
+
+	/** Returns the index in the backing array of the given example, channel, row, and column. */
+	public int indexOf(int example, int channel, int row, int col) {
+		return offset + ((example * numChannels + channel) * height + row) * width + col;
+	}
+
+	/** Returns the value at the given example, channel, row, and column. */
+	public double valueAt(int example, int channel, int row, int col) {
+		checkValueInRange(example, 0, batchSize, "Example index");
+		checkValueInRange(channel, 0, numChannels, "Channel index");
+		checkValueInRange(row, 0, height, "Row index");
+		checkValueInRange(col, 0, width, "Column index");
+		return get(indexOf(example, channel, row, col) - offset);
+	}
+
+	/** Returns true if the other tensor has the same dimensions as this one. */
+	public boolean hasSameShape(Tensor other) {
+		return batchSize == other.batchSize
+				&& numChannels == other.numChannels
+				&& height == other.height
+				&& width == other.width;
+	}
+
+	/** Returns a view of the same values with different dimensions. */
+	public Tensor reshape(int batchSize, int numChannels, int height, int width) {
+		int size = checkedSize(batchSize, numChannels, height, width);
+		if (size != getTotalNumValues()) {
+			throw new IllegalArgumentException(
+					String.format(
+							"Cannot reshape %dx%dx%dx%d tensor to %dx%dx%dx%d.",
+							this.batchSize,
+							this.numChannels,
+							this.height,
+							this.width,
+							batchSize,
+							numChannels,
+							height,
+							width));
+		}
+		return new Tensor(values, floatValues, offset, batchSize, numChannels, height, width);
+	}
+
+	/** Returns a view of the same values with the dimensions of the given tensor. */
+	public Tensor reshapeAs(Tensor other) {
+		return reshape(other.batchSize, other.numChannels, other.height, other.width);
+	}
+
+	/** Returns a view in which each example is a single row of values. */
+	public Tensor flatten() {
+		return reshape(batchSize, 1, 1, getExampleSize());
+	}
+
+	/** Returns a view of a single example. */
+	public Tensor example(int example) {
+		checkValueInRange(example, 0, batchSize, "Example index");
+		return new Tensor(
+				values,
+				floatValues,
+				indexOf(example, 0, 0, 0),
+				1 /* batchSize */,
+				numChannels,
+				height,
+				width);
+	}
+
+	/** Returns a view of the examples from the first index (inclusive) to the second (exclusive). */
+	public Tensor examples(int from, int to) {
+		checkValueInRange(from, 0, batchSize, "First example index");
+		checkValueInRange(to - 1, from, batchSize, "Last example index");
+		return new Tensor(
+				values,
+				floatValues,
+				indexOf(from, 0, 0, 0),
+				to - from /* batchSize */,
+				numChannels,
+				height,
+				width);
+	}
+
+	/** Returns a view of a single channel of a single example. */
+	public Plate plateAt(int example, int channel) {
+		checkValueInRange(example, 0, batchSize, "Example index");
+		checkValueInRange(channel, 0, numChannels, "Channel index");
+		int start = indexOf(example, channel, 0, 0);
+		return values != null
+				? new Plate(values, start, height, width)
+				: new Plate(floatValues, start, height, width);
+	}
+
+	/** Returns a copy of this tensor with the given precision. */
+	public Tensor toPrecision(Precision precision) {
+		Tensor result = new Tensor(precision, batchSize, numChannels, height, width);
+		for (int i = 0; i < getTotalNumValues(); i++) {
+			result.set(i, get(i));
+		}
+		return result;
+	}
+
+	/** Sets every value of the tensor to the given value. */
+	public void fill(double value) {
+		if (values != null) {
+			Arrays.fill(values, offset, offset + getTotalNumValues(), value);
+		} else {
+			Arrays.fill(floatValues, offset, offset + getTotalNumValues(), (float) value);
+		}
+	}
+
+	/**
+	 * Adds scale times the other tensor's values to this tensor's values. Both tensors must
+	 * have the same number of values and the same precision.
+	 */
+	public void addScaled(Tensor other, double scale) {
+		checkNotNull(other, "Tensor to add");
+		if (other.getTotalNumValues() != getTotalNumValues()
+				|| other.getPrecision() != getPrecision()) {
+			throw new IllegalArgumentException("Can only add a tensor of the same size and precision.");
+		}
+		if (values != null) {
+			Kernels.get().axpy(scale, other.values, other.offset, values, offset, getTotalNumValues());
+		} else {
+			Kernels.get().axpy(
+					(float) scale, other.floatValues, other.offset, floatValues, offset, getTotalNumValues());
+		}
+	}
+
+	/** Copies the tensor's values into a new double[], example by example, channel by channel. */
+	public double[] as1DArray() {
+		double[] result = new double[getTotalNumValues()];
+		if (values != null) {
+			System.arraycopy(values, offset, result, 0, result.length);
+		} else {
+			for (int i = 0; i < result.length; i++) {
+				result[i] = floatValues[offset + i];
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append(
+				String.format(
+						"Tensor with dimensions %dx%dx%dx%d:\n",
+						batchSize,
+						numChannels,
+						height,
+						width));
+		for (int n = 0; n < batchSize; n++) {
+			for (int c = 0; c < numChannels; c++) {
+				builder.append(plateAt(n, c).toString());
+			}
+		}
+		return builder.toString();
+	}
+
+	private static void checkWrappedLength(
+			int length, int batchSize, int numChannels, int height, int width) {
+		if (length != checkedSize(batchSize, numChannels, height, width)) {
+			throw new IllegalArgumentException(
+					String.format(
+							"Cannot wrap %d values as a %dx%dx%dx%d tensor.",
+							length,
+							batchSize,
+							numChannels,
+							height,
+							width));
+		}
+	}
+
+	private static int checkedSize(int batchSize, int numChannels, int height, int width) {
+		checkPositive(batchSize, "Tensor batch size", false);
+		checkPositive(numChannels, "Tensor channels", false);
+		checkPositive(height, "Tensor height", false);
+		checkPositive(width, "Tensor width", false);
+		return batchSize * numChannels * height * width;
+	}
+}
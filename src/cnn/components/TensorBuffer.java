@@ -0,0 +1,36 @@
+package cnn.components;
+
+/**
+ * Storage for a tensor that is reused from call to call.
+ *
+ * Layers keep one buffer per tensor they produce. The storage is sized by the first request
+ * and only reallocated for a larger batch or a different shape, so once a batch has been
+ * through the network, later batches of the same or smaller size allocate nothing. A tensor
+ * returned by a buffer is only valid until the next request to that buffer.
+ */
+public final class TensorBuffer {
+	private Tensor storage;
+
+	/**
+	 * Returns a tensor of the given shape, starting at index 0 of its backing array. Its
+	 * values are left over from earlier use.
+	 */
+	public Tensor get(Precision precision, int batchSize, int numChannels, int height, int width) {
+		if (storage == null
+				|| storage.getPrecision() != precision
+				|| storage.getBatchSize() < batchSize
+				|| storage.getNumChannels() != numChannels
+				|| storage.getHeight() != height
+				|| storage.getWidth() != width) {
+			storage = new Tensor(precision, batchSize, numChannels, height, width);
+		}
+		return storage.getBatchSize() == batchSize ? storage : storage.examples(0, batchSize);
+	}
+
+	/** Returns a zero-filled tensor of the given shape. */
+	public Tensor getZeroed(Precision precision, int batchSize, int numChannels, int height, int width) {
+		Tensor tensor = get(precision, batchSize, numChannels, height, width);
+		tensor.fill(0);
+		return tensor;
+	}
+}
@@ -0,0 +1,518 @@
+package cnn.components;
+
+import java.util.Arrays;
+
+import cnn.tools.Gemm;
+
+/**
+ * Convolution with 3x3 kernels by Winograd's minimal filtering algorithm F(2x2, 3x3).
+ *
+ * The output is computed in 2x2 tiles, each from a 4x4 tile of the input. A kernel g and an
+ * input tile d are transformed to U = G g G^T and V = B^T d B, and the output tile is
+ * A^T (U .* V) A summed over the channels: 16 multiplies per tile and channel where a direct
+ * convolution needs 36. For each of the 16 positions in a tile, summing U .* V over the
+ * channels for every kernel and tile at once is a (numConvolutions x channels) by
+ * (channels x tiles) matrix multiply. Tiles that reach past the input read zeros, and the
+ * output values they would produce past the edge are dropped.
+ *
+ * The input deltas of a convolution are the full correlation of the output deltas with the
+ * kernels rotated by 180 degrees. They are computed the same way, from the deltas padded with
+ * two zeros on each side and the rotated kernels, which map convolutions back to channels.
+ *
+ * The kernel transforms are computed once per set of kernels (see {@link TransformedKernels}).
+ * The input and output transforms only add and subtract, so the results agree with a direct
+ * convolution up to floating point rounding.
+ */
+final class Winograd {
+	/** The height and width of the kernels this algorithm supports. */
+	static final int KERNEL_SIZE = 3;
+	// The values in an input tile, and so in a transformed kernel.
+	private static final int TILE_SIZE = 16;
+	// The zeros around the deltas when computing the input deltas.
+	private static final int FULL_PADDING = KERNEL_SIZE - 1;
+
+	private Winograd() {}
+
+	/** Returns true if kernels of the given size can be convolved with this algorithm. */
+	static boolean supports(int kernelHeight, int kernelWidth) {
+		return kernelHeight == KERNEL_SIZE && kernelWidth == KERNEL_SIZE;
+	}
+
+	/**
+	 * Returns the number of values needed to convolve one example from the given number of
+	 * input channels to the given number of output channels of the given size: the
+	 * transformed input tiles, their products with the kernels, and one tile being transformed.
+	 */
+	static int scratchSize(int inputChannels, int outputChannels, int outputHeight, int outputWidth) {
+		return TILE_SIZE * ((inputChannels + outputChannels) * numTiles(outputHeight, outputWidth) + 1);
+	}
+
+	/**
+	 * Adds the convolution of each example in the input with the kernels to the output. The
+	 * kernels are given by their forward transform (see {@link TransformedKernels}), and the
+	 * scratch array must hold at least {@link #scratchSize} values.
+	 */
+	static void convolve(Tensor input, Tensor kernels, double[] transformed, Tensor output, double[] scratch) {
+		for (int n = 0; n < input.getBatchSize(); n++) {
+			correlate(
+					input.getValues(),
+					input,
+					n,
+					kernels.getNumChannels(),
+					0 /* padding */,
+					transformed,
+					kernels.getBatchSize(),
+					output,
+					scratch);
+		}
+	}
+
+	/** Like {@link #convolve(Tensor, Tensor, double[], Tensor, double[])}, for single precision tensors. */
+	static void convolve(Tensor input, Tensor kernels, float[] transformed, Tensor output, float[] scratch) {
+		for (int n = 0; n < input.getBatchSize(); n++) {
+			correlate(
+					input.getFloatValues(),
+					input,
+					n,
+					kernels.getNumChannels(),
+					0 /* padding */,
+					transformed,
+					kernels.getBatchSize(),
+					output,
+					scratch);
+		}
+	}
+
+	/**
+	 * Adds the deltas of each input value, given the deltas of the output of
+	 * {@link #convolve}, to inputDeltas, which has the input's shape. Input channels the
+	 * kernels do not cover get nothing. The kernels are given by their rotated transform (see
+	 * {@link TransformedKernels}), and the scratch array must hold at least
+	 * {@link #scratchSize} values.
+	 */
+	static void backpropagate(
+			Tensor deltas, Tensor kernels, double[] rotated, Tensor inputDeltas, double[] scratch) {
+		for (int n = 0; n < deltas.getBatchSize(); n++) {
+			correlate(
+					deltas.getValues(),
+					deltas,
+					n,
+					kernels.getBatchSize(),
+					FULL_PADDING,
+					rotated,
+					kernels.getNumChannels(),
+					inputDeltas,
+					scratch);
+		}
+	}
+
+	/** Like {@link #backpropagate(Tensor, Tensor, double[], Tensor, double[])}, for single precision tensors. */
+	static void backpropagate(
+			Tensor deltas, Tensor kernels, float[] rotated, Tensor inputDeltas, float[] scratch) {
+		for (int n = 0; n < deltas.getBatchSize(); n++) {
+			correlate(
+					deltas.getFloatValues(),
+					deltas,
+					n,
+					kernels.getBatchSize(),
+					FULL_PADDING,
+					rotated,
+					kernels.getNumChannels(),
+					inputDeltas,
+					scratch);
+		}
+	}
+
+	private static int numTiles(int outputHeight, int outputWidth) {
+		return ((outputHeight + 1) / 2) * ((outputWidth + 1) / 2);
+	}
+
+	/**
+	 * Adds the valid correlation of the first inputChannels channels of one example of the
+	 * input, padded with the given number of zeros on each side, to the first outputChannels
+	 * channels of the same example of the output. The transformed kernels are laid out
+	 * (tile position, output channel, input channel).
+	 */
+	private static void correlate(
+			double[] values,
+			Tensor input,
+			int example,
+			int inputChannels,
+			int padding,
+			double[] transformed,
+			int outputChannels,
+			Tensor output,
+			double[] scratch) {
+		int tileCols = (output.getWidth() + 1) / 2;
+		int numTiles = numTiles(output.getHeight(), output.getWidth());
+		int inputStride = inputChannels * numTiles;
+		int productStart = TILE_SIZE * inputStride;
+		int productStride = outputChannels * numTiles;
+		int tile = productStart + TILE_SIZE * productStride;
+
+		// Transform the input tiles, storing position p of tile t of channel c at
+		// p * inputStride + c * numTiles + t, so each position is a channels x tiles matrix.
+		for (int c = 0; c < inputChannels; c++) {
+			for (int t = 0; t < numTiles; t++) {
+				int top = 2 * (t / tileCols) - padding;
+				int left = 2 * (t % tileCols) - padding;
+				for (int i = 0; i < 4; i++) {
+					int row = top + i;
+					boolean rowInside = row >= 0 && row < input.getHeight();
+					int rowStart = rowInside ? input.indexOf(example, c, row, 0) : 0;
+					for (int j = 0; j < 4; j++) {
+						int col = left + j;
+						scratch[tile + 4 * i + j] = rowInside && col >= 0 && col < input.getWidth()
+								? values[rowStart + col]
+								: 0;
+					}
+				}
+				transformInputTile(scratch, tile);
+				for (int p = 0; p < TILE_SIZE; p++) {
+					scratch[p * inputStride + c * numTiles + t] = scratch[tile + p];
+				}
+			}
+		}
+
+		Arrays.fill(scratch, productStart, productStart + TILE_SIZE * productStride, 0);
+		for (int p = 0; p < TILE_SIZE; p++) {
+			Gemm.multiply(
+					outputChannels,
+					numTiles,
+					inputChannels,
+					transformed,
+					p * outputChannels * inputChannels,
+					false /* transposeA */,
+					scratch,
+					p * inputStride,
+					false /* transposeB */,
+					scratch,
+					productStart + p * productStride);
+		}
+
+		// Transform each product back to a 2x2 output tile.
+		double[] outputValues = output.getValues();
+		for (int k = 0; k < outputChannels; k++) {
+			for (int t = 0; t < numTiles; t++) {
+				for (int p = 0; p < TILE_SIZE; p++) {
+					scratch[tile + p] = scratch[productStart + p * productStride + k * numTiles + t];
+				}
+				transformOutputTile(scratch, tile);
+				int top = 2 * (t / tileCols);
+				int left = 2 * (t % tileCols);
+				for (int i = 0; i < 2 && top + i < output.getHeight(); i++) {
+					for (int j = 0; j < 2 && left + j < output.getWidth(); j++) {
+						outputValues[output.indexOf(example, k, top + i, left + j)] += scratch[tile + 2 * i + j];
+					}
+				}
+			}
+		}
+	}
+
+	/** Single precision version of {@link #correlate(double[], Tensor, int, int, int, double[], int, Tensor, double[])}. */
+	private static void correlate(
+			float[] values,
+			Tensor input,
+			int example,
+			int inputChannels,
+			int padding,
+			float[] transformed,
+			int outputChannels,
+			Tensor output,
+			float[] scratch) {
+		int tileCols = (output.getWidth() + 1) / 2;
+		int numTiles = numTiles(output.getHeight(), output.getWidth());
+		int inputStride = inputChannels * numTiles;
+		int productStart = TILE_SIZE * inputStride;
+		int productStride = outputChannels * numTiles;
+		int tile = productStart + TILE_SIZE * productStride;
+
+		for (int c = 0; c < inputChannels; c++) {
+			for (int t = 0; t < numTiles; t++) {
+				int top = 2 * (t / tileCols) - padding;
+				int left = 2 * (t % tileCols) - padding;
+				for (int i = 0; i < 4; i++) {
+					int row = top + i;
+					boolean rowInside = row >= 0 && row < input.getHeight();
+					int rowStart = rowInside ? input.indexOf(example, c, row, 0) : 0;
+					for (int j = 0; j < 4; j++) {
+						int col = left + j;
+						scratch[tile + 4 * i + j] = rowInside && col >= 0 && col < input.getWidth()
+								? values[rowStart + col]
+								: 0;
+					}
+				}
+				transformInputTile(scratch, tile);
+				for (int p = 0; p < TILE_SIZE; p++) {
+					scratch[p * inputStride + c * numTiles + t] = scratch[tile + p];
+				}
+			}
+		}
+
+		Arrays.fill(scratch, productStart, productStart + TILE_SIZE * productStride, 0);
+		for (int p = 0; p < TILE_SIZE; p++) {
+			Gemm.multiply(
+					outputChannels,
+					numTiles,
+					inputChannels,
+					transformed,
+					p * outputChannels * inputChannels,
+					false /* transposeA */,
+					scratch,
+					p * inputStride,
+					false /* transposeB */,
+					scratch,
+					productStart + p * productStride);
+		}
+
+		float[] outputValues = output.getFloatValues();
+		for (int k = 0; k < outputChannels; k++) {
+			for (int t = 0; t < numTiles; t++) {
+				for (int p = 0; p < TILE_SIZE; p++) {
+					scratch[tile + p] = scratch[productStart + p * productStride + k * numTiles + t];
+				}
+				transformOutputTile(scratch, tile);
+				int top = 2 * (t / tileCols);
+				int left = 2 * (t % tileCols);
+				for (int i = 0; i < 2 && top + i < output.getHeight(); i++) {
+					for (int j = 0; j < 2 && left + j < output.getWidth(); j++) {
+						outputValues[output.indexOf(example, k, top + i, left + j)] += scratch[tile + 2 * i + j];
+					}
+				}
+			}
+		}
+	}
+
+	/** Replaces the row-major 4x4 input tile d, starting at the given index, with B^T d B. */
+	private static void transformInputTile(double[] d, int start) {
+		// B^T d: combine the rows.
+		for (int j = start; j < start + 4; j++) {
+			double d0 = d[j];
+			double d1 = d[4 + j];
+			double d2 = d[8 + j];
+			double d3 = d[12 + j];
+			d[j] = d0 - d2;
+			d[4 + j] = d1 + d2;
+			d[8 + j] = d2 - d1;
+			d[12 + j] = d1 - d3;
+		}
+		// (B^T d) B: combine the columns.
+		for (int i = start; i < start + 16; i += 4) {
+			double d0 = d[i];
+			double d1 = d[i + 1];
+			double d2 = d[i + 2];
+			double d3 = d[i + 3];
+			d[i] = d0 - d2;
+			d[i + 1] = d1 + d2;
+			d[i + 2] = d2 - d1;
+			d[i + 3] = d1 - d3;
+		}
+	}
+
+	/**
+	 * Replaces the first 4 values of the row-major 4x4 product tile m, starting at the given
+	 * index, with A^T m A, row-major.
+	 */
+	private static void transformOutputTile(double[] m, int start) {
+		// A^T m: combine the rows into a 2x4 matrix with rows r and s.
+		double r0 = m[start] + m[start + 4] + m[start + 8];
+		double r1 = m[start + 1] + m[start + 5] + m[start + 9];
+		double r2 = m[start + 2] + m[start + 6] + m[start + 10];
+		double r3 = m[start + 3] + m[start + 7] + m[start + 11];
+		double s0 = m[start + 4] - m[start + 8] - m[start + 12];
+		double s1 = m[start + 5] - m[start + 9] - m[start + 13];
+		double s2 = m[start + 6] - m[start + 10] - m[start + 14];
+		double s3 = m[start + 7] - m[start + 11] - m[start + 15];
+		// (A^T m) A: combine the columns into a 2x2 matrix.
+		m[start] = r0 + r1 + r2;
+		m[start + 1] = r1 - r2 - r3;
+		m[start + 2] = s0 + s1 + s2;
+		m[start + 3] = s1 - s2 - s3;
+	}
+
+	/** Single precision version of {@link #transformInputTile(double[], int)}. */
+	private static void transformInputTile(float[] d, int start) {
+		for (int j = start; j < start + 4; j++) {
+			float d0 = d[j];
+			float d1 = d[4 + j];
+			float d2 = d[8 + j];
+			float d3 = d[12 + j];
+			d[j] = d0 - d2;
+			d[4 + j] = d1 + d2;
+			d[8 + j] = d2 - d1;
+			d[12 + j] = d1 - d3;
+		}
+		for (int i = start; i < start + 16; i += 4) {
+			float d0 = d[i];
+			float d1 = d[i + 1];
+			float d2 = d[i + 2];
+			float d3 = d[i + 3];
+			d[i] = d0 - d2;
+			d[i + 1] = d1 + d2;
+			d[i + 2] = d2 - d1;
+			d[i + 3] = d1 - d3;
+		}
+	}
+
+	/** Single precision version of {@link #transformOutputTile(double[], int)}. */
+	private static void transformOutputTile(float[] m, int start) {
+		float r0 = m[start] + m[start + 4] + m[start + 8];
+		float r1 = m[start + 1] + m[start + 5] + m[start + 9];
+		float r2 = m[start + 2] + m[start + 6] + m[start + 10];
+		float r3 = m[start + 3] + m[start + 7] + m[start + 11];
+		float s0 = m[start + 4] - m[start + 8] - m[start + 12];
+		float s1 = m[start + 5] - m[start + 9] - m[start + 13];
+		float s2 = m[start + 6] - m[start + 10] - m[start + 14];
+		float s3 = m[start + 7] - m[start + 11] - m[start + 15];
+		m[start] = r0 + r1 + r2;
+		m[start + 1] = r1 - r2 - r3;
+		m[start + 2] = s0 + s1 + s2;
+		m[start + 3] = s1 - s2 - s3;
+	}
+
+	/**
+	 * Writes G g G^T for each kernel g, laid out (tile position, convolution, channel), or
+	 * for each kernel rotated by 180 degrees, laid out (tile position, channel, convolution),
+	 * into whichever of the arrays is not null. The transform is computed in double precision
+	 * either way. g and gt are scratch space for one kernel and one half transformed kernel.
+	 */
+	private static void transformKernels(
+			Tensor kernels, boolean rotate, double[] transformed, float[] floatTransformed, double[] g, double[] gt) {
+		int numConvolutions = kernels.getBatchSize();
+		int numChannels = kernels.getNumChannels();
+		int matrixSize = numConvolutions * numChannels;
+		for (int k = 0; k < numConvolutions; k++) {
+			for (int c = 0; c < numChannels; c++) {
+				int start = kernels.indexOf(k, c, 0, 0) - kernels.getOffset();
+				for (int i = 0; i < g.length; i++) {
+					g[i] = kernels.get(start + (rotate ? g.length - 1 - i : i));
+				}
+				// G g: combine the rows into a 4x3 matrix.
+				for (int j = 0; j < KERNEL_SIZE; j++) {
+					double g0 = g[j];
+					double g1 = g[KERNEL_SIZE + j];
+					double g2 = g[2 * KERNEL_SIZE + j];
+					gt[j] = g0;
+					gt[KERNEL_SIZE + j] = (g0 + g1 + g2) / 2;
+					gt[2 * KERNEL_SIZE + j] = (g0 - g1 + g2) / 2;
+					gt[3 * KERNEL_SIZE + j] = g2;
+				}
+				// (G g) G^T: combine the columns into a 4x4 matrix.
+				int matrixIndex = rotate ? c * numConvolutions + k : k * numChannels + c;
+				for (int i = 0; i < 4; i++) {
+					double g0 = gt[i * KERNEL_SIZE];
+					double g1 = gt[i * KERNEL_SIZE + 1];
+					double g2 = gt[i * KERNEL_SIZE + 2];
+					int index = (4 * i) * matrixSize + matrixIndex;
+					if (transformed != null) {
+						transformed[index] = g0;
+						transformed[index + matrixSize] = (g0 + g1 + g2) / 2;
+						transformed[index + 2 * matrixSize] = (g0 - g1 + g2) / 2;
+						transformed[index + 3 * matrixSize] = g2;
+					} else {
+						floatTransformed[index] = (float) g0;
+						floatTransformed[index + matrixSize] = (float) ((g0 + g1 + g2) / 2);
+						floatTransformed[index + 2 * matrixSize] = (float) ((g0 - g1 + g2) / 2);
+						floatTransformed[index + 3 * matrixSize] = (float) g2;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * The transforms of a layer's kernels, shared by the layer and its replicas.
+	 *
+	 * The transforms are redone on first use after {@link #kernelsChanged}, which the layer
+	 * calls whenever its kernels are written. Checking costs one volatile read, so workers
+	 * running replicas at once only take the lock when the transforms are out of date.
+	 *
+	 * Two sets of transform arrays are allocated once and take turns: each version of the
+	 * kernels is transformed into the set that is not current, which then becomes current.
+	 * The kernels are only written between training steps, so callers still holding the
+	 * previous arrays are unaffected, and updating the kernels allocates nothing.
+	 */
+	static final class TransformedKernels {
+		private final Tensor kernels;
+		private volatile int version;
+		private volatile Transforms transforms;
+		// The arrays the next version is transformed into.
+		private Transforms spare;
+
+		TransformedKernels(Tensor kernels) {
+			this.kernels = kernels;
+		}
+
+		/** Marks the transforms out of date, after the kernels were written. */
+		void kernelsChanged() {
+			synchronized (this) {
+				version++;
+			}
+		}
+
+		/** Returns the forward transform, laid out (tile position, convolution, channel). */
+		double[] forward() {
+			return current().forward;
+		}
+
+		/** Returns the rotated transform, laid out (tile position, channel, convolution). */
+		double[] rotated() {
+			return current().rotated;
+		}
+
+		/** Single precision version of {@link #forward()}. */
+		float[] floatForward() {
+			return current().floatForward;
+		}
+
+		/** Single precision version of {@link #rotated()}. */
+		float[] floatRotated() {
+			return current().floatRotated;
+		}
+
+		private Transforms current() {
+			Transforms current = transforms;
+			if (current != null && current.version == version) {
+				return current;
+			}
+			synchronized (this) {
+				if (transforms == null || transforms.version != version) {
+					Transforms next = spare != null ? spare : new Transforms(kernels);
+					next.update(kernels, version);
+					spare = transforms;
+					transforms = next;
+				}
+				return transforms;
+			}
+		}
+
+		/**
+		 * The transforms of one version of the kernels, in the precision of the kernels. Written
+		 * only under the lock of the {@link TransformedKernels}, before being made current.
+		 */
+		private static final class Transforms {
+			int version;
+			final double[] forward;
+			final double[] rotated;
+			final float[] floatForward;
+			final float[] floatRotated;
+			private final double[] g = new double[KERNEL_SIZE * KERNEL_SIZE];
+			private final double[] gt = new double[4 * KERNEL_SIZE];
+
+			Transforms(Tensor kernels) {
+				int size = TILE_SIZE * kernels.getBatchSize() * kernels.getNumChannels();
+				boolean single = kernels.getPrecision() == Precision.FLOAT;
+				this.forward = single ? null : new double[size];
+				this.rotated = single ? null : new double[size];
+				this.floatForward = single ? new float[size] : null;
+				this.floatRotated = single ? new float[size] : null;
+			}
+
+			void update(Tensor kernels, int version) {
+				transformKernels(kernels, false, forward, floatForward, g, gt);
+				transformKernels(kernels, true, rotated, floatRotated, g, gt);
+				this.version = version;
+			}
+		}
+	}
+}
@@ -0,0 +1,14 @@
+package cnn.driver;
+
+/**
+ * Data that is read one pass at a time, as a sequence of batches, rather than held in memory
+ * like a {@link Dataset}.
+ */
+public interface BatchSource {
+	/**
+	 * Starts a pass over the data. Batches are read in the background, at most prefetchBatches
+	 * ahead of the caller. Close the stream when done with it, even if it was not read to the
+	 * end.
+	 */
+	BatchStream openBatches(int batchSize, int prefetchBatches);
+}
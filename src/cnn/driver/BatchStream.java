@@ -0,0 +1,99 @@
+package cnn.driver;
+
+import static cnn.tools.Util.checkPositive;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * The batches of one pass over a {@link BatchSource}, in order. A background thread produces
+ * the batches into a bounded queue, so reading overlaps with whatever the consumer does with
+ * the batches, and never runs more than a fixed number of batches ahead. Not thread-safe.
+ */
+public final class BatchStream implements Iterator<List<Instance>>, AutoCloseable {
+	/** Fills a stream with the batches of one pass. */
+	interface Producer {
+		/** Puts each batch into the stream in order, returning at the end of the pass. */
+		void produce(BatchStream stream) throws IOException, InterruptedException;
+	}
+
+	// Marks the end of the pass in the queue.
+	private final List<Instance> end = new ArrayList<>(0);
+	private final BlockingQueue<List<Instance>> queue;
+	private final Thread producer;
+	private volatile Throwable failure;
+	private List<Instance> next;
+
+	BatchStream(String name, int prefetchBatches, Producer producer) {
+		checkPositive(prefetchBatches, "Prefetch batches", false);
+		this.queue = new ArrayBlockingQueue<>(prefetchBatches);
+		this.producer = new Thread(() -> run(producer), name);
+		this.producer.setDaemon(true);
+		this.producer.start();
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (next == null) {
+			try {
+				next = queue.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while waiting for a batch.", e);
+			}
+		}
+		if (next == end) {
+			if (failure != null) {
+				throw new IllegalStateException("Cannot read the data.", failure);
+			}
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public List<Instance> next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		List<Instance> batch = next;
+		next = null;
+		return batch;
+	}
+
+	/** Stops the background thread. */
+	@Override
+	public void close() {
+		producer.interrupt();
+	}
+
+	/** Adds a batch, waiting while the queue is full. Empty batches are dropped. */
+	void put(List<Instance> batch) throws InterruptedException {
+		if (!batch.isEmpty()) {
+			queue.put(batch);
+		}
+	}
+
+	private void run(Producer producer) {
+		try {
+			producer.produce(this);
+		} catch (InterruptedException e) {
+			// Closed.
+			return;
+		} catch (Throwable e) {
+			// Errors too, such as running out of memory or a shard truncated under its
+			// mapping: the consumer must still be woken up to rethrow them.
+			failure = e;
+		}
+		try {
+			queue.put(end);
+		} catch (InterruptedException e) {
+			// Closed.
+		}
+	}
+}
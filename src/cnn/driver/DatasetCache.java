@@ -0,0 +1,270 @@
+package cnn.driver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A binary cache of a directory of images, decoded and resized once.
+ *
+ * The cache lives in the image directory as .imgcache-SIZE-MODE.bin, where MODE is how the
+ * images were decoded (see Main.decodeMode). It holds a header (format version, image size,
+ * channels, decode mode, the source directory and a fingerprint of its .jpg files, and the
+ * label table) followed by one label byte per image and then the red, green and
+ * blue planes of every image as unsigned bytes. Loading memory-maps the file and each
+ * instance reads its pixels straight from the mapping, so the cache opens quickly, the
+ * pixels take no heap, and their pages are shared by every process that reads the cache.
+ * Files over 2 GB are mapped in several pieces, each holding whole images.
+ *
+ * A cache is rebuilt when the directory, the image size, the decode mode or any .jpg file
+ * (name, length or modification time) changes.
+ *
+ * Run as a program to build the caches ahead of time:
+ * java cnn.driver.DatasetCache imageSize directory...
+ */
+public final class DatasetCache {
+	private static final int MAGIC = 0x43474d49; // "IMGC" in little-endian order.
+	private static final int VERSION = 2;
+	private static final int CHANNELS = 3;
+
+	private DatasetCache() {}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("Usage: java cnn.driver.DatasetCache <imageSize> <directory>...");
+			System.exit(1);
+		}
+		int imageSize = Integer.parseInt(args[0]);
+		for (int i = 1; i < args.length; i++) {
+			File dir = new File(args[i]);
+			long start = System.currentTimeMillis();
+			List<Instance> instances = Main.readImages(dir, imageSize);
+			write(cacheFile(dir, imageSize), dir, imageSize, instances);
+			System.out.println("Cached " + Main.comma(instances.size()) + " images from " + dir + ". Took "
+					+ Main.convertMillisecondsToTimeSpan(System.currentTimeMillis() - start) + ".");
+		}
+	}
+
+	/**
+	 * Returns the images in the directory, resized to imageSize x imageSize. Reads them from
+	 * the directory's cache if it is up to date; otherwise decodes them and rewrites the cache.
+	 * Failing to write the cache is not an error.
+	 */
+	public static List<Instance> load(File dir, int imageSize) throws IOException {
+		File cacheFile = cacheFile(dir, imageSize);
+		if (cacheFile.isFile()) {
+			List<Instance> cached = read(cacheFile, dir, imageSize);
+			if (cached != null) {
+				return cached;
+			}
+		}
+		List<Instance> instances = Main.readImages(dir, imageSize);
+		try {
+			write(cacheFile, dir, imageSize, instances);
+		} catch (IOException e) {
+			System.err.println("Warning: cannot write the dataset cache " + cacheFile + ": " + e.getMessage());
+		}
+		return instances;
+	}
+
+	/**
+	 * Returns where the cache of the directory at the given image size, decoded the way
+	 * Main is set to decode, is kept.
+	 */
+	public static File cacheFile(File dir, int imageSize) {
+		return new File(dir, ".imgcache-" + imageSize + "-" + Main.decodeMode() + ".bin");
+	}
+
+	/** Returns the cached images, or null if the cache is stale or not a cache at all. */
+	private static List<Instance> read(File cacheFile, File dir, int imageSize) throws IOException {
+		try (RandomAccessFile file = new RandomAccessFile(cacheFile, "r");
+				FileChannel channel = file.getChannel()) {
+			long fileSize = channel.size();
+			// The header and the label bytes come first and are small enough for one mapping.
+			MappedByteBuffer header = channel.map(
+					FileChannel.MapMode.READ_ONLY, 0, Math.min(fileSize, Integer.MAX_VALUE));
+			header.order(ByteOrder.LITTLE_ENDIAN);
+			String[] labels;
+			byte[] labelIndices;
+			try {
+				if (header.getInt() != MAGIC
+						|| header.getInt() != VERSION
+						|| header.getInt() != imageSize
+						|| header.getInt() != CHANNELS
+						|| !Main.decodeMode().equals(getString(header))
+						|| header.getLong() != fingerprint(dir)
+						|| !dir.getCanonicalPath().equals(getString(header))) {
+					return null;
+				}
+				// Each label takes at least its 4 length bytes.
+				int numLabels = header.getInt();
+				if (numLabels < 0 || numLabels > header.remaining() / 4) {
+					return null;
+				}
+				labels = new String[numLabels];
+				for (int i = 0; i < labels.length; i++) {
+					labels[i] = getString(header);
+					if (labels[i] == null) {
+						return null;
+					}
+				}
+				int numInstances = header.getInt();
+				if (numInstances < 0 || numInstances > header.remaining()) {
+					return null;
+				}
+				labelIndices = new byte[numInstances];
+				header.get(labelIndices);
+			} catch (RuntimeException e) {
+				// A truncated or corrupt file. Treat it as stale.
+				return null;
+			}
+
+			int imageBytes = CHANNELS * imageSize * imageSize;
+			long pixelStart = header.position();
+			if (fileSize != pixelStart + (long) labelIndices.length * imageBytes) {
+				return null;
+			}
+			int imagesPerMapping = Integer.MAX_VALUE / imageBytes;
+			List<Instance> instances = new ArrayList<>(labelIndices.length);
+			MappedByteBuffer pixels = null;
+			for (int i = 0; i < labelIndices.length; i++) {
+				int indexInMapping = i % imagesPerMapping;
+				if (indexInMapping == 0) {
+					int numImages = Math.min(imagesPerMapping, labelIndices.length - i);
+					pixels = channel.map(
+							FileChannel.MapMode.READ_ONLY,
+							pixelStart + (long) i * imageBytes,
+							(long) numImages * imageBytes);
+				}
+				ByteBuffer image = pixels.duplicate();
+				image.position(indexInMapping * imageBytes);
+				image.limit((indexInMapping + 1) * imageBytes);
+				String label = labels[labelIndices[i] & 0xFF];
+				instances.add(new Instance(image, imageSize, imageSize, label));
+			}
+			// Mappings stay valid after the channel is closed.
+			return instances;
+		}
+	}
+
+	/**
+	 * Writes the images to a temporary file, then moves it into place. The images are
+	 * streamed to the file one at a time, so caches larger than the heap can be written.
+	 */
+	private static void write(File cacheFile, File dir, int imageSize, List<Instance> instances)
+			throws IOException {
+		Map<String, Integer> labels = new LinkedHashMap<>();
+		for (Instance instance : instances) {
+			if (!labels.containsKey(instance.getLabel())) {
+				labels.put(instance.getLabel(), labels.size());
+			}
+			if (instance.getWidth() != imageSize || instance.getHeight() != imageSize) {
+				throw new IOException("Cannot cache an image that is not " + imageSize + "x" + imageSize + ".");
+			}
+		}
+		if (labels.size() > 256) {
+			throw new IOException("Cannot cache more than 256 labels.");
+		}
+
+		byte[] decodeMode = Main.decodeMode().getBytes(StandardCharsets.UTF_8);
+		byte[] path = dir.getCanonicalPath().getBytes(StandardCharsets.UTF_8);
+		int headerSize = 8 * Integer.BYTES + Long.BYTES + decodeMode.length + path.length;
+		for (String label : labels.keySet()) {
+			headerSize += Integer.BYTES + label.getBytes(StandardCharsets.UTF_8).length;
+		}
+		ByteBuffer header = ByteBuffer.allocate(headerSize).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(MAGIC);
+		header.putInt(VERSION);
+		header.putInt(imageSize);
+		header.putInt(CHANNELS);
+		header.putInt(decodeMode.length).put(decodeMode);
+		header.putLong(fingerprint(dir));
+		header.putInt(path.length).put(path);
+		header.putInt(labels.size());
+		for (String label : labels.keySet()) {
+			byte[] bytes = label.getBytes(StandardCharsets.UTF_8);
+			header.putInt(bytes.length).put(bytes);
+		}
+		header.putInt(instances.size());
+		header.flip();
+		ByteBuffer labelIndices = ByteBuffer.allocate(instances.size());
+		for (Instance instance : instances) {
+			labelIndices.put((byte) (int) labels.get(instance.getLabel()));
+		}
+		labelIndices.flip();
+		long fileSize = headerSize + (long) instances.size() * (1 + CHANNELS * imageSize * imageSize);
+
+		File temp = File.createTempFile(".imgcache", ".tmp", dir);
+		try {
+			try (RandomAccessFile file = new RandomAccessFile(temp, "rw");
+					FileChannel channel = file.getChannel()) {
+				writeFully(channel, header);
+				writeFully(channel, labelIndices);
+				for (Instance instance : instances) {
+					writeFully(channel, instance.getPixels());
+				}
+				if (channel.size() != fileSize) {
+					throw new IOException("Wrote " + channel.size() + " bytes, expected " + fileSize + ".");
+				}
+			}
+			Files.move(
+					temp.toPath(),
+					cacheFile.toPath(),
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temp.toPath());
+		}
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	/** Hashes the name, length and modification time of every .jpg file in the directory. */
+	private static long fingerprint(File dir) {
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return 0;
+		}
+		Arrays.sort(files);
+		long hash = 17;
+		for (File file : files) {
+			if (!Main.isImageFile(file)) {
+				continue;
+			}
+			hash = 31 * hash + file.getName().hashCode();
+			hash = 31 * hash + file.length();
+			hash = 31 * hash + file.lastModified();
+		}
+		return hash;
+	}
+
+	/**
+	 * Returns the length-prefixed string at the buffer's position, or null if the length does
+	 * not fit in the rest of the buffer, as in a corrupt or truncated file.
+	 */
+	private static String getString(ByteBuffer buffer) {
+		int length = buffer.getInt();
+		if (length < 0 || length > buffer.remaining()) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,148 @@
+package cnn.driver;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Decodes an image straight to a small size.
+ *
+ * The decoder is asked to subsample by the largest whole factor that keeps the image at least
+ * the target size, so a 128x128 JPEG read at 32x32 is only ever 32x32 in memory. Subsampling
+ * takes the middle pixel of each block, the same pixel that Graphics2D's default
+ * nearest-neighbor scaling picks, so for whole ratios the result matches the old
+ * decode-then-drawImage path. When the ratio is not whole, an area-averaging pass over plain
+ * arrays finishes the resize.
+ */
+final class ImageDecoder {
+	private ImageDecoder() {}
+
+	/**
+	 * Returns the red, green and blue planes of the image one after another, each size x size
+	 * and row-major, one byte per value.
+	 */
+	static byte[] decode(File file, int size) throws IOException {
+		BufferedImage image;
+		try (ImageInputStream input = ImageIO.createImageInputStream(file)) {
+			if (input == null) {
+				throw new IOException("cannot open the file");
+			}
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+			if (!readers.hasNext()) {
+				throw new IOException("not a readable image");
+			}
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(input, true, true);
+				int xPeriod = Math.max(1, reader.getWidth(0) / size);
+				int yPeriod = Math.max(1, reader.getHeight(0) / size);
+				ImageReadParam param = reader.getDefaultReadParam();
+				param.setSourceSubsampling(xPeriod, yPeriod, xPeriod / 2, yPeriod / 2);
+				image = reader.read(0, param);
+			} finally {
+				reader.dispose();
+			}
+		}
+
+		int width = image.getWidth();
+		int height = image.getHeight();
+		int[] rgb = image.getRGB(0, 0, width, height, null, 0, width);
+		int planeSize = size * size;
+		byte[] pixels = new byte[3 * planeSize];
+		if (width == size && height == size) {
+			for (int i = 0; i < planeSize; i++) {
+				pixels[i] = (byte) (rgb[i] >> 16);
+				pixels[planeSize + i] = (byte) (rgb[i] >> 8);
+				pixels[2 * planeSize + i] = (byte) rgb[i];
+			}
+			return pixels;
+		}
+
+		Weights columns = new Weights(width, size);
+		Weights rows = new Weights(height, size);
+		float[] plane = new float[width * height];
+		float[] rowsResized = new float[height * size];
+		float[] resized = new float[planeSize];
+		for (int c = 0; c < 3; c++) {
+			int shift = 16 - 8 * c;
+			for (int i = 0; i < plane.length; i++) {
+				plane[i] = (rgb[i] >> shift) & 0xFF;
+			}
+			areaAverage(plane, width, height, columns, rows, rowsResized, resized);
+			for (int i = 0; i < planeSize; i++) {
+				pixels[c * planeSize + i] = (byte) Math.round(resized[i]);
+			}
+		}
+		return pixels;
+	}
+
+	/**
+	 * Resizes a row-major plane into result by averaging the source area under each target
+	 * pixel. Works in two separable passes, first along rows into rowsResized and then along
+	 * columns.
+	 */
+	private static void areaAverage(
+			float[] plane,
+			int width,
+			int height,
+			Weights columns,
+			Weights rows,
+			float[] rowsResized,
+			float[] result) {
+		int newWidth = columns.size();
+		for (int row = 0; row < height; row++) {
+			columns.apply(plane, row * width, 1, rowsResized, row * newWidth, 1);
+		}
+		for (int col = 0; col < newWidth; col++) {
+			rows.apply(rowsResized, col, newWidth, result, col, newWidth);
+		}
+	}
+
+	/**
+	 * For each target index along one axis, the source indices it overlaps and by how much,
+	 * normalized to sum to one.
+	 */
+	private static final class Weights {
+		private final int[] first;
+		private final float[][] weights;
+
+		Weights(int length, int newLength) {
+			first = new int[newLength];
+			weights = new float[newLength][];
+			double scale = (double) length / newLength;
+			for (int i = 0; i < newLength; i++) {
+				double start = i * scale;
+				double end = Math.min(length, (i + 1) * scale);
+				int from = (int) start;
+				int to = Math.min(length, (int) Math.ceil(end));
+				first[i] = from;
+				weights[i] = new float[to - from];
+				for (int j = from; j < to; j++) {
+					double overlap = Math.min(end, j + 1) - Math.max(start, j);
+					weights[i][j - from] = (float) (overlap / (end - start));
+				}
+			}
+		}
+
+		int size() {
+			return first.length;
+		}
+
+		void apply(float[] source, int sourceOffset, int sourceStride, float[] target, int targetOffset, int targetStride) {
+			for (int i = 0; i < first.length; i++) {
+				float sum = 0;
+				int index = sourceOffset + first[i] * sourceStride;
+				for (float weight : weights[i]) {
+					sum += weight * source[index];
+					index += sourceStride;
+				}
+				target[targetOffset + i * targetStride] = sum;
+			}
+		}
+	}
+}
@@ -1,93 +1,112 @@
 package cnn.driver;
 
-import java.awt.Color;
 import java.awt.image.BufferedImage;
-import java.awt.image.DataBufferByte;
+import java.nio.ByteBuffer;
 
 /** 
  * This is the class for each image instance.
+ *
+ * The pixels are stored as one byte per channel value: the red, green and blue planes one
+ * after another, each row-major. They are usually a heap array, but may be a slice of a
+ * memory-mapped file (see {@link DatasetCache}). The label is stored as its class id (see
+ * {@link Labels}).
  * @author Yuting Liu
  */
 public class Instance {
-	// Store the bufferedImage.
-	private BufferedImage image;
-	private String label;
-	private int width, height;
-	
-	// Separate rgb channels.
-	private int[][] red_channel, green_channel, blue_channel, gray_image;
+	public static final int RED = 0, GREEN = 1, BLUE = 2;
+	private static final int NUM_CHANNELS = 3;
+
+	// Read with absolute gets only, so the position never changes and threads can share it.
+	private final ByteBuffer pixels;
+	private final int classId;
+	private final int width, height;
 
 	/** Constructs the Instance from a BufferedImage. */
 	public Instance(BufferedImage image, String label) {
-		this.image = image;
-		this.label = label;
+		this.classId = Labels.idOf(label);
 		width = image.getWidth();
 		height = image.getHeight();
 
 		// Get separate rgb channels.
-		red_channel = new int[height][width];
-		green_channel = new int[height][width];
-		blue_channel = new int[height][width];
-		gray_image = new int[height][width];
-
-		for (int row = 0; row < height; ++row) {
-			for (int col = 0; col < width; ++col) {
-				Color c = new Color(this.image.getRGB(col, row));
-				red_channel[row][col] = c.getRed();
-				green_channel[row][col] = c.getGreen();
-				blue_channel[row][col] = c.getBlue();
-			}
+		int[] rgb = image.getRGB(0, 0, width, height, null, 0, width);
+		int planeSize = width * height;
+		byte[] pixels = new byte[NUM_CHANNELS * planeSize];
+		for (int i = 0; i < planeSize; i++) {
+			pixels[RED * planeSize + i] = (byte) (rgb[i] >> 16);
+			pixels[GREEN * planeSize + i] = (byte) (rgb[i] >> 8);
+			pixels[BLUE * planeSize + i] = (byte) rgb[i];
 		}
+		this.pixels = ByteBuffer.wrap(pixels);
 	}
 	
-	/** Construct the Instance from a 3D array. */
+	/**
+	 * Construct the Instance from a 3D array of red, green and blue channels. A fourth (gray)
+	 * channel is ignored.
+	 */
 	public Instance(int[][][] image, String label) {
-		this.label = label;
+		this.classId = Labels.idOf(label);
 		height = image[0].length;
 		width = image[0][0].length;
-		
-		red_channel = image[0];
-		green_channel = image[1];
-		blue_channel = image[2];
-		if (image.length == 4) {
-			gray_image = image[3];
-		} else {
-			gray_image = new int[height][width];
+
+		byte[] pixels = new byte[NUM_CHANNELS * width * height];
+		for (int c = 0; c < NUM_CHANNELS; c++) {
 			for (int i = 0; i < height; i++) {
 				for (int j = 0; j < width; j++) {
-					gray_image[i][j] = (image[0][i][j] + image[1][i][j] + image[2][i][j]) / 3;
+					pixels[index(c, i, j)] = (byte) image[c][i][j];
 				}
 			}
 		}
+		this.pixels = ByteBuffer.wrap(pixels);
+	}
+
+	/** Constructs the Instance from planar red, green and blue bytes, which it keeps. */
+	Instance(byte[] pixels, int width, int height, String label) {
+		this(ByteBuffer.wrap(pixels), width, height, label);
+	}
+
+	/**
+	 * Constructs the Instance from the planar red, green and blue bytes between the position
+	 * and the limit of the buffer. Keeps a view of them, not a copy, so a buffer mapped from a
+	 * file is read from the page cache.
+	 */
+	Instance(ByteBuffer pixels, int width, int height, String label) {
+		if (pixels.remaining() != NUM_CHANNELS * width * height) {
+			throw new IllegalArgumentException("Pixel buffer does not match a " + width + "x" + height + " image.");
+		}
+		this.pixels = pixels.slice();
+		this.classId = Labels.idOf(label);
+		this.width = width;
+		this.height = height;
 	}
 
-	/** Gets separate red channel image. */
+	/** Gets the value (0 to 255) of one channel at one pixel. */
+	public int getValue(int channel, int row, int col) {
+		return pixels.get(index(channel, row, col)) & 0xFF;
+	}
+
+	/** Gets separate red channel image. Returns a new array on every call. */
 	public int[][] getRedChannel() {
-		return red_channel;
+		return getChannel(RED);
 	}
 
-	/** Gets separate green channel image. */
+	/** Gets separate green channel image. Returns a new array on every call. */
 	public int[][] getGreenChannel() {
-		return green_channel;
+		return getChannel(GREEN);
 	}
 
-	/** Gets separate blue channel image. */
+	/** Gets separate blue channel image. Returns a new array on every call. */
 	public int[][] getBlueChannel() {
-		return blue_channel;
+		return getChannel(BLUE);
 	}
 
-	/** Gets the gray scale image. */
+	/**
+	 * Gets the gray scale image. Returns a new array on every call.
+	 *
+	 * NOTE: The gray image has always been blank (all 0), and the networks are tuned with
+	 * that input, so it stays that way.
+	 */
 	public int[][] getGrayImage() {
-		// Gray filter
-		BufferedImage grayImage = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
-		byte[] dstBuff = ((DataBufferByte) grayImage.getRaster().getDataBuffer()).getData();
-
-		for (int row = 0; row < height; ++row) {
-			for (int col = 0; col < width; ++col) {
-				gray_image[row][col] = dstBuff[col + row * width] & 0xFF;
-			}
-		}
-		return gray_image;
+		return new int[height][width];
 	}
 
 	/** Gets the image width. */
@@ -102,6 +121,33 @@ public class Instance {
 
 	/** Gets the image label. */
 	public String getLabel() {
-		return label;
+		return Labels.nameOf(classId);
+	}
+
+	/** Gets the class id of the image label. */
+	public int getClassId() {
+		return classId;
+	}
+
+	/**
+	 * Returns a read-only view of the planar pixel bytes, positioned at the first. The view
+	 * is new on every call, so reading it does not disturb other readers.
+	 */
+	ByteBuffer getPixels() {
+		return pixels.asReadOnlyBuffer();
+	}
+
+	private int[][] getChannel(int channel) {
+		int[][] result = new int[height][width];
+		for (int i = 0; i < height; i++) {
+			for (int j = 0; j < width; j++) {
+				result[i][j] = getValue(channel, i, j);
+			}
+		}
+		return result;
+	}
+
+	private int index(int channel, int row, int col) {
+		return (channel * height + row) * width + col;
 	}
 }
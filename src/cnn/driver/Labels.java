@@ -0,0 +1,33 @@
+package cnn.driver;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Gives every label a small integer class id, so instances can store and compare labels as
+ * ints. Ids are assigned in order of first use and never change during a run.
+ */
+public final class Labels {
+	private static final List<String> names = new ArrayList<>();
+	private static final Map<String, Integer> ids = new HashMap<>();
+
+	private Labels() {}
+
+	/** Returns the class id of the label, assigning the next free id if it has none yet. */
+	public static synchronized int idOf(String label) {
+		Integer id = ids.get(label);
+		if (id == null) {
+			id = names.size();
+			names.add(label);
+			ids.put(label, id);
+		}
+		return id;
+	}
+
+	/** Returns the label with the given class id. */
+	public static synchronized String nameOf(int id) {
+		return names.get(id);
+	}
+}
@@ -1,17 +1,24 @@
 package cnn.driver;
 
 import cnn.ConvolutionalNeuralNetwork;
+import cnn.components.ConvolutionAlgorithm;
 import cnn.components.ConvolutionLayer;
 import cnn.components.PoolingLayer;
 import cnn.tools.ActivationFunction;
+import cnn.tools.RandomStreams;
 import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Random;
+import java.util.SplittableRandom;
 import java.util.Vector;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import javax.imageio.ImageIO;
 
 /**
@@ -70,6 +77,24 @@ public final class Main {
 	private static int MAX_INSTANCES = 30;
 	private static boolean FAST = false;
 
+	// If true, decoded images are kept in a binary cache in each image directory (see DatasetCache).
+	private static boolean useDatasetCache = true;
+
+	// Number of threads that decode and resize images while loading a dataset.
+	private static int loadThreads = Runtime.getRuntime().availableProcessors();
+
+	// If true, the JPEG decoder subsamples images to about imageSize itself (see ImageDecoder). If false, each image is
+	// fully decoded and then scaled with Graphics2D.
+	private static boolean useSubsampledDecode = true;
+
+	// If set, the deep network is loaded from this file instead of trained, when the file exists. Otherwise it is
+	// trained and then saved here.
+	private static File modelFile = null;
+
+	// While training, a checkpoint is kept next to the model file (with .ckpt appended), written at most this often. A
+	// run that finds the checkpoint resumes from it. The checkpoint is deleted once the model file is saved.
+	private static int checkpointSeconds = 60;
+
 	public static Dataset trainSet, tuneSet, testSet;
 	
 	public static void main(String[] args) {
@@ -79,7 +104,7 @@ public final class Main {
 
 		if (args.length > 5) {
 			System.err.println(
-					"Usage error: java Main <train_set_folder_path> <tune_set_folder_path> <test_set_foler_path> <imageSize>");
+					"Usage error: java Main <train_set_folder_path> <tune_set_folder_path> <test_set_foler_path> <imageSize> <model_file>");
 			System.exit(1);
 		}
 		if (args.length >= 1) {
@@ -94,6 +119,9 @@ public final class Main {
 		if (args.length >= 4) {
 			imageSize = Integer.parseInt(args[3]);
 		}
+		if (args.length >= 5) {
+			modelFile = new File(args[4]);
+		}
 
 		// Here are statements with the absolute path to open images folder
 		File trainsetDir = new File(trainDirectory);
@@ -136,46 +164,117 @@ public final class Main {
 	}
 
 	public static void loadDataset(Dataset dataset, File dir) {
-		for (File file : dir.listFiles()) {
-			// check all files
-			if (!file.isFile() || !file.getName().endsWith(".jpg")) {
-				continue;
+		List<Instance> instances;
+		try {
+			instances = useDatasetCache ? DatasetCache.load(dir, imageSize) : readImages(dir, imageSize);
+		} catch (IOException e) {
+			System.err.println("Error: cannot load in the image file");
+			System.exit(1);
+			return;
+		}
+		SplittableRandom sampler = RandomStreams.next("sample");
+		for (Instance instance : instances) {
+			if (!FAST || (sampler.nextDouble() > .80) && MAX_INSTANCES > dataset.getSize()) {
+				dataset.add(instance);
 			}
-			// String path = file.getAbsolutePath();
-			BufferedImage img = null, scaledBI = null;
-			try {
-				// load in all images
-				img = ImageIO.read(file);
-				// every image's name is in such format: label_image_XXXX(4 digits) though this code could handle more than
-				// 4 digits.
-				String name = file.getName();
-				int locationOfUnderscoreImage = name.indexOf("_image");
-
-				// Resize the image if requested. Any resizing allowed, but should really be one of 8x8, 16x16, 32x32, or
-				// 64x64 (original data is 128x128).
-				if (imageSize != 128) {
-					scaledBI = new BufferedImage(imageSize, imageSize, BufferedImage.TYPE_INT_RGB);
-					Graphics2D g = scaledBI.createGraphics();
-					g.drawImage(img, 0, 0, imageSize, imageSize, null);
-					g.dispose();
-				}
 
-				Instance instance = new Instance(scaledBI == null ? img : scaledBI,
-						name.substring(0, locationOfUnderscoreImage));
+			if (dataset.getSize() > MAX_INSTANCES && FAST) {
+				return;
+			}
+		}
+	}
+
+	/** Returns true for the files loadDataset reads. */
+	static boolean isImageFile(File file) {
+		return file.isFile() && file.getName().endsWith(".jpg");
+	}
 
-				if (!FAST || (Math.random() > .80) && MAX_INSTANCES > dataset.getSize()) {
-					dataset.add(instance);
+	/**
+	 * Decodes and resizes every image in the directory, one file per task on a pool of
+	 * loadThreads threads. The images come back sorted by file name whatever order the tasks
+	 * finish in. A file that cannot be read is reported and skipped.
+	 */
+	static List<Instance> readImages(File dir, int imageSize) throws IOException {
+		File[] files = dir.listFiles();
+		if (files == null) {
+			throw new IOException("Cannot list " + dir);
+		}
+		Arrays.sort(files);
+
+		ExecutorService pool = Executors.newFixedThreadPool(loadThreads, runnable -> {
+			Thread thread = new Thread(runnable, "image-loader");
+			thread.setDaemon(true);
+			return thread;
+		});
+		try {
+			List<File> imageFiles = new ArrayList<>();
+			List<Future<Instance>> tasks = new ArrayList<>();
+			for (File file : files) {
+				// check all files
+				if (!isImageFile(file)) {
+					continue;
 				}
-				
-				if (dataset.getSize() > MAX_INSTANCES && FAST) {
-					return;
+				imageFiles.add(file);
+				tasks.add(pool.submit(() -> readImage(file, imageSize)));
+			}
+
+			List<Instance> instances = new ArrayList<>(tasks.size());
+			for (int i = 0; i < tasks.size(); i++) {
+				try {
+					instances.add(tasks.get(i).get());
+				} catch (ExecutionException e) {
+					System.err.println("Error: cannot load in the image file " + imageFiles.get(i) + ": " + e.getCause());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while loading " + dir, e);
 				}
-			} catch (IOException e) {
-				System.err.println("Error: cannot load in the image file");
-				System.exit(1);
 			}
+			return instances;
+		} finally {
+			pool.shutdownNow();
 		}
 	}
+
+	/**
+	 * Returns how readImage decodes images, "subsampled" or "resized". Caches of decoded
+	 * images are kept per mode, since the two give different pixels.
+	 */
+	static String decodeMode() {
+		return useSubsampledDecode ? "subsampled" : "resized";
+	}
+
+	static Instance readImage(File file, int imageSize) throws IOException {
+		// every image's name is in such format: label_image_XXXX(4 digits) though this code could handle more than
+		// 4 digits.
+		String name = file.getName();
+		int locationOfUnderscoreImage = name.indexOf("_image");
+		if (locationOfUnderscoreImage < 0) {
+			throw new IOException("the file name does not start with label_image");
+		}
+		String label = name.substring(0, locationOfUnderscoreImage);
+
+		if (useSubsampledDecode) {
+			return new Instance(ImageDecoder.decode(file, imageSize), imageSize, imageSize, label);
+		}
+
+		BufferedImage img = null, scaledBI = null;
+		// load in all images
+		img = ImageIO.read(file);
+		if (img == null) {
+			throw new IOException("not a readable image");
+		}
+
+		// Resize the image if requested. Any resizing allowed, but should really be one of 8x8, 16x16, 32x32, or
+		// 64x64 (original data is 128x128).
+		if (imageSize != 128) {
+			scaledBI = new BufferedImage(imageSize, imageSize, BufferedImage.TYPE_INT_RGB);
+			Graphics2D g = scaledBI.createGraphics();
+			g.drawImage(img, 0, 0, imageSize, imageSize, null);
+			g.dispose();
+		}
+
+		return new Instance(scaledBI == null ? img : scaledBI, label);
+	}
 	///////////////////////////////////////////////////////////////////////////////////////////////
 
 	private static Category convertCategoryStringToEnum(String name) {
@@ -270,6 +369,7 @@ public final class Main {
 
 	private static Vector<Double> convertToFeatureVector(Instance image) {
 		Vector<Double> result = new Vector<>(inputVectorSize);
+		int[][] red = image.getRedChannel(), green = image.getGreenChannel(), blue = image.getBlueChannel();
 		int[][] gray = image.getGrayImage();
 		int width = image.getWidth();
 		for (int index = 0; index < inputVectorSize - 1; index++) {
@@ -280,14 +380,14 @@ public final class Main {
 				// System.out.println(" xValue = " + xValue + " and yValue = " + yValue + " for index = " + index);
 				if (index % 4 == 0)
 					// if unitsPerPixel > 4, this if-then-elseif needs to be edited!
-					result.add(image.getRedChannel()[xValue][yValue] / 255.0);
+					result.add(red[xValue][yValue] / 255.0);
 				else if (index % 4 == 1)
-					result.add(image.getGreenChannel()[xValue][yValue] / 255.0);
+					result.add(green[xValue][yValue] / 255.0);
 				else if (index % 4 == 2)
-					result.add(image.getBlueChannel()[xValue][yValue] / 255.0);
+					result.add(blue[xValue][yValue] / 255.0);
 				else
 					// Seems reasonable to also provide the GREY value.
-					result.add(image.getGrayImage()[xValue][yValue] / 255.0);
+					result.add(gray[xValue][yValue] / 255.0);
 			} else {
 				int xValue = index % width;
 				int yValue = index / width;
@@ -401,7 +501,7 @@ public final class Main {
 		}
 	}
 
-	public static Random randomInstance = new Random(638 * 838);
+	public static SplittableRandom randomInstance = RandomStreams.next("driver");
 
 	/**
 	 * @return The next random double.
@@ -548,17 +648,38 @@ public final class Main {
 			Vector<Vector<Double>> trainFeatureVectors,
 			Vector<Vector<Double>> tuneFeatureVectors,
 			Vector<Vector<Double>> testFeatureVectors) {
-		ConvolutionalNeuralNetwork cnn = ConvolutionalNeuralNetwork.newBuilder()
+		if (modelFile != null && modelFile.isFile()) {
+			ConvolutionalNeuralNetwork cnn;
+			try {
+				cnn = ConvolutionalNeuralNetwork.load(modelFile);
+			} catch (IOException e) {
+				System.err.println("Error: cannot load the model file " + modelFile + ": " + e.getMessage());
+				System.exit(1);
+				return 1;
+			}
+			System.out.println("******\tDeep CNN loaded from " + modelFile + "."
+					+ " The structure is described below.\t******");
+			System.out.println(cnn);
+
+			System.out.println("\n******\tDeep CNN testing has begun.\t******");
+			System.out.println(cnn.test(testSet, true) + "% accuracy");
+			return 0;
+		}
+
+		File checkpointFile = modelFile != null ? new File(modelFile.getPath() + ".ckpt") : null;
+		ConvolutionalNeuralNetwork.Builder builder = ConvolutionalNeuralNetwork.newBuilder()
 				.setInputHeight(imageSize)
 				.setInputWidth(imageSize)
 				.appendConvolutionLayer(ConvolutionLayer.newBuilder()
 						.setConvolutionSize(4, 5, 5)
 						.setNumConvolutions(20)
+						.setConvolutionAlgorithm(ConvolutionAlgorithm.IM2COL)
 						.build())
 				.appendPoolingLayer(PoolingLayer.newBuilder().setWindowSize(2, 2).build())
 				.appendConvolutionLayer(ConvolutionLayer.newBuilder()
 						.setConvolutionSize(1, 5, 5)
 						.setNumConvolutions(20)
+						.setConvolutionAlgorithm(ConvolutionAlgorithm.IM2COL)
 						.build())
 				.appendPoolingLayer(PoolingLayer.newBuilder().setWindowSize(2, 2).build())
 				.appendConvolutionLayer(ConvolutionLayer.newBuilder()
@@ -571,16 +692,40 @@ public final class Main {
 				.setClasses(categoryNames)
 				.setMinEpochs(minEpochs)
 				.setMaxEpochs(maxEpochs)
-				.setLearningRate(eta)
-				.build();
+				.setLearningRate(eta);
+		if (checkpointFile != null) {
+			builder.setCheckpointFile(checkpointFile).setCheckpointEverySeconds(checkpointSeconds);
+		}
+		ConvolutionalNeuralNetwork cnn = builder.build();
 
 		System.out.println("******\tDeep CNN constructed."
 				+ " The structure is described below.\t******");
 		System.out.println(cnn);
 
+		if (checkpointFile != null && checkpointFile.isFile()) {
+			try {
+				cnn.resume(checkpointFile);
+				System.out.println("Resuming training from the checkpoint " + checkpointFile + ".");
+			} catch (IOException e) {
+				System.err.println("Warning: cannot resume from the checkpoint " + checkpointFile + ": " + e.getMessage());
+			}
+		}
+
 		System.out.println("******\tDeep CNN training has begun."
 				+ " Updates will be provided after each epoch.\t******");
 		cnn.train(trainSet, tuneSet, true);
+		if (modelFile != null) {
+			try {
+				cnn.save(modelFile);
+				System.out.println("Saved the network to " + modelFile + ".");
+				// The run is finished, so a later run without the model file should start over.
+				if (checkpointFile.isFile() && !checkpointFile.delete()) {
+					System.err.println("Warning: cannot delete the checkpoint " + checkpointFile + ".");
+				}
+			} catch (IOException e) {
+				System.err.println("Warning: cannot save the model file " + modelFile + ": " + e.getMessage());
+			}
+		}
 		
 		System.out.println("\n******\tDeep CNN testing has begun.\t******");
 		System.out.println(cnn.test(testSet, true) + "% accuracy");
@@ -0,0 +1,402 @@
+package cnn.driver;
+
+import static cnn.tools.Util.checkNotNull;
+import static cnn.tools.Util.checkPositive;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+import cnn.tools.RandomStreams;
+
+/**
+ * A dataset stored as fixed-size image records in shard files, with random access by record
+ * id.
+ *
+ * The index file (NAME.idx) holds the format version, the image size, the number of records
+ * per shard and in total, the label table and the shard file names. Each shard
+ * (NAME-00000.rec, ...) holds a short header and then its records back to back: a 2-byte
+ * label index followed by the red, green and blue planes as unsigned bytes. Everything is
+ * little-endian. Records all have the same size, so record i is found by arithmetic alone.
+ * Shards are memory-mapped, so the data stays out of the heap.
+ *
+ * A shuffled view reads blocks of consecutive records in a new random order on every pass,
+ * and shuffles the records of a window of several blocks together. Each block is one
+ * sequential read, yet neighboring records rarely end up in the same batch.
+ *
+ * Run as a program to convert image directories:
+ * java cnn.driver.RecordDataset imageSize recordsPerShard NAME.idx directory...
+ */
+public final class RecordDataset implements BatchSource {
+	private static final int INDEX_MAGIC = 0x52474d49; // "IMGR" in little-endian order.
+	private static final int SHARD_MAGIC = 0x53474d49; // "IMGS" in little-endian order.
+	private static final int VERSION = 1;
+	private static final int CHANNELS = 3;
+	private static final int SHARD_HEADER_SIZE = 4 * Integer.BYTES;
+	private static final int LABEL_SIZE = Short.BYTES;
+	// How many images are read from the source at a time while writing.
+	private static final int WRITE_BATCH_SIZE = 256;
+
+	private final int imageSize;
+	private final int recordsPerShard;
+	private final long numRecords;
+	private final String[] labels;
+	private final MappedByteBuffer[] shards;
+	// Null when not shuffled. Guarded by itself.
+	private final SplittableRandom random;
+	private final int blockSize;
+	private final int windowBlocks;
+
+	private RecordDataset(
+			int imageSize,
+			int recordsPerShard,
+			long numRecords,
+			String[] labels,
+			MappedByteBuffer[] shards,
+			SplittableRandom random,
+			int blockSize,
+			int windowBlocks) {
+		this.imageSize = imageSize;
+		this.recordsPerShard = recordsPerShard;
+		this.numRecords = numRecords;
+		this.labels = labels;
+		this.shards = shards;
+		this.random = random;
+		this.blockSize = blockSize;
+		this.windowBlocks = windowBlocks;
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 4) {
+			System.err.println(
+					"Usage: java cnn.driver.RecordDataset <imageSize> <recordsPerShard> <index file> <directory>...");
+			System.exit(1);
+		}
+		int imageSize = Integer.parseInt(args[0]);
+		int recordsPerShard = Integer.parseInt(args[1]);
+		File indexFile = new File(args[2]);
+		List<File> dirs = new ArrayList<>();
+		for (int i = 3; i < args.length; i++) {
+			dirs.add(new File(args[i]));
+		}
+		long start = System.currentTimeMillis();
+		StreamingDataset source =
+				new StreamingDataset(dirs, imageSize, Runtime.getRuntime().availableProcessors());
+		long numRecords = write(source, imageSize, indexFile, recordsPerShard);
+		System.out.println("Wrote " + Main.comma(numRecords) + " records to " + indexFile + ". Took "
+				+ Main.convertMillisecondsToTimeSpan(System.currentTimeMillis() - start) + ".");
+	}
+
+	/**
+	 * Writes every image of a pass over the source as records, starting a new shard every
+	 * recordsPerShard records, and writes the index last. Returns the number of records.
+	 */
+	public static long write(BatchSource source, int imageSize, File indexFile, int recordsPerShard)
+			throws IOException {
+		checkPositive(imageSize, "Image size", false);
+		checkPositive(recordsPerShard, "Records per shard", false);
+		int recordSize = recordSize(imageSize);
+		if ((long) recordsPerShard * recordSize + SHARD_HEADER_SIZE > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Shards cannot be larger than 2 GB.");
+		}
+
+		Map<String, Integer> labelIndices = new LinkedHashMap<>();
+		List<String> shardNames = new ArrayList<>();
+		long numRecords = 0;
+		OutputStream shard = null;
+		ByteBuffer record = ByteBuffer.allocate(recordSize).order(ByteOrder.LITTLE_ENDIAN);
+		try (BatchStream batches = source.openBatches(WRITE_BATCH_SIZE, 2)) {
+			while (batches.hasNext()) {
+				for (Instance instance : batches.next()) {
+					if (instance.getWidth() != imageSize || instance.getHeight() != imageSize) {
+						throw new IOException("Cannot store an image that is not " + imageSize + "x" + imageSize + ".");
+					}
+					if (numRecords % recordsPerShard == 0) {
+						if (shard != null) {
+							shard.close();
+						}
+						String shardName = shardName(indexFile, shardNames.size());
+						shard = openShard(new File(indexFile.getAbsoluteFile().getParentFile(), shardName),
+								shardNames.size(), recordsPerShard, imageSize);
+						shardNames.add(shardName);
+					}
+					Integer labelIndex = labelIndices.get(instance.getLabel());
+					if (labelIndex == null) {
+						labelIndex = labelIndices.size();
+						if (labelIndex > Short.MAX_VALUE) {
+							throw new IOException("Cannot store more than " + (Short.MAX_VALUE + 1) + " labels.");
+						}
+						labelIndices.put(instance.getLabel(), labelIndex);
+					}
+					record.clear();
+					record.putShort((short) (int) labelIndex);
+					record.put(instance.getPixels());
+					shard.write(record.array());
+					numRecords++;
+				}
+			}
+		} finally {
+			if (shard != null) {
+				shard.close();
+			}
+		}
+
+		ByteBuffer index = ByteBuffer.allocate(indexSize(labelIndices.keySet(), shardNames))
+				.order(ByteOrder.LITTLE_ENDIAN);
+		index.putInt(INDEX_MAGIC);
+		index.putInt(VERSION);
+		index.putInt(imageSize);
+		index.putInt(CHANNELS);
+		index.putInt(recordsPerShard);
+		index.putLong(numRecords);
+		index.putInt(labelIndices.size());
+		for (String label : labelIndices.keySet()) {
+			putString(index, label);
+		}
+		index.putInt(shardNames.size());
+		for (String shardName : shardNames) {
+			putString(index, shardName);
+		}
+		Files.write(indexFile.toPath(), index.array());
+		return numRecords;
+	}
+
+	/** Opens the records listed in the index file, to be read in record order. */
+	public static RecordDataset open(File indexFile) throws IOException {
+		ByteBuffer index = ByteBuffer.wrap(Files.readAllBytes(indexFile.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+		if (index.remaining() < 2 * Integer.BYTES || index.getInt() != INDEX_MAGIC) {
+			throw new IOException(indexFile + " is not a record index.");
+		}
+		int version = index.getInt();
+		if (version != VERSION) {
+			throw new IOException(indexFile + " has unsupported version " + version + ".");
+		}
+		int imageSize = index.getInt();
+		int channels = index.getInt();
+		if (channels != CHANNELS) {
+			throw new IOException(indexFile + " has " + channels + " channels; only " + CHANNELS + " are supported.");
+		}
+		int recordsPerShard = index.getInt();
+		long numRecords = index.getLong();
+		String[] labels = new String[index.getInt()];
+		for (int i = 0; i < labels.length; i++) {
+			labels[i] = getString(index);
+		}
+		MappedByteBuffer[] shards = new MappedByteBuffer[index.getInt()];
+		long expectedShards = (numRecords + recordsPerShard - 1) / recordsPerShard;
+		if (shards.length != expectedShards) {
+			throw new IOException(indexFile + " lists " + shards.length + " shards, not " + expectedShards + ".");
+		}
+		File dir = indexFile.getAbsoluteFile().getParentFile();
+		for (int i = 0; i < shards.length; i++) {
+			File shardFile = new File(dir, getString(index));
+			long shardRecords = Math.min(recordsPerShard, numRecords - (long) i * recordsPerShard);
+			shards[i] = mapShard(shardFile, i, shardRecords, imageSize);
+		}
+		return new RecordDataset(imageSize, recordsPerShard, numRecords, labels, shards, null, 0, 0);
+	}
+
+	/**
+	 * Returns a view of the same records whose passes are block-shuffled: every pass reads
+	 * blocks of blockSize consecutive records in a new random order, and shuffles the records
+	 * of each windowBlocks blocks together. Each pass draws from its own stream split off the
+	 * given one, so the orders depend only on that stream and the pass.
+	 */
+	public RecordDataset shuffled(int blockSize, int windowBlocks, SplittableRandom random) {
+		checkPositive(blockSize, "Block size", false);
+		checkPositive(windowBlocks, "Window blocks", false);
+		checkNotNull(random, "Random stream");
+		if ((numRecords + blockSize - 1) / blockSize > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Too many blocks to shuffle; use larger blocks.");
+		}
+		return new RecordDataset(
+				imageSize, recordsPerShard, numRecords, labels, shards, random, blockSize, windowBlocks);
+	}
+
+	/**
+	 * Returns a block-shuffled view with 64-record blocks, 16 blocks to a window, drawing from
+	 * the next "record-shuffle" stream.
+	 */
+	public RecordDataset shuffled() {
+		return shuffled(64, 16, RandomStreams.next("record-shuffle"));
+	}
+
+	/** Returns the number of records. */
+	public long size() {
+		return numRecords;
+	}
+
+	/** Returns the size of each (square) image. */
+	public int getImageSize() {
+		return imageSize;
+	}
+
+	/** Reads the record with the given id, counting from 0. Safe to call from any thread. */
+	public Instance get(long id) {
+		if (id < 0 || id >= numRecords) {
+			throw new IllegalArgumentException(String.format("Record id must be in [0, %d); got %d", numRecords, id));
+		}
+		ByteBuffer shard = shards[(int) (id / recordsPerShard)].duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		shard.position(SHARD_HEADER_SIZE + (int) (id % recordsPerShard) * recordSize(imageSize));
+		String label = labels[shard.getShort()];
+		byte[] pixels = new byte[CHANNELS * imageSize * imageSize];
+		shard.get(pixels);
+		return new Instance(pixels, imageSize, imageSize, label);
+	}
+
+	/** Reads every record into an in-memory dataset, in record order. */
+	public Dataset toDataset() {
+		Dataset dataset = new Dataset();
+		for (long id = 0; id < numRecords; id++) {
+			dataset.add(get(id));
+		}
+		return dataset;
+	}
+
+	@Override
+	public BatchStream openBatches(int batchSize, int prefetchBatches) {
+		checkPositive(batchSize, "Batch size", false);
+		SplittableRandom passRandom = null;
+		if (random != null) {
+			synchronized (random) {
+				passRandom = random.split();
+			}
+		}
+		SplittableRandom finalPassRandom = passRandom;
+		return new BatchStream(
+				"record-prefetcher", prefetchBatches, stream -> produce(stream, finalPassRandom, batchSize));
+	}
+
+	/** Reads the records in batches, in record order if passRandom is null. */
+	private void produce(BatchStream stream, SplittableRandom passRandom, int batchSize)
+			throws InterruptedException {
+		if (passRandom == null) {
+			List<Instance> batch = new ArrayList<>(batchSize);
+			for (long id = 0; id < numRecords; id++) {
+				batch.add(get(id));
+				if (batch.size() == batchSize) {
+					stream.put(batch);
+					batch = new ArrayList<>(batchSize);
+				}
+			}
+			stream.put(batch);
+			return;
+		}
+
+		int[] blockOrder = new int[(int) ((numRecords + blockSize - 1) / blockSize)];
+		for (int i = 0; i < blockOrder.length; i++) {
+			blockOrder[i] = i;
+		}
+		RandomStreams.shuffle(blockOrder, passRandom);
+		List<Instance> pending = new ArrayList<>();
+		for (int window = 0; window < blockOrder.length; window += windowBlocks) {
+			List<Instance> records = new ArrayList<>(windowBlocks * blockSize);
+			for (int b = window; b < Math.min(window + windowBlocks, blockOrder.length); b++) {
+				long first = (long) blockOrder[b] * blockSize;
+				long end = Math.min(first + blockSize, numRecords);
+				for (long id = first; id < end; id++) {
+					records.add(get(id));
+				}
+			}
+			RandomStreams.shuffle(records, passRandom);
+			pending.addAll(records);
+			int start = 0;
+			for (; pending.size() - start >= batchSize; start += batchSize) {
+				stream.put(new ArrayList<>(pending.subList(start, start + batchSize)));
+			}
+			pending = new ArrayList<>(pending.subList(start, pending.size()));
+		}
+		stream.put(pending);
+	}
+
+	private static int recordSize(int imageSize) {
+		return LABEL_SIZE + CHANNELS * imageSize * imageSize;
+	}
+
+	private static String shardName(File indexFile, int shard) {
+		String name = indexFile.getName();
+		if (name.endsWith(".idx")) {
+			name = name.substring(0, name.length() - ".idx".length());
+		}
+		return String.format("%s-%05d.rec", name, shard);
+	}
+
+	private static OutputStream openShard(File file, int shard, int recordsPerShard, int imageSize)
+			throws IOException {
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+		ByteBuffer header = ByteBuffer.allocate(SHARD_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(SHARD_MAGIC).putInt(VERSION).putInt(shard).putInt(imageSize);
+		out.write(header.array());
+		return out;
+	}
+
+	private static MappedByteBuffer mapShard(File file, int shard, long numRecords, int imageSize)
+			throws IOException {
+		MappedByteBuffer buffer;
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+				FileChannel channel = raf.getChannel()) {
+			long expectedSize = SHARD_HEADER_SIZE + numRecords * recordSize(imageSize);
+			if (channel.size() != expectedSize) {
+				throw new IOException(file + " is " + channel.size() + " bytes, not " + expectedSize + ".");
+			}
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, expectedSize);
+		}
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		if (buffer.getInt(0) != SHARD_MAGIC
+				|| buffer.getInt(Integer.BYTES) != VERSION
+				|| buffer.getInt(2 * Integer.BYTES) != shard
+				|| buffer.getInt(3 * Integer.BYTES) != imageSize) {
+			throw new IOException(file + " is not shard " + shard + " of this index.");
+		}
+		return buffer;
+	}
+
+	private static int indexSize(Iterable<String> labels, List<String> shardNames) {
+		int size = 7 * Integer.BYTES + Long.BYTES;
+		for (String label : labels) {
+			size += Integer.BYTES + label.getBytes(StandardCharsets.UTF_8).length;
+		}
+		for (String shardName : shardNames) {
+			size += Integer.BYTES + shardName.getBytes(StandardCharsets.UTF_8).length;
+		}
+		return size;
+	}
+
+	private static void putString(ByteBuffer buffer, String string) {
+		byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+		buffer.putInt(bytes.length).put(bytes);
+	}
+
+	private static String getString(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.getInt()];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"RecordDataset(%d records of %dx%d in %d shards, labels %s%s)",
+				numRecords,
+				imageSize,
+				imageSize,
+				shards.length,
+				Arrays.toString(labels),
+				random == null ? "" : String.format(", shuffled in blocks of %d", blockSize));
+	}
+}
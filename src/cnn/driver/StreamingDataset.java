@@ -0,0 +1,98 @@
+package cnn.driver;
+
+import static cnn.tools.Util.checkNotEmpty;
+import static cnn.tools.Util.checkPositive;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A dataset that is read from disk as it is used, for datasets too large to hold in memory.
+ *
+ * The dataset is a list of shards, each a directory of images. A pass over the dataset lists
+ * one shard at a time and decodes its images into batches on background threads, which run
+ * ahead of the consumer by at most a fixed number of batches. Memory use therefore depends on
+ * the batch size and the prefetch depth, not on the size of the dataset.
+ */
+public final class StreamingDataset implements BatchSource {
+	private final List<File> shards;
+	private final int imageSize;
+	private final int decodeThreads;
+
+	/** Streams the images in the shard directories, in shard order and by file name within each shard. */
+	public StreamingDataset(List<File> shards, int imageSize, int decodeThreads) {
+		checkNotEmpty(shards, "Shards", false);
+		checkPositive(imageSize, "Image size", false);
+		checkPositive(decodeThreads, "Decode threads", false);
+		this.shards = new ArrayList<>(shards);
+		this.imageSize = imageSize;
+		this.decodeThreads = decodeThreads;
+	}
+
+	@Override
+	public BatchStream openBatches(int batchSize, int prefetchBatches) {
+		checkPositive(batchSize, "Batch size", false);
+		return new BatchStream("batch-prefetcher", prefetchBatches, stream -> produce(stream, batchSize));
+	}
+
+	/** Lists and decodes the shards, one batch at a time, until the pass ends or is closed. */
+	private void produce(BatchStream stream, int batchSize) throws IOException, InterruptedException {
+		ExecutorService decoders = Executors.newFixedThreadPool(decodeThreads, runnable -> {
+			Thread thread = new Thread(runnable, "batch-decoder");
+			thread.setDaemon(true);
+			return thread;
+		});
+		try {
+			List<File> pending = new ArrayList<>(batchSize);
+			for (File shard : shards) {
+				File[] files = shard.listFiles();
+				if (files == null) {
+					throw new IOException("Cannot list " + shard);
+				}
+				Arrays.sort(files);
+				for (File file : files) {
+					if (!Main.isImageFile(file)) {
+						continue;
+					}
+					pending.add(file);
+					if (pending.size() == batchSize) {
+						stream.put(decode(pending, decoders));
+						pending.clear();
+					}
+				}
+			}
+			if (!pending.isEmpty()) {
+				stream.put(decode(pending, decoders));
+			}
+		} finally {
+			decoders.shutdownNow();
+		}
+	}
+
+	/**
+	 * Decodes the files in parallel. A file that cannot be read is reported and left out, so a
+	 * batch may be short.
+	 */
+	private List<Instance> decode(List<File> files, ExecutorService decoders) throws InterruptedException {
+		List<Future<Instance>> tasks = new ArrayList<>(files.size());
+		for (File file : files) {
+			tasks.add(decoders.submit(() -> Main.readImage(file, imageSize)));
+		}
+		List<Instance> batch = new ArrayList<>(files.size());
+		for (int i = 0; i < tasks.size(); i++) {
+			try {
+				batch.add(tasks.get(i).get());
+			} catch (ExecutionException e) {
+				System.err.println("Error: cannot load in the image file " + files.get(i) + ": " + e.getCause());
+			}
+		}
+		return batch;
+	}
+}
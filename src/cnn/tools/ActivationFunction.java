@@ -1,30 +1,103 @@
 package cnn.tools;
 
-import java.util.function.Function;
+import java.util.function.DoubleUnaryOperator;
 
-/** Represents activation functions for any node. */
+/**
+ * Represents activation functions for any node.
+ *
+ * Layers should use the bulk methods ({@link #applyInPlace}, {@link #multiplyByDerivative}) on
+ * whole buffers. They run on the active {@link Kernels}, which may use SIMD instructions.
+ */
 public enum ActivationFunction {
 	RELU(/* function */ x -> Math.max(x, 0.01),
 			/* derivative */ x -> (x > 0.01) ? 1.0 : 0.0),
-	SIGMOID(/* function */ x -> 1 / (1 + Math.pow(Math.E, -x)),
+	SIGMOID(/* function */ x -> 1 / (1 + Math.exp(-x)),
+			/* derivative */ x -> x * (1 - x)),
+	/**
+	 * The sigmoid, linearly interpolated from a table. Within 1.2e-5 of {@link #SIGMOID}
+	 * everywhere. Has the same derivative as the sigmoid.
+	 */
+	FAST_SIGMOID(/* function */ FastSigmoid::apply,
 			/* derivative */ x -> x * (1 - x));
 
-	private final Function<Double, Double> theFunc;
-	private final Function<Double, Double> derivative;
-	
-  ActivationFunction(Function<Double, Double> theFunc, Function<Double, Double> derivative) {
-    this.theFunc = theFunc;
-    this.derivative = derivative;
-  }
+	private final DoubleUnaryOperator theFunc;
+	private final DoubleUnaryOperator derivative;
+
+	ActivationFunction(DoubleUnaryOperator theFunc, DoubleUnaryOperator derivative) {
+		this.theFunc = theFunc;
+		this.derivative = derivative;
+	}
 
 	/** Applies the activation function. */
-  public double apply(double x) { return theFunc.apply(x); }
-	
+	public double apply(double x) { return theFunc.applyAsDouble(x); }
+
+	/** Applies the activation function in single precision. */
+	public float apply(float x) { return (float) apply((double) x); }
+
 	/**
-	 * Evaluates the derivative at x. 
-	 * 
+	 * Evaluates the derivative at x.
+	 *
 	 * NOTE: Assumes that x is a value that has already been passed through the
 	 * activation function. (These derivatives all depend on the value at the activation function.)
 	 */
-	public double applyDerivative(double x) { return derivative.apply(x); } 
+	public double applyDerivative(double x) { return derivative.applyAsDouble(x); }
+
+	/** Evaluates the derivative at x in single precision. See {@link #applyDerivative(double)}. */
+	public float applyDerivative(float x) { return (float) applyDerivative((double) x); }
+
+	/** Replaces each value in [from, to) with the result of the activation function. */
+	public void applyInPlace(double[] values, int from, int to) {
+		Kernels.get().activate(this, values, from, to);
+	}
+
+	/** Single precision version of {@link #applyInPlace(double[], int, int)}. */
+	public void applyInPlace(float[] values, int from, int to) {
+		Kernels.get().activate(this, values, from, to);
+	}
+
+	/**
+	 * Multiplies each delta by the derivative at the corresponding activated value, the usual
+	 * last step of backpropagating through a layer.
+	 */
+	public void multiplyByDerivative(
+			double[] activated, int activatedOffset, double[] deltas, int deltaOffset, int length) {
+		Kernels.get().multiplyByDerivative(this, activated, activatedOffset, deltas, deltaOffset, length);
+	}
+
+	/** Single precision version of {@link #multiplyByDerivative(double[], int, double[], int, int)}. */
+	public void multiplyByDerivative(
+			float[] activated, int activatedOffset, float[] deltas, int deltaOffset, int length) {
+		Kernels.get().multiplyByDerivative(this, activated, activatedOffset, deltas, deltaOffset, length);
+	}
+
+	/**
+	 * A sigmoid table over [-16, 16] with 32 entries per unit. Linear interpolation errs by at
+	 * most h^2 / 8 * max|sigmoid''| = (1/32)^2 / 8 * 0.0963 < 1.2e-5, and clamping the tails
+	 * errs by at most sigmoid(-16) < 1.2e-7.
+	 */
+	private static final class FastSigmoid {
+		private static final double LIMIT = 16;
+		private static final int STEPS_PER_UNIT = 32;
+		private static final double[] TABLE = new double[(int) (2 * LIMIT * STEPS_PER_UNIT) + 1];
+
+		static {
+			for (int i = 0; i < TABLE.length; i++) {
+				TABLE[i] = 1 / (1 + Math.exp(LIMIT - (double) i / STEPS_PER_UNIT));
+			}
+		}
+
+		static double apply(double x) {
+			if (x <= -LIMIT) {
+				return TABLE[0];
+			}
+			if (x >= LIMIT) {
+				return TABLE[TABLE.length - 1];
+			}
+			double position = (x + LIMIT) * STEPS_PER_UNIT;
+			int index = (int) position;
+			double fraction = position - index;
+			// At x just below LIMIT, index + 1 is still the last entry.
+			return TABLE[index] + fraction * (TABLE[index + 1] - TABLE[index]);
+		}
+	}
 }
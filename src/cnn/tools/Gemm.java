@@ -0,0 +1,471 @@
+package cnn.tools;
+
+import cnn.components.Precision;
+import cnn.components.Tensor;
+
+/**
+ * A cache-blocked, register-tiled general matrix multiply over row-major double or float arrays.
+ *
+ * Computes C += op(A) * op(B), where op(X) is X or its transpose. Panels of A and B are
+ * packed into contiguous buffers sized to stay in cache, and a 4x4 micro-kernel keeps
+ * its block of C in registers while it streams through the packed panels.
+ */
+public final class Gemm {
+	// Register tile.
+	private static final int MR = 4;
+	private static final int NR = 4;
+
+	// Cache blocks: a packed A block (MC x KC) should fit in L2, a packed B panel
+	// (KC x NR) in L1.
+	private static final int MC = 64;
+	private static final int KC = 256;
+	private static final int NC = 512;
+
+	/** Per-thread packing buffers, so concurrent multiplies never share scratch space. */
+	private static final ThreadLocal<Buffers> BUFFERS = new ThreadLocal<Buffers>() {
+		@Override
+		protected Buffers initialValue() {
+			return new Buffers();
+		}
+	};
+	private static final ThreadLocal<FloatBuffers> FLOAT_BUFFERS = new ThreadLocal<FloatBuffers>() {
+		@Override
+		protected FloatBuffers initialValue() {
+			return new FloatBuffers();
+		}
+	};
+
+	private Gemm() {}
+
+	/**
+	 * Performs C += op(A) * op(B), where op(A) is m x k, op(B) is k x n and C is m x n.
+	 *
+	 * All matrices are dense and row-major, starting at the given offsets. If a transpose flag
+	 * is set, the corresponding array holds the untransposed matrix (e.g. A is stored k x m).
+	 */
+	public static void multiply(
+			int m,
+			int n,
+			int k,
+			double[] a,
+			int aOffset,
+			boolean transposeA,
+			double[] b,
+			int bOffset,
+			boolean transposeB,
+			double[] c,
+			int cOffset) {
+		if (m <= 0 || n <= 0 || k <= 0) {
+			return;
+		}
+		if (multiplyVectors(m, n, k, a, aOffset, transposeA, b, bOffset, transposeB, c, cOffset)) {
+			return;
+		}
+		// Strides between consecutive rows and columns of op(A) and op(B).
+		int aRowStride = transposeA ? 1 : k;
+		int aColStride = transposeA ? m : 1;
+		int bRowStride = transposeB ? 1 : n;
+		int bColStride = transposeB ? k : 1;
+
+		Buffers buffers = BUFFERS.get();
+		for (int jc = 0; jc < n; jc += NC) {
+			int nc = Math.min(NC, n - jc);
+			for (int pc = 0; pc < k; pc += KC) {
+				int kc = Math.min(KC, k - pc);
+				packB(b, bOffset + pc * bRowStride + jc * bColStride, bRowStride, bColStride, kc, nc, buffers.packedB);
+				for (int ic = 0; ic < m; ic += MC) {
+					int mc = Math.min(MC, m - ic);
+					packA(a, aOffset + ic * aRowStride + pc * aColStride, aRowStride, aColStride, mc, kc, buffers.packedA);
+					for (int jr = 0; jr < nc; jr += NR) {
+						int cols = Math.min(NR, nc - jr);
+						for (int ir = 0; ir < mc; ir += MR) {
+							int rows = Math.min(MR, mc - ir);
+							microKernel(
+									kc,
+									buffers.packedA,
+									ir * kc,
+									buffers.packedB,
+									jr * kc,
+									c,
+									cOffset + (ic + ir) * n + jc + jr,
+									n,
+									rows,
+									cols,
+									buffers.tile);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Handles products in which an operand is a single vector (one row of op(A), one column
+	 * of op(B), or k = 1) with dot products and axpy updates. Packing would copy the whole of
+	 * the other operand to fill one row or column of each micro-kernel call, so these loops are
+	 * faster with the scalar kernels as well as the SIMD ones. Returns false for any other shape.
+	 */
+	private static boolean multiplyVectors(
+			int m,
+			int n,
+			int k,
+			double[] a,
+			int aOffset,
+			boolean transposeA,
+			double[] b,
+			int bOffset,
+			boolean transposeB,
+			double[] c,
+			int cOffset) {
+		Kernels kernels = Kernels.get();
+		if (k == 1) {
+			// A rank-1 update. A single column or row is contiguous whether or not it is transposed.
+			for (int i = 0; i < m; i++) {
+				kernels.axpy(a[aOffset + i], b, bOffset, c, cOffset + i * n, n);
+			}
+			return true;
+		}
+		if (m == 1 && transposeB) {
+			for (int j = 0; j < n; j++) {
+				c[cOffset + j] += kernels.dot(a, aOffset, b, bOffset + j * k, k);
+			}
+			return true;
+		}
+		if (m == 1) {
+			for (int p = 0; p < k; p++) {
+				kernels.axpy(a[aOffset + p], b, bOffset + p * n, c, cOffset, n);
+			}
+			return true;
+		}
+		if (n == 1 && !transposeA) {
+			for (int i = 0; i < m; i++) {
+				c[cOffset + i * n] += kernels.dot(a, aOffset + i * k, b, bOffset, k);
+			}
+			return true;
+		}
+		return false;
+	}
+
+	/** Packs an mc x kc block of A into MR-row panels, zero-padding the last panel. */
+	private static void packA(
+			double[] a, int offset, int rowStride, int colStride, int mc, int kc, double[] packed) {
+		int index = 0;
+		for (int ir = 0; ir < mc; ir += MR) {
+			int rows = Math.min(MR, mc - ir);
+			for (int p = 0; p < kc; p++) {
+				int source = offset + ir * rowStride + p * colStride;
+				for (int i = 0; i < MR; i++) {
+					packed[index++] = i < rows ? a[source + i * rowStride] : 0;
+				}
+			}
+		}
+	}
+
+	/** Packs a kc x nc block of B into NR-column panels, zero-padding the last panel. */
+	private static void packB(
+			double[] b, int offset, int rowStride, int colStride, int kc, int nc, double[] packed) {
+		int index = 0;
+		for (int jr = 0; jr < nc; jr += NR) {
+			int cols = Math.min(NR, nc - jr);
+			for (int p = 0; p < kc; p++) {
+				int source = offset + p * rowStride + jr * colStride;
+				for (int j = 0; j < NR; j++) {
+					packed[index++] = j < cols ? b[source + j * colStride] : 0;
+				}
+			}
+		}
+	}
+
+	/** Multiplies one packed MR x kc panel of A by one packed kc x NR panel of B into C. */
+	private static void microKernel(
+			int kc,
+			double[] packedA,
+			int aIndex,
+			double[] packedB,
+			int bIndex,
+			double[] c,
+			int cIndex,
+			int ldc,
+			int rows,
+			int cols,
+			double[] tile) {
+		double c00 = 0, c01 = 0, c02 = 0, c03 = 0;
+		double c10 = 0, c11 = 0, c12 = 0, c13 = 0;
+		double c20 = 0, c21 = 0, c22 = 0, c23 = 0;
+		double c30 = 0, c31 = 0, c32 = 0, c33 = 0;
+		for (int p = 0; p < kc; p++) {
+			double a0 = packedA[aIndex];
+			double a1 = packedA[aIndex + 1];
+			double a2 = packedA[aIndex + 2];
+			double a3 = packedA[aIndex + 3];
+			double b0 = packedB[bIndex];
+			double b1 = packedB[bIndex + 1];
+			double b2 = packedB[bIndex + 2];
+			double b3 = packedB[bIndex + 3];
+			c00 += a0 * b0; c01 += a0 * b1; c02 += a0 * b2; c03 += a0 * b3;
+			c10 += a1 * b0; c11 += a1 * b1; c12 += a1 * b2; c13 += a1 * b3;
+			c20 += a2 * b0; c21 += a2 * b1; c22 += a2 * b2; c23 += a2 * b3;
+			c30 += a3 * b0; c31 += a3 * b1; c32 += a3 * b2; c33 += a3 * b3;
+			aIndex += MR;
+			bIndex += NR;
+		}
+
+		if (rows == MR && cols == NR) {
+			c[cIndex] += c00; c[cIndex + 1] += c01; c[cIndex + 2] += c02; c[cIndex + 3] += c03;
+			cIndex += ldc;
+			c[cIndex] += c10; c[cIndex + 1] += c11; c[cIndex + 2] += c12; c[cIndex + 3] += c13;
+			cIndex += ldc;
+			c[cIndex] += c20; c[cIndex + 1] += c21; c[cIndex + 2] += c22; c[cIndex + 3] += c23;
+			cIndex += ldc;
+			c[cIndex] += c30; c[cIndex + 1] += c31; c[cIndex + 2] += c32; c[cIndex + 3] += c33;
+			return;
+		}
+
+		// Edge tile: only write back the part of the tile that lies inside C.
+		tile[0] = c00; tile[1] = c01; tile[2] = c02; tile[3] = c03;
+		tile[4] = c10; tile[5] = c11; tile[6] = c12; tile[7] = c13;
+		tile[8] = c20; tile[9] = c21; tile[10] = c22; tile[11] = c23;
+		tile[12] = c30; tile[13] = c31; tile[14] = c32; tile[15] = c33;
+		for (int i = 0; i < rows; i++) {
+			for (int j = 0; j < cols; j++) {
+				c[cIndex + i * ldc + j] += tile[i * NR + j];
+			}
+		}
+	}
+
+	/**
+	 * Performs C += op(A) * op(B) on the values of three tensors, starting at each tensor's
+	 * offset. The tensors must all have the same precision.
+	 */
+	public static void multiply(
+			int m, int n, int k, Tensor a, boolean transposeA, Tensor b, boolean transposeB, Tensor c) {
+		if (a.getPrecision() != c.getPrecision() || b.getPrecision() != c.getPrecision()) {
+			throw new IllegalArgumentException("Cannot multiply tensors of different precisions.");
+		}
+		if (c.getPrecision() == Precision.DOUBLE) {
+			multiply(
+					m,
+					n,
+					k,
+					a.getValues(),
+					a.getOffset(),
+					transposeA,
+					b.getValues(),
+					b.getOffset(),
+					transposeB,
+					c.getValues(),
+					c.getOffset());
+		} else {
+			multiply(
+					m,
+					n,
+					k,
+					a.getFloatValues(),
+					a.getOffset(),
+					transposeA,
+					b.getFloatValues(),
+					b.getOffset(),
+					transposeB,
+					c.getFloatValues(),
+					c.getOffset());
+		}
+	}
+
+	/** Performs C += op(A) * op(B) in single precision. See the double precision version. */
+	public static void multiply(
+			int m,
+			int n,
+			int k,
+			float[] a,
+			int aOffset,
+			boolean transposeA,
+			float[] b,
+			int bOffset,
+			boolean transposeB,
+			float[] c,
+			int cOffset) {
+		if (m <= 0 || n <= 0 || k <= 0) {
+			return;
+		}
+		if (multiplyVectors(m, n, k, a, aOffset, transposeA, b, bOffset, transposeB, c, cOffset)) {
+			return;
+		}
+		// Strides between consecutive rows and columns of op(A) and op(B).
+		int aRowStride = transposeA ? 1 : k;
+		int aColStride = transposeA ? m : 1;
+		int bRowStride = transposeB ? 1 : n;
+		int bColStride = transposeB ? k : 1;
+
+		FloatBuffers buffers = FLOAT_BUFFERS.get();
+		for (int jc = 0; jc < n; jc += NC) {
+			int nc = Math.min(NC, n - jc);
+			for (int pc = 0; pc < k; pc += KC) {
+				int kc = Math.min(KC, k - pc);
+				packB(b, bOffset + pc * bRowStride + jc * bColStride, bRowStride, bColStride, kc, nc, buffers.packedB);
+				for (int ic = 0; ic < m; ic += MC) {
+					int mc = Math.min(MC, m - ic);
+					packA(a, aOffset + ic * aRowStride + pc * aColStride, aRowStride, aColStride, mc, kc, buffers.packedA);
+					for (int jr = 0; jr < nc; jr += NR) {
+						int cols = Math.min(NR, nc - jr);
+						for (int ir = 0; ir < mc; ir += MR) {
+							int rows = Math.min(MR, mc - ir);
+							microKernel(
+									kc,
+									buffers.packedA,
+									ir * kc,
+									buffers.packedB,
+									jr * kc,
+									c,
+									cOffset + (ic + ir) * n + jc + jr,
+									n,
+									rows,
+									cols,
+									buffers.tile);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/** Single precision version of the vector shortcuts above. */
+	private static boolean multiplyVectors(
+			int m,
+			int n,
+			int k,
+			float[] a,
+			int aOffset,
+			boolean transposeA,
+			float[] b,
+			int bOffset,
+			boolean transposeB,
+			float[] c,
+			int cOffset) {
+		Kernels kernels = Kernels.get();
+		if (k == 1) {
+			// A rank-1 update. A single column or row is contiguous whether or not it is transposed.
+			for (int i = 0; i < m; i++) {
+				kernels.axpy(a[aOffset + i], b, bOffset, c, cOffset + i * n, n);
+			}
+			return true;
+		}
+		if (m == 1 && transposeB) {
+			for (int j = 0; j < n; j++) {
+				c[cOffset + j] += kernels.dot(a, aOffset, b, bOffset + j * k, k);
+			}
+			return true;
+		}
+		if (m == 1) {
+			for (int p = 0; p < k; p++) {
+				kernels.axpy(a[aOffset + p], b, bOffset + p * n, c, cOffset, n);
+			}
+			return true;
+		}
+		if (n == 1 && !transposeA) {
+			for (int i = 0; i < m; i++) {
+				c[cOffset + i * n] += kernels.dot(a, aOffset + i * k, b, bOffset, k);
+			}
+			return true;
+		}
+		return false;
+	}
+
+	/** Packs an mc x kc block of A into MR-row panels, zero-padding the last panel. */
+	private static void packA(
+			float[] a, int offset, int rowStride, int colStride, int mc, int kc, float[] packed) {
+		int index = 0;
+		for (int ir = 0; ir < mc; ir += MR) {
+			int rows = Math.min(MR, mc - ir);
+			for (int p = 0; p < kc; p++) {
+				int source = offset + ir * rowStride + p * colStride;
+				for (int i = 0; i < MR; i++) {
+					packed[index++] = i < rows ? a[source + i * rowStride] : 0f;
+				}
+			}
+		}
+	}
+
+	/** Packs a kc x nc block of B into NR-column panels, zero-padding the last panel. */
+	private static void packB(
+			float[] b, int offset, int rowStride, int colStride, int kc, int nc, float[] packed) {
+		int index = 0;
+		for (int jr = 0; jr < nc; jr += NR) {
+			int cols = Math.min(NR, nc - jr);
+			for (int p = 0; p < kc; p++) {
+				int source = offset + p * rowStride + jr * colStride;
+				for (int j = 0; j < NR; j++) {
+					packed[index++] = j < cols ? b[source + j * colStride] : 0f;
+				}
+			}
+		}
+	}
+
+	/** Multiplies one packed MR x kc panel of A by one packed kc x NR panel of B into C. */
+	private static void microKernel(
+			int kc,
+			float[] packedA,
+			int aIndex,
+			float[] packedB,
+			int bIndex,
+			float[] c,
+			int cIndex,
+			int ldc,
+			int rows,
+			int cols,
+			float[] tile) {
+		float c00 = 0f, c01 = 0f, c02 = 0f, c03 = 0f;
+		float c10 = 0f, c11 = 0f, c12 = 0f, c13 = 0f;
+		float c20 = 0f, c21 = 0f, c22 = 0f, c23 = 0f;
+		float c30 = 0f, c31 = 0f, c32 = 0f, c33 = 0f;
+		for (int p = 0; p < kc; p++) {
+			float a0 = packedA[aIndex];
+			float a1 = packedA[aIndex + 1];
+			float a2 = packedA[aIndex + 2];
+			float a3 = packedA[aIndex + 3];
+			float b0 = packedB[bIndex];
+			float b1 = packedB[bIndex + 1];
+			float b2 = packedB[bIndex + 2];
+			float b3 = packedB[bIndex + 3];
+			c00 += a0 * b0; c01 += a0 * b1; c02 += a0 * b2; c03 += a0 * b3;
+			c10 += a1 * b0; c11 += a1 * b1; c12 += a1 * b2; c13 += a1 * b3;
+			c20 += a2 * b0; c21 += a2 * b1; c22 += a2 * b2; c23 += a2 * b3;
+			c30 += a3 * b0; c31 += a3 * b1; c32 += a3 * b2; c33 += a3 * b3;
+			aIndex += MR;
+			bIndex += NR;
+		}
+
+		if (rows == MR && cols == NR) {
+			c[cIndex] += c00; c[cIndex + 1] += c01; c[cIndex + 2] += c02; c[cIndex + 3] += c03;
+			cIndex += ldc;
+			c[cIndex] += c10; c[cIndex + 1] += c11; c[cIndex + 2] += c12; c[cIndex + 3] += c13;
+			cIndex += ldc;
+			c[cIndex] += c20; c[cIndex + 1] += c21; c[cIndex + 2] += c22; c[cIndex + 3] += c23;
+			cIndex += ldc;
+			c[cIndex] += c30; c[cIndex + 1] += c31; c[cIndex + 2] += c32; c[cIndex + 3] += c33;
+			return;
+		}
+
+		// Edge tile: only write back the part of the tile that lies inside C.
+		tile[0] = c00; tile[1] = c01; tile[2] = c02; tile[3] = c03;
+		tile[4] = c10; tile[5] = c11; tile[6] = c12; tile[7] = c13;
+		tile[8] = c20; tile[9] = c21; tile[10] = c22; tile[11] = c23;
+		tile[12] = c30; tile[13] = c31; tile[14] = c32; tile[15] = c33;
+		for (int i = 0; i < rows; i++) {
+			for (int j = 0; j < cols; j++) {
+				c[cIndex + i * ldc + j] += tile[i * NR + j];
+			}
+		}
+	}
+
+	private static final class Buffers {
+		final double[] packedA = new double[MC * KC];
+		final double[] packedB = new double[KC * NC];
+		final double[] tile = new double[MR * NR];
+	}
+
+	private static final class FloatBuffers {
+		final float[] packedA = new float[MC * KC];
+		final float[] packedB = new float[KC * NC];
+		final float[] tile = new float[MR * NR];
+	}
+}
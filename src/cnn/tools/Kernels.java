@@ -0,0 +1,194 @@
+package cnn.tools;
+
+/**
+ * The innermost loops of the network's math: dot products, axpy updates, elementwise
+ * activation and the multiply-accumulate of a direct convolution.
+ *
+ * This class is the scalar implementation. If the optional SIMD implementation (built from
+ * the vector/ source directory against the incubating jdk.incubator.vector module) is on the
+ * class path and the module is available at run time, {@link #get()} returns it instead.
+ * Setting the system property cnn.kernels=scalar forces the scalar loops.
+ */
+public class Kernels {
+	private static final String VECTOR_KERNELS = "cnn.tools.VectorKernels";
+	private static final Kernels ACTIVE = load();
+
+	Kernels() {}
+
+	/** Returns the kernels used by the whole network. */
+	public static Kernels get() {
+		return ACTIVE;
+	}
+
+	private static Kernels load() {
+		if ("scalar".equals(System.getProperty("cnn.kernels"))) {
+			return new Kernels();
+		}
+		try {
+			Class<?> vectorKernels = Class.forName(VECTOR_KERNELS);
+			if (!(Boolean) vectorKernels.getDeclaredMethod("isSupported").invoke(null)) {
+				// No SIMD registers wider than a double, so vectors would only add overhead.
+				return new Kernels();
+			}
+			return (Kernels) vectorKernels.getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException | LinkageError e) {
+			// Not compiled in, or the module is missing: jdk.incubator.vector classes only
+			// resolve with --add-modules jdk.incubator.vector.
+			return new Kernels();
+		}
+	}
+
+	/** Returns a short description of this kernel set, e.g. for logging. */
+	public String getName() {
+		return "scalar";
+	}
+
+	/**
+	 * Returns true if these kernels use SIMD instructions. Callers with a choice of loop
+	 * orders use this to pick the one that suits the kernels.
+	 */
+	public boolean isVectorized() {
+		return false;
+	}
+
+	/** Returns the dot product of x[xOffset, xOffset + length) and y[yOffset, yOffset + length). */
+	public double dot(double[] x, int xOffset, double[] y, int yOffset, int length) {
+		double result = 0;
+		for (int i = 0; i < length; i++) {
+			result += x[xOffset + i] * y[yOffset + i];
+		}
+		return result;
+	}
+
+	/** Single precision version of {@link #dot(double[], int, double[], int, int)}. */
+	public float dot(float[] x, int xOffset, float[] y, int yOffset, int length) {
+		float result = 0;
+		for (int i = 0; i < length; i++) {
+			result += x[xOffset + i] * y[yOffset + i];
+		}
+		return result;
+	}
+
+	/** Performs y += alpha * x over the given ranges. */
+	public void axpy(double alpha, double[] x, int xOffset, double[] y, int yOffset, int length) {
+		for (int i = 0; i < length; i++) {
+			y[yOffset + i] += x[xOffset + i] * alpha;
+		}
+	}
+
+	/** Single precision version of {@link #axpy(double, double[], int, double[], int, int)}. */
+	public void axpy(float alpha, float[] x, int xOffset, float[] y, int yOffset, int length) {
+		for (int i = 0; i < length; i++) {
+			y[yOffset + i] += x[xOffset + i] * alpha;
+		}
+	}
+
+	/**
+	 * Replaces each value in [from, to) with the result of the activation function. Callers
+	 * should go through {@link ActivationFunction#applyInPlace}.
+	 */
+	public void activate(ActivationFunction func, double[] values, int from, int to) {
+		for (int i = from; i < to; i++) {
+			values[i] = func.apply(values[i]);
+		}
+	}
+
+	/** Single precision version of {@link #activate(ActivationFunction, double[], int, int)}. */
+	public void activate(ActivationFunction func, float[] values, int from, int to) {
+		for (int i = from; i < to; i++) {
+			values[i] = func.apply(values[i]);
+		}
+	}
+
+	/** Performs deltas[i] *= func.applyDerivative(activated[i]) over the given ranges. */
+	public void multiplyByDerivative(
+			ActivationFunction func,
+			double[] activated,
+			int activatedOffset,
+			double[] deltas,
+			int deltaOffset,
+			int length) {
+		for (int i = 0; i < length; i++) {
+			deltas[deltaOffset + i] *= func.applyDerivative(activated[activatedOffset + i]);
+		}
+	}
+
+	/** Single precision version of {@link #multiplyByDerivative(ActivationFunction, double[], int, double[], int, int)}. */
+	public void multiplyByDerivative(
+			ActivationFunction func,
+			float[] activated,
+			int activatedOffset,
+			float[] deltas,
+			int deltaOffset,
+			int length) {
+		for (int i = 0; i < length; i++) {
+			deltas[deltaOffset + i] *= func.applyDerivative(activated[activatedOffset + i]);
+		}
+	}
+
+	/**
+	 * Slides the mask over the row-major input and adds the sum of products at each placement
+	 * to the corresponding value of the result, which is resultHeight x resultWidth.
+	 */
+	public void correlate(
+			double[] input,
+			int inputOffset,
+			int inputWidth,
+			double[] mask,
+			int maskOffset,
+			int maskHeight,
+			int maskWidth,
+			double[] result,
+			int resultOffset,
+			int resultHeight,
+			int resultWidth) {
+		for (int i = 0; i < resultHeight; i++) {
+			int resultIndex = resultOffset + i * resultWidth;
+			for (int j = 0; j < resultWidth; j++) {
+				double sum = 0.0;
+				int maskIndex = maskOffset;
+				for (int k = 0; k < maskHeight; k++) {
+					int rowIndex = inputOffset + (i + k) * inputWidth + j;
+					for (int l = 0; l < maskWidth; l++) {
+						sum += mask[maskIndex++] * input[rowIndex + l];
+					}
+				}
+				result[resultIndex + j] += sum;
+			}
+		}
+	}
+
+	/** Single precision version of {@link #correlate(double[], int, int, double[], int, int, int, double[], int, int, int)}. */
+	public void correlate(
+			float[] input,
+			int inputOffset,
+			int inputWidth,
+			float[] mask,
+			int maskOffset,
+			int maskHeight,
+			int maskWidth,
+			float[] result,
+			int resultOffset,
+			int resultHeight,
+			int resultWidth) {
+		for (int i = 0; i < resultHeight; i++) {
+			int resultIndex = resultOffset + i * resultWidth;
+			for (int j = 0; j < resultWidth; j++) {
+				float sum = 0.0f;
+				int maskIndex = maskOffset;
+				for (int k = 0; k < maskHeight; k++) {
+					int rowIndex = inputOffset + (i + k) * inputWidth + j;
+					for (int l = 0; l < maskWidth; l++) {
+						sum += mask[maskIndex++] * input[rowIndex + l];
+					}
+				}
+				result[resultIndex + j] += sum;
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return getName();
+	}
+}
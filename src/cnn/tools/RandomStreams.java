@@ -0,0 +1,93 @@
+package cnn.tools;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+/**
+ * The source of all randomness in the network: independent, seeded random streams, one for
+ * each consumer (a layer's initializer, a shuffler, a worker).
+ *
+ * A stream is derived from the seed, a name and an index alone, so it holds the same numbers
+ * whichever thread asks for it and whenever. No two consumers share a generator, so there is
+ * no contention between threads. {@link #next(String)} numbers the streams of a name in the
+ * order they are asked for, which is reproducible as long as that order is; code that creates
+ * streams concurrently should name its indices with {@link #forStream(String, long)}.
+ */
+public final class RandomStreams {
+	private static long seed = Util.SEED;
+	private static final Map<String, Long> nextIndices = new HashMap<>();
+
+	private RandomStreams() {}
+
+	/** Sets the seed of all streams created from now on, and restarts every name's numbering. */
+	public static synchronized void setSeed(long newSeed) {
+		seed = newSeed;
+		nextIndices.clear();
+	}
+
+	/** Returns the given stream of the given name. */
+	public static synchronized SplittableRandom forStream(String name, long index) {
+		return new SplittableRandom(mix(mix(seed + mix(name.hashCode())) + index));
+	}
+
+	/**
+	 * Returns the given stream of a seed of the caller's own, such as one drawn from another
+	 * stream and saved so that the streams can be made again later.
+	 */
+	public static SplittableRandom forSeed(long seed, long index) {
+		return new SplittableRandom(mix(mix(seed) + index));
+	}
+
+	/** Returns the next stream of the given name: index 0 the first time, then 1, and so on. */
+	public static synchronized SplittableRandom next(String name) {
+		long index = nextIndices.getOrDefault(name, 0L);
+		nextIndices.put(name, index + 1);
+		return forStream(name, index);
+	}
+
+	/** Returns a normally distributed value with mean 0 and standard deviation 1. */
+	public static double nextGaussian(SplittableRandom random) {
+		// Marsaglia's polar method.
+		double u, v, s;
+		do {
+			u = 2 * random.nextDouble() - 1;
+			v = 2 * random.nextDouble() - 1;
+			s = u * u + v * v;
+		} while (s >= 1 || s == 0);
+		return u * Math.sqrt(-2 * Math.log(s) / s);
+	}
+
+	/** Shuffles the array in place (Fisher-Yates). */
+	public static void shuffle(int[] values, SplittableRandom random) {
+		for (int i = values.length - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			int swap = values[i];
+			values[i] = values[j];
+			values[j] = swap;
+		}
+	}
+
+	/** Shuffles the list in place (Fisher-Yates). */
+	public static <T> void shuffle(List<T> values, SplittableRandom random) {
+		for (int i = values.size() - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			values.set(i, values.set(j, values.get(i)));
+		}
+	}
+
+	/**
+	 * A 64-bit finalizer (from MurmurHash3), so that nearby seeds give unrelated streams.
+	 * SplittableRandom itself would give overlapping sequences for seeds that differ by a
+	 * multiple of its increment.
+	 */
+	private static long mix(long x) {
+		x ^= x >>> 33;
+		x *= 0xff51afd7ed558ccdL;
+		x ^= x >>> 33;
+		x *= 0xc4ceb9fe1a85ec53L;
+		x ^= x >>> 33;
+		return x;
+	}
+}
@@ -1,12 +1,10 @@
 package cnn.tools;
 
 import java.util.Collection;
-import java.util.Random;
 
 /** Utility methods and objects used throughout the network. */
 public final class Util {
 	public static final int SEED = 0;
-	public static final Random RNG = new Random(SEED);
 	
 	/** Performs v1 * v2^T. */
 	public static double[][] outerProduct(double[] v1, double[] v2) {
@@ -14,9 +12,7 @@ public final class Util {
 		checkVectorNotNullOrEmpty(v2);
 		double[][] result = new double[v1.length][v2.length];
 		for (int i = 0; i < result.length; i++) {
-			for (int j = 0; j < result[i].length; j++) {
-				result[i][j] = v1[i] * v2[j];
-			}
+			Kernels.get().axpy(v1[i], v2, 0, result[i], 0, v2.length);
 		}
 		return result;
 	}
@@ -26,11 +22,7 @@ public final class Util {
 		checkVectorNotNullOrEmpty(v1);
 		checkVectorNotNullOrEmpty(v2);
 		checkVectorDimensionsMatch(v1, v2);
-		double result = 0;
-		for (int i = 0; i < v1.length; i++) {
-			result += v1[i] * v2[i];
-		}
-		return result;
+		return Kernels.get().dot(v1, 0, v2, 0, v1.length);
 	}
 	
 	/** Performs vector scalar multiplication. See description for 3D version. */
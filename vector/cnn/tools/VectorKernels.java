@@ -0,0 +1,271 @@
+package cnn.tools;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * SIMD kernels built on the incubating JDK Vector API.
+ *
+ * This class lives outside src/ because it needs JDK 16 or later and
+ * --add-modules jdk.incubator.vector to compile and run (see the Makefile's vector target).
+ * {@link Kernels#get()} loads it reflectively and falls back to the scalar kernels when it
+ * cannot. Each loop runs in vectors of the platform's preferred width and finishes the tail
+ * with the scalar loop. Sums are reassociated across lanes and use fused multiply-adds, so
+ * results agree with the scalar kernels up to rounding.
+ *
+ * Sigmoids are left to the scalar loop: the vector exp gives different bits before and after
+ * the JIT compiles it, which would break the bitwise reproducibility of seeded and resumed
+ * training, and FAST_SIGMOID is defined by its table.
+ */
+final class VectorKernels extends Kernels {
+	private static final VectorSpecies<Double> DOUBLES = DoubleVector.SPECIES_PREFERRED;
+	private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+
+	VectorKernels() {}
+
+	/**
+	 * Returns true if the platform has SIMD registers wider than a double. {@link Kernels#get()}
+	 * checks this before constructing the class, and uses the scalar kernels otherwise.
+	 */
+	static boolean isSupported() {
+		return DOUBLES.length() >= 2;
+	}
+
+	@Override
+	public String getName() {
+		return String.format(
+				"vector (%d-bit, %d doubles or %d floats per op)",
+				DOUBLES.vectorBitSize(),
+				DOUBLES.length(),
+				FLOATS.length());
+	}
+
+	@Override
+	public boolean isVectorized() {
+		return true;
+	}
+
+	@Override
+	public double dot(double[] x, int xOffset, double[] y, int yOffset, int length) {
+		DoubleVector sum = DoubleVector.zero(DOUBLES);
+		int i = 0;
+		for (int bound = DOUBLES.loopBound(length); i < bound; i += DOUBLES.length()) {
+			DoubleVector xs = DoubleVector.fromArray(DOUBLES, x, xOffset + i);
+			sum = xs.fma(DoubleVector.fromArray(DOUBLES, y, yOffset + i), sum);
+		}
+		return sum.reduceLanes(VectorOperators.ADD)
+				+ super.dot(x, xOffset + i, y, yOffset + i, length - i);
+	}
+
+	@Override
+	public float dot(float[] x, int xOffset, float[] y, int yOffset, int length) {
+		FloatVector sum = FloatVector.zero(FLOATS);
+		int i = 0;
+		for (int bound = FLOATS.loopBound(length); i < bound; i += FLOATS.length()) {
+			FloatVector xs = FloatVector.fromArray(FLOATS, x, xOffset + i);
+			sum = xs.fma(FloatVector.fromArray(FLOATS, y, yOffset + i), sum);
+		}
+		return sum.reduceLanes(VectorOperators.ADD)
+				+ super.dot(x, xOffset + i, y, yOffset + i, length - i);
+	}
+
+	@Override
+	public void axpy(double alpha, double[] x, int xOffset, double[] y, int yOffset, int length) {
+		DoubleVector alphas = DoubleVector.broadcast(DOUBLES, alpha);
+		int i = 0;
+		for (int bound = DOUBLES.loopBound(length); i < bound; i += DOUBLES.length()) {
+			DoubleVector ys = DoubleVector.fromArray(DOUBLES, y, yOffset + i);
+			DoubleVector.fromArray(DOUBLES, x, xOffset + i).fma(alphas, ys).intoArray(y, yOffset + i);
+		}
+		super.axpy(alpha, x, xOffset + i, y, yOffset + i, length - i);
+	}
+
+	@Override
+	public void axpy(float alpha, float[] x, int xOffset, float[] y, int yOffset, int length) {
+		FloatVector alphas = FloatVector.broadcast(FLOATS, alpha);
+		int i = 0;
+		for (int bound = FLOATS.loopBound(length); i < bound; i += FLOATS.length()) {
+			FloatVector ys = FloatVector.fromArray(FLOATS, y, yOffset + i);
+			FloatVector.fromArray(FLOATS, x, xOffset + i).fma(alphas, ys).intoArray(y, yOffset + i);
+		}
+		super.axpy(alpha, x, xOffset + i, y, yOffset + i, length - i);
+	}
+
+	@Override
+	public void activate(ActivationFunction func, double[] values, int from, int to) {
+		int i = from;
+		int bound = from + DOUBLES.loopBound(to - from);
+		switch (func) {
+			case RELU:
+				for (; i < bound; i += DOUBLES.length()) {
+					DoubleVector.fromArray(DOUBLES, values, i).max(0.01).intoArray(values, i);
+				}
+				break;
+			default:
+				break;
+		}
+		super.activate(func, values, i, to);
+	}
+
+	@Override
+	public void activate(ActivationFunction func, float[] values, int from, int to) {
+		int i = from;
+		int bound = from + FLOATS.loopBound(to - from);
+		switch (func) {
+			case RELU:
+				for (; i < bound; i += FLOATS.length()) {
+					FloatVector.fromArray(FLOATS, values, i).max(0.01f).intoArray(values, i);
+				}
+				break;
+			default:
+				break;
+		}
+		super.activate(func, values, i, to);
+	}
+
+	@Override
+	public void multiplyByDerivative(
+			ActivationFunction func,
+			double[] activated,
+			int activatedOffset,
+			double[] deltas,
+			int deltaOffset,
+			int length) {
+		int i = 0;
+		int bound = DOUBLES.loopBound(length);
+		switch (func) {
+			case RELU:
+				for (; i < bound; i += DOUBLES.length()) {
+					DoubleVector x = DoubleVector.fromArray(DOUBLES, activated, activatedOffset + i);
+					VectorMask<Double> active = x.compare(VectorOperators.GT, 0.01);
+					DoubleVector derivative = DoubleVector.zero(DOUBLES).blend(1, active);
+					DoubleVector.fromArray(DOUBLES, deltas, deltaOffset + i)
+							.mul(derivative)
+							.intoArray(deltas, deltaOffset + i);
+				}
+				break;
+			case SIGMOID:
+			case FAST_SIGMOID:
+				for (; i < bound; i += DOUBLES.length()) {
+					DoubleVector x = DoubleVector.fromArray(DOUBLES, activated, activatedOffset + i);
+					DoubleVector derivative = x.mul(DoubleVector.broadcast(DOUBLES, 1).sub(x));
+					DoubleVector.fromArray(DOUBLES, deltas, deltaOffset + i)
+							.mul(derivative)
+							.intoArray(deltas, deltaOffset + i);
+				}
+				break;
+			default:
+				break;
+		}
+		super.multiplyByDerivative(
+				func, activated, activatedOffset + i, deltas, deltaOffset + i, length - i);
+	}
+
+	@Override
+	public void multiplyByDerivative(
+			ActivationFunction func,
+			float[] activated,
+			int activatedOffset,
+			float[] deltas,
+			int deltaOffset,
+			int length) {
+		int i = 0;
+		int bound = FLOATS.loopBound(length);
+		switch (func) {
+			case RELU:
+				for (; i < bound; i += FLOATS.length()) {
+					FloatVector x = FloatVector.fromArray(FLOATS, activated, activatedOffset + i);
+					VectorMask<Float> active = x.compare(VectorOperators.GT, 0.01f);
+					FloatVector derivative = FloatVector.zero(FLOATS).blend(1, active);
+					FloatVector.fromArray(FLOATS, deltas, deltaOffset + i)
+							.mul(derivative)
+							.intoArray(deltas, deltaOffset + i);
+				}
+				break;
+			case SIGMOID:
+			case FAST_SIGMOID:
+				for (; i < bound; i += FLOATS.length()) {
+					FloatVector x = FloatVector.fromArray(FLOATS, activated, activatedOffset + i);
+					FloatVector derivative = x.mul(FloatVector.broadcast(FLOATS, 1).sub(x));
+					FloatVector.fromArray(FLOATS, deltas, deltaOffset + i)
+							.mul(derivative)
+							.intoArray(deltas, deltaOffset + i);
+				}
+				break;
+			default:
+				break;
+		}
+		super.multiplyByDerivative(
+				func, activated, activatedOffset + i, deltas, deltaOffset + i, length - i);
+	}
+
+	/**
+	 * Vectorizes along each output row: every mask value is broadcast and multiplied into a
+	 * whole row of the result at once, rather than summing one output value at a time.
+	 */
+	@Override
+	public void correlate(
+			double[] input,
+			int inputOffset,
+			int inputWidth,
+			double[] mask,
+			int maskOffset,
+			int maskHeight,
+			int maskWidth,
+			double[] result,
+			int resultOffset,
+			int resultHeight,
+			int resultWidth) {
+		if (resultWidth < DOUBLES.length()) {
+			super.correlate(
+					input, inputOffset, inputWidth, mask, maskOffset, maskHeight, maskWidth,
+					result, resultOffset, resultHeight, resultWidth);
+			return;
+		}
+		for (int i = 0; i < resultHeight; i++) {
+			int resultIndex = resultOffset + i * resultWidth;
+			int maskIndex = maskOffset;
+			for (int k = 0; k < maskHeight; k++) {
+				int rowIndex = inputOffset + (i + k) * inputWidth;
+				for (int l = 0; l < maskWidth; l++) {
+					axpy(mask[maskIndex++], input, rowIndex + l, result, resultIndex, resultWidth);
+				}
+			}
+		}
+	}
+
+	/** See {@link #correlate(double[], int, int, double[], int, int, int, double[], int, int, int)}. */
+	@Override
+	public void correlate(
+			float[] input,
+			int inputOffset,
+			int inputWidth,
+			float[] mask,
+			int maskOffset,
+			int maskHeight,
+			int maskWidth,
+			float[] result,
+			int resultOffset,
+			int resultHeight,
+			int resultWidth) {
+		if (resultWidth < FLOATS.length()) {
+			super.correlate(
+					input, inputOffset, inputWidth, mask, maskOffset, maskHeight, maskWidth,
+					result, resultOffset, resultHeight, resultWidth);
+			return;
+		}
+		for (int i = 0; i < resultHeight; i++) {
+			int resultIndex = resultOffset + i * resultWidth;
+			int maskIndex = maskOffset;
+			for (int k = 0; k < maskHeight; k++) {
+				int rowIndex = inputOffset + (i + k) * inputWidth;
+				for (int l = 0; l < maskWidth; l++) {
+					axpy(mask[maskIndex++], input, rowIndex + l, result, resultIndex, resultWidth);
+				}
+			}
+		}
+	}
+}